@@ -0,0 +1,177 @@
+package journal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import model.Action;
+import model.ActionDrop;
+import model.ActionMove;
+import model.ActionPick;
+import model.Patient;
+
+/**
+ * Append-only binary journal of a simulation.
+ * <p>
+ * Every event is a fixed size record of {@link #RECORD_SIZE} bytes:
+ *
+ * <pre>
+ * offset  0: byte  type
+ * offset  4: int   step
+ * offset  8: int   id      ambulance (actions) or patient (spawn)
+ * offset 12: int   a       from (move), node (pick, drop, spawn), deadline in ms or -1 (replan)
+ * offset 16: int   b       to (move), patient (pick, drop), severity (spawn), state checksum (replan)
+ * offset 20: int   c
+ * offset 24: long  value   solve time in us (replan), total distance bits (end)
+ * </pre>
+ *
+ * The end record keeps the total waiting time as a long over b and c. A run
+ * restored from a checkpoint starts with a restore record, the journal then
+ * does not cover the beginning of the run.
+ * <p>
+ * Records are collected in a direct buffer and appended to the current
+ * segment file, a new segment is started when the current one reaches the
+ * maximum size. Segments are named <code>prefix.000.journal</code>,
+ * <code>prefix.001.journal</code> and so on, each one starts with a
+ * {@link #HEADER_SIZE} bytes header. Use {@link JournalReader} to read them.
+ */
+public class EventJournal implements Closeable {
+
+	public static final int MAGIC = 0x414d424a; // "AMBJ"
+	public static final int VERSION = 3;
+	public static final int HEADER_SIZE = 16;
+	public static final int RECORD_SIZE = 32;
+
+	public static final byte MOVE = 1;
+	public static final byte PICK = 2;
+	public static final byte DROP = 3;
+	public static final byte SPAWN = 4;
+	public static final byte REPLAN = 5;
+	public static final byte END = 6;
+	public static final byte RESTORE = 7;
+
+	private static final int BUFFER_SIZE = 2048 * RECORD_SIZE;
+
+	/**
+	 * Name of the given segment of a journal.
+	 */
+	public static String segmentName(String prefix, int segment) {
+		return String.format("%s.%03d.journal", prefix, segment);
+	}
+
+	private final String prefix;
+	private final long maxSegmentBytes;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+	private FileChannel channel;
+	private int segment = -1;
+	private long segmentBytes;
+
+	/**
+	 * Creates the first segment of a new journal.
+	 *
+	 * @param prefix
+	 *            path of the segments without the segment number
+	 * @param maxSegmentBytes
+	 *            size after which a new segment is started
+	 * @throws IOException
+	 */
+	public EventJournal(String prefix, long maxSegmentBytes) throws IOException {
+		this.prefix = prefix;
+		this.maxSegmentBytes = Math.max(maxSegmentBytes, HEADER_SIZE + RECORD_SIZE);
+		roll();
+	}
+
+	public void action(int step, Action action) {
+		if (action instanceof ActionMove) {
+			ActionMove a = (ActionMove) action;
+			put(MOVE, step, a.getAmbulance().getId(), a.getFrom(), a.getTo(), 0, 0);
+		} else if (action instanceof ActionPick) {
+			ActionPick a = (ActionPick) action;
+			put(PICK, step, a.getAmbulance().getId(), a.getAt(), a.getPatient().getId(), 0, 0);
+		} else if (action instanceof ActionDrop) {
+			ActionDrop a = (ActionDrop) action;
+			put(DROP, step, a.getAmbulance().getId(), a.getAt(), a.getPatient().getId(), 0, 0);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		flush();
+		channel.close();
+	}
+
+	public void end(int step, double totalDistance, long totalWaitingTime) {
+		put(END, step, 0, 0, (int) totalWaitingTime, (int) (totalWaitingTime >>> 32),
+				Double.doubleToLongBits(totalDistance));
+	}
+
+	/**
+	 * Writes the buffered records to the current segment.
+	 */
+	public void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	private void put(byte type, int step, int id, int a, int b, int c, long value) {
+		try {
+			if (segmentBytes + RECORD_SIZE > maxSegmentBytes) {
+				roll();
+			}
+			if (buffer.remaining() < RECORD_SIZE) {
+				flush();
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		buffer.put(type).put((byte) 0).putShort((short) 0);
+		buffer.putInt(step).putInt(id).putInt(a).putInt(b).putInt(c).putLong(value);
+		segmentBytes += RECORD_SIZE;
+	}
+
+	/**
+	 * Records a replanning.
+	 *
+	 * @param deadline
+	 *            budget of the planner in ms, {@link Long#MAX_VALUE} if none
+	 * @param stateChecksum
+	 *            see {@link model.CityMap#stateChecksum()}
+	 */
+	public void replan(int step, long micros, long deadline, int stateChecksum) {
+		put(REPLAN, step, 0, deadline > Integer.MAX_VALUE ? -1 : (int) deadline, stateChecksum, 0, micros);
+	}
+
+	/**
+	 * Closes the current segment, if any, and starts the next one.
+	 */
+	private void roll() throws IOException {
+		if (channel != null) {
+			close();
+		}
+		segment++;
+		channel = FileChannel.open(Paths.get(segmentName(prefix, segment)), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		buffer.putInt(MAGIC).putInt(VERSION).putInt(RECORD_SIZE).putInt(segment);
+		segmentBytes = HEADER_SIZE;
+	}
+
+	/**
+	 * Marks a run restored from a checkpoint of the given step.
+	 */
+	public void restored(int step) {
+		put(RESTORE, step, 0, 0, 0, 0, 0);
+	}
+
+	public void spawn(int step, Patient patient) {
+		put(SPAWN, step, patient.getId(), patient.getNode(), patient.getSeverity(), 0, 0);
+	}
+}
@@ -0,0 +1,220 @@
+package journal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Sequential reader of a journal written by {@link EventJournal}.
+ * <p>
+ * Segments are memory-mapped one at a time, so journals larger than the heap
+ * can be scanned. The reader is a cursor: after {@link #next()} returns true
+ * the getters describe the current record.
+ * <p>
+ * Can be used from the command line to export a journal:
+ *
+ * <pre>
+ * java -cp Planner.jar journal.JournalReader logs/test.[timestamp] [text|csv]
+ * </pre>
+ *
+ * The text view has the same format as the <code>.descr</code> log.
+ */
+public class JournalReader implements Closeable {
+
+	public static void main(String[] args) throws IOException {
+		String format = args.length > 1 ? args[1] : "text";
+		PrintWriter out = new PrintWriter(System.out);
+		try (JournalReader reader = new JournalReader(args[0])) {
+			if (format.equals("csv")) {
+				reader.exportCsv(out);
+			} else {
+				reader.exportText(out);
+			}
+		}
+		out.flush();
+	}
+
+	/**
+	 * Returns the text view of a journal.
+	 */
+	public static String toText(String journal) throws IOException {
+		StringWriter text = new StringWriter();
+		try (JournalReader reader = new JournalReader(journal)) {
+			PrintWriter out = new PrintWriter(text);
+			reader.exportText(out);
+			out.flush();
+		}
+		return text.toString();
+	}
+
+	private final String prefix;
+	private int segment = -1;
+	private MappedByteBuffer buffer;
+
+	private byte type;
+	private int step;
+	private int id;
+	private int a;
+	private int b;
+	private int c;
+	private long value;
+
+	/**
+	 * Opens a journal.
+	 *
+	 * @param journal
+	 *            prefix of the journal or the name of any of its segments
+	 * @throws IOException
+	 */
+	public JournalReader(String journal) throws IOException {
+		prefix = journal.matches(".*\\.\\d{3}\\.journal") ? journal.substring(0, journal.length() - 12) : journal;
+		if (!openNextSegment())
+			throw new IOException("No journal found at " + journal);
+	}
+
+	@Override
+	public void close() {
+		buffer = null;
+	}
+
+	/**
+	 * Writes all the remaining records as comma separated values.
+	 */
+	public void exportCsv(PrintWriter out) throws IOException {
+		out.println("type,step,id,a,b,c,value");
+		while (next()) {
+			out.printf("%d,%d,%d,%d,%d,%d,%d\n", type, step, id, a, b, c, value);
+		}
+	}
+
+	/**
+	 * Writes all the remaining records in the format of the
+	 * <code>.descr</code> log.
+	 */
+	public void exportText(PrintWriter out) throws IOException {
+		int lastStep = -1;
+		while (next()) {
+			if (type == EventJournal.END) {
+				out.println("\nDone!");
+				out.println("\nMetrics:");
+				out.println("  Total distance travelled: " + Double.longBitsToDouble(value));
+				out.println("  Total time patients waited: " + getTotalWaitingTime());
+				continue;
+			}
+			if (type == EventJournal.RESTORE) {
+				out.println("Restored step " + step);
+				continue;
+			}
+			if (step != lastStep) {
+				out.println("Step:" + step);
+				lastStep = step;
+			}
+			switch (type) {
+			case EventJournal.MOVE:
+				out.printf("  move(A%d %d -> %d)\n", id, a, b);
+				break;
+			case EventJournal.PICK:
+				out.printf("  pick(A%d P%d @ N%d)\n", id, b, a);
+				break;
+			case EventJournal.DROP:
+				out.printf("  drop(A%d P%d @ N%d)\n", id, b, a);
+				break;
+			case EventJournal.SPAWN:
+				out.printf("  Added P%d (%d) @ N%d\n", id, b, a);
+				break;
+			case EventJournal.REPLAN:
+				out.println("  Replanning...");
+				out.println("  Planned in " + value + " us");
+				if (a >= 0) {
+					out.println("  Deadline: " + a + " ms");
+				}
+				out.printf("  State: %08x\n", b);
+				break;
+			default:
+				throw new IOException("Unknown record type " + type);
+			}
+		}
+	}
+
+	public int getA() {
+		return a;
+	}
+
+	public int getB() {
+		return b;
+	}
+
+	public int getC() {
+		return c;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public int getStep() {
+		return step;
+	}
+
+	public byte getType() {
+		return type;
+	}
+
+	/**
+	 * Total waiting time of an end record.
+	 */
+	public long getTotalWaitingTime() {
+		return (long) c << 32 | b & 0xffffffffL;
+	}
+
+	public long getValue() {
+		return value;
+	}
+
+	/**
+	 * Moves to the next record.
+	 *
+	 * @return false if there are no more records
+	 */
+	public boolean next() throws IOException {
+		while (buffer.remaining() < EventJournal.RECORD_SIZE) {
+			if (!openNextSegment())
+				return false;
+		}
+		type = buffer.get();
+		buffer.get();
+		buffer.getShort();
+		step = buffer.getInt();
+		id = buffer.getInt();
+		a = buffer.getInt();
+		b = buffer.getInt();
+		c = buffer.getInt();
+		value = buffer.getLong();
+		return true;
+	}
+
+	private boolean openNextSegment() throws IOException {
+		Path path = Paths.get(EventJournal.segmentName(prefix, segment + 1));
+		if (!Files.exists(path))
+			return false;
+		segment++;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		if (buffer.remaining() < EventJournal.HEADER_SIZE || buffer.getInt() != EventJournal.MAGIC)
+			throw new IOException(path + " is not a journal segment");
+		if (buffer.getInt() != EventJournal.VERSION || buffer.getInt() != EventJournal.RECORD_SIZE)
+			throw new IOException(path + " has an unsupported format");
+		buffer.getInt(); // segment number
+		return true;
+	}
+}
@@ -0,0 +1,135 @@
+package main;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import metrics.Metrics;
+import model.Action;
+import model.Ambulance;
+import model.CityMap;
+import model.PatientProvider;
+
+/**
+ * Snapshot of a running simulation.
+ * <p>
+ * Only the dynamic state is saved: the city is rebuilt from the same problem
+ * file and then the state of ambulances and patients, the pending plan, the
+ * state of the patient provider and the metrics are restored on top of it.
+ * Planners are not part of the checkpoint, they start from scratch at the
+ * next replanning.
+ */
+public class Checkpoint {
+
+	private static final int MAGIC = 0x414d4243; // "AMBC"
+	private static final int VERSION = 3;
+
+	/**
+	 * Reads a checkpoint written by {@link #save}, restoring map, provider and
+	 * metrics in place.
+	 *
+	 * @param fileName
+	 *            checkpoint file
+	 * @param map
+	 *            city built from the same problem file
+	 * @param provider
+	 *            provider of the same type used for the saved run
+	 * @param metrics
+	 *            metrics to restore
+	 * @return the state of the simulation loop
+	 * @throws IOException
+	 */
+	public static Checkpoint load(String fileName, CityMap map, PatientProvider provider, Metrics metrics)
+			throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException(fileName + " is not a checkpoint");
+
+			Checkpoint cp = new Checkpoint();
+			cp.step = in.readInt();
+			cp.replanningNeeded = in.readBoolean();
+			cp.firstPendingArrivalStep = in.readInt();
+			cp.totalDistance = in.readDouble();
+			cp.totalWaitingTime = in.readLong();
+
+			int spawned = in.readInt();
+			for (int i = 0; i < spawned; i++) {
+				cp.spawnSteps.put(in.readInt(), in.readInt());
+			}
+
+			map.readState(in);
+
+			int ambCount = in.readInt();
+			for (int i = 0; i < ambCount; i++) {
+				Ambulance amb = map.getAmbulanceById(in.readInt());
+				int actionCount = in.readInt();
+				List<Action> actions = new ArrayList<>(actionCount);
+				for (int j = 0; j < actionCount; j++) {
+					actions.add(Action.read(in, map));
+				}
+				cp.plan.put(amb, actions);
+			}
+
+			provider.readState(in);
+			metrics.readState(in);
+			return cp;
+		}
+	}
+
+	public int step;
+	public boolean replanningNeeded;
+	public int firstPendingArrivalStep = -1;
+	public double totalDistance;
+	public long totalWaitingTime;
+	public Map<Integer, Integer> spawnSteps = new HashMap<>();
+	public Map<Ambulance, List<Action>> plan = new HashMap<>();
+
+	/**
+	 * Writes this state together with the state of map, provider and metrics.
+	 *
+	 * @param fileName
+	 *            where to write the checkpoint
+	 * @throws IOException
+	 */
+	public void save(String fileName, CityMap map, PatientProvider provider, Metrics metrics) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(fileName)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+
+			out.writeInt(step);
+			out.writeBoolean(replanningNeeded);
+			out.writeInt(firstPendingArrivalStep);
+			out.writeDouble(totalDistance);
+			out.writeLong(totalWaitingTime);
+
+			out.writeInt(spawnSteps.size());
+			for (Map.Entry<Integer, Integer> e : spawnSteps.entrySet()) {
+				out.writeInt(e.getKey());
+				out.writeInt(e.getValue());
+			}
+
+			map.writeState(out);
+
+			out.writeInt(plan.size());
+			for (Map.Entry<Ambulance, List<Action>> e : plan.entrySet()) {
+				out.writeInt(e.getKey().getId());
+				out.writeInt(e.getValue().size());
+				for (Action a : e.getValue()) {
+					a.write(out);
+				}
+			}
+
+			provider.writeState(out);
+			metrics.writeState(out);
+		}
+	}
+}
@@ -0,0 +1,325 @@
+package main;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import metrics.Counter;
+import metrics.Histogram;
+import metrics.Metrics;
+import metrics.PlanningPhaseEvent;
+import metrics.SimulationStepEvent;
+import model.Action;
+import model.ActionDrop;
+import model.ActionMove;
+import model.ActionPick;
+import model.Ambulance;
+import model.CityMap;
+import model.Patient;
+import model.PatientProvider;
+import planner.Planner;
+
+/**
+ * Simulation of one city, advanced one step at a time.
+ * <p>
+ * This is the simulation loop of {@link Main}, which adds printing, logging
+ * and checkpoints through a {@link Listener}. All the state is kept in the
+ * instance so that many cities can run in the same process (see
+ * {@link MultiCity}). A simulation must not be stepped by two threads at the
+ * same time.
+ */
+public class CitySimulation {
+
+	/**
+	 * Told what happens during a step, by the thread that performs it. Step
+	 * numbers are the ones of the step being performed.
+	 */
+	public interface Listener {
+		/**
+		 * After a replanning.
+		 */
+		default void replanned(int step, long solveMicros) {
+		}
+
+		/**
+		 * Before the actions of the step, with what is left of the plan.
+		 */
+		default void executing(int step, Map<Ambulance, List<Action>> plan) {
+		}
+
+		/**
+		 * Before an action is performed.
+		 */
+		default void performing(int step, Action action) {
+		}
+
+		/**
+		 * Before a new patient is spawned.
+		 */
+		default void spawning(int step, Patient patient) {
+		}
+	}
+
+	private final String name;
+	private final CityMap map;
+	private final Planner planner;
+	private final PatientProvider provider;
+	private final Metrics metrics;
+	// looked up once, the registry is keyed by strings
+	private final Histogram solveTime;
+	private final Counter replans;
+	private final Counter ambulanceSteps;
+	private final Counter ambulanceBusySteps;
+	// by severity, looked up the first time a severity is seen
+	private Counter[] patientsSpawned = new Counter[0];
+	private Histogram[] patientWaitSteps = new Histogram[0];
+
+	private final long deadline;
+	private final int coalesceWindow;
+	private Listener listener = new Listener() {
+	};
+
+	private Map<Ambulance, List<Action>> plan = new HashMap<>();
+	private Map<Integer, Integer> spawnSteps = new HashMap<>();
+	private int step;
+	private boolean replanningNeeded = true;
+	private int firstPendingArrivalStep = -1;
+	private double totalDistance;
+	private long totalWaitingTime;
+	private long wallNanos;
+	// of the last step, -1 if it did not replan
+	private long lastSolveMicros = -1;
+	private long waitingPatients;
+
+	public CitySimulation(String name, CityMap map, Planner planner, PatientProvider provider, long deadline,
+			int coalesceWindow) {
+		this(name, map, planner, provider, deadline, coalesceWindow, new Metrics());
+	}
+
+	public CitySimulation(String name, CityMap map, Planner planner, PatientProvider provider, long deadline,
+			int coalesceWindow, Metrics metrics) {
+		this.name = name;
+		this.map = map;
+		this.planner = planner;
+		this.provider = provider;
+		this.deadline = deadline;
+		this.coalesceWindow = coalesceWindow;
+		this.metrics = metrics;
+		solveTime = metrics.histogram("planner_solve_micros");
+		replans = metrics.counter("replans");
+		ambulanceSteps = metrics.counter("ambulance_steps");
+		ambulanceBusySteps = metrics.counter("ambulance_busy_steps");
+
+		planner.setMetrics(metrics);
+		for (Patient patient : map.getPatients()) {
+			spawnSteps.put(patient.getId(), 0);
+		}
+		metrics.gauge("total_distance", () -> totalDistance);
+		metrics.gauge("total_waiting_time", () -> totalWaitingTime);
+		metrics.gauge("ambulance_utilization", () -> (double) ambulanceBusySteps.get() / ambulanceSteps.get());
+	}
+
+	private Counter patientsSpawned(int severity) {
+		if (severity < 0)
+			return metrics.counter("patients_spawned", "severity", Integer.toString(severity));
+		if (severity >= patientsSpawned.length) {
+			patientsSpawned = Arrays.copyOf(patientsSpawned, severity + 1);
+		}
+		if (patientsSpawned[severity] == null) {
+			patientsSpawned[severity] = metrics.counter("patients_spawned", "severity", Integer.toString(severity));
+		}
+		return patientsSpawned[severity];
+	}
+
+	private Histogram patientWaitSteps(int severity) {
+		if (severity < 0)
+			return metrics.histogram("patient_wait_steps", "severity", Integer.toString(severity));
+		if (severity >= patientWaitSteps.length) {
+			patientWaitSteps = Arrays.copyOf(patientWaitSteps, severity + 1);
+		}
+		if (patientWaitSteps[severity] == null) {
+			patientWaitSteps[severity] = metrics.histogram("patient_wait_steps", "severity",
+					Integer.toString(severity));
+		}
+		return patientWaitSteps[severity];
+	}
+
+	/**
+	 * State of the simulation, to be saved with {@link Checkpoint#save}.
+	 */
+	public Checkpoint checkpoint() {
+		Checkpoint cp = new Checkpoint();
+		cp.plan = plan;
+		cp.step = step;
+		cp.replanningNeeded = replanningNeeded;
+		cp.firstPendingArrivalStep = firstPendingArrivalStep;
+		cp.totalDistance = totalDistance;
+		cp.totalWaitingTime = totalWaitingTime;
+		cp.spawnSteps = spawnSteps;
+		return cp;
+	}
+
+	/**
+	 * Continues from a state loaded with {@link Checkpoint#load}.
+	 */
+	public void restore(Checkpoint cp) {
+		plan = cp.plan;
+		step = cp.step;
+		replanningNeeded = cp.replanningNeeded;
+		firstPendingArrivalStep = cp.firstPendingArrivalStep;
+		totalDistance = cp.totalDistance;
+		totalWaitingTime = cp.totalWaitingTime;
+		spawnSteps = cp.spawnSteps;
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Wall-clock time spent in {@link #step()}, including the time the
+	 * stepping thread waited for the CPU or for the threads of the planner.
+	 */
+	public long getWallNanos() {
+		return wallNanos;
+	}
+
+	/**
+	 * Planning time of the last step, -1 if it did not replan.
+	 */
+	public long getLastSolveMicros() {
+		return lastSolveMicros;
+	}
+
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getStep() {
+		return step;
+	}
+
+	public double getTotalDistance() {
+		return totalDistance;
+	}
+
+	public long getTotalWaitingTime() {
+		return totalWaitingTime;
+	}
+
+	/**
+	 * Patients waiting for an ambulance at the end of the last step.
+	 */
+	public long getWaitingPatients() {
+		return waitingPatients;
+	}
+
+	/**
+	 * If some ambulance has nothing left to do in the plan.
+	 */
+	private boolean isAnyAmbulanceIdle() {
+		for (Ambulance amb : map.getAmbulances()) {
+			List<Action> actions = plan.get(amb);
+			if (actions == null || actions.isEmpty())
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * If the next step starts with a replanning.
+	 */
+	public boolean isReplanningNeeded() {
+		return replanningNeeded;
+	}
+
+	/**
+	 * Performs one step of the simulation.
+	 *
+	 * @return false when there is nothing left to do
+	 */
+	public boolean step() {
+		long start = System.nanoTime();
+		SimulationStepEvent stepEvent = SimulationStepEvent.start(step);
+		int currentStep = step;
+		boolean replanned = replanningNeeded;
+		int actionsPerformed = 0;
+		step++;
+		if (map.getDemandModel() != null) {
+			map.getDemandModel().tick(step);
+		}
+
+		// if we don't have a plan make one
+		lastSolveMicros = -1;
+		if (replanningNeeded) {
+			PlanningPhaseEvent solveEvent = PlanningPhaseEvent.start("solve");
+			long solveStartTime = System.nanoTime();
+			plan = planner.solve(map, deadline);
+			lastSolveMicros = (System.nanoTime() - solveStartTime) / 1000;
+			solveTime.record(lastSolveMicros);
+			solveEvent.finish(map.patientCount(), map.ambulanceCount(), map.nodesCount(), 0);
+			replans.increment();
+			replanningNeeded = false;
+			firstPendingArrivalStep = -1;
+			listener.replanned(currentStep, lastSolveMicros);
+		}
+		listener.executing(currentStep, plan);
+
+		// an ambulance is busy if it carries a patient or goes to pick one
+		for (Ambulance amb : map.getAmbulances()) {
+			ambulanceSteps.increment();
+			if (!amb.isFree() || plan.containsKey(amb) && plan.get(amb).stream().anyMatch(a -> a instanceof ActionPick)) {
+				ambulanceBusySteps.increment();
+			}
+		}
+
+		for (Ambulance amb : plan.keySet()) {
+			if (!plan.get(amb).isEmpty()) {
+				Action a = plan.get(amb).remove(0);
+				listener.performing(currentStep, a);
+				map.performAction(a);
+				actionsPerformed++;
+				if (a instanceof ActionMove) {
+					totalDistance += map.shortestDistance(((ActionMove) a).getFrom(), ((ActionMove) a).getTo());
+				}
+				if (a instanceof ActionPick) {
+					Patient patient = ((ActionPick) a).getPatient();
+					patientWaitSteps(patient.getSeverity()).record(step - spawnSteps.getOrDefault(patient.getId(), 0));
+				}
+				if (a instanceof ActionDrop && planner.replanAfterDropAction()) {
+					replanningNeeded = true;
+				}
+			}
+		}
+
+		waitingPatients = map.getPatients().stream().filter(Patient::isWaiting).count();
+		totalWaitingTime += waitingPatients;
+
+		boolean planIsEmpty = plan.values().stream().allMatch(List::isEmpty);
+		List<Patient> newPatients = provider.getNewPatients(planIsEmpty);
+		for (Patient patient : newPatients) {
+			listener.spawning(currentStep, patient);
+			map.spawn(patient);
+			spawnSteps.put(patient.getId(), step);
+			patientsSpawned(patient.getSeverity()).increment();
+		}
+		if (!newPatients.isEmpty() && firstPendingArrivalStep < 0) {
+			firstPendingArrivalStep = step;
+		}
+
+		// replan once for all the patients arrived in the window, idle
+		// ambulances should not wait for the window to close
+		if (firstPendingArrivalStep >= 0 && (isAnyAmbulanceIdle() || step - firstPendingArrivalStep >= coalesceWindow)) {
+			replanningNeeded = true;
+		}
+
+		stepEvent.finish(replanned, actionsPerformed, newPatients.size(), (int) waitingPatients);
+		wallNanos += System.nanoTime() - start;
+		return replanningNeeded || !plan.values().stream().allMatch(List::isEmpty) || provider.hasPendingPatients();
+	}
+}
@@ -5,43 +5,166 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.nio.file.Files;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import metrics.Histogram;
+import metrics.Metrics;
+import journal.EventJournal;
 import model.*;
 import model.CityMap.Print;
-import planner.HungarianPlanner;
+import planner.DeadlinePlanner;
 import planner.Planner;
 
 public class Main {
-	
-	private static double totalDistance = 0.0;
-	private static long totalWaitingTime = 0;
-	
+
+	/**
+	 * Splits the command line into positional arguments and
+	 * <code>--name=value</code> options.
+	 * 
+	 * @param args
+	 *            command line
+	 * @param options
+	 *            map where to put the options
+	 * @return positional arguments
+	 */
+	static String[] parseArgs(String[] args, Map<String, String> options) {
+		List<String> positional = new ArrayList<>();
+		for (String arg : args) {
+			if (arg.startsWith("--")) {
+				int eq = arg.indexOf('=');
+				if (eq < 0) {
+					options.put(arg.substring(2), "true");
+				} else {
+					options.put(arg.substring(2, eq), arg.substring(eq + 1));
+				}
+			} else {
+				positional.add(arg);
+			}
+		}
+		return positional.toArray(new String[0]);
+	}
+
+	/**
+	 * Time budget of every replanning asked with <code>--deadline</code>, no
+	 * limit by default. Exits with a usage error if it is not a number of
+	 * milliseconds.
+	 */
+	static long deadline(Map<String, String> options) {
+		String value = options.get("deadline");
+		if (value == null)
+			return Long.MAX_VALUE;
+		try {
+			long deadline = Long.parseLong(value);
+			if (deadline >= 0)
+				return deadline;
+		} catch (NumberFormatException e) {
+			// reported below
+		}
+		System.err.println("Expected --deadline=milliseconds, got " + value);
+		System.exit(1);
+		return Long.MAX_VALUE;
+	}
+
+	/**
+	 * Builds the online demand model asked with <code>--demand-model</code>,
+	 * null if the static demands should be used.
+	 */
+	static DemandModel demandModel(Map<String, String> options, CityMap map) {
+		if (!options.containsKey("demand-model"))
+			return null;
+		int stepsPerDay = Integer.parseInt(options.getOrDefault("steps-per-day", "1440"));
+		int buckets = Integer.parseInt(options.getOrDefault("demand-buckets", Integer.toString(
+				Math.min(DemandModel.DEFAULT_BUCKETS, stepsPerDay))));
+		// a week by default
+		double halfLife = Double.parseDouble(options.getOrDefault("demand-half-life",
+				Integer.toString(7 * stepsPerDay)));
+		double[] demands = map.getDemands().stream().mapToDouble(d -> d).toArray();
+		return new DemandModel(demands, stepsPerDay, buckets, halfLife, DemandModel.DEFAULT_PRIOR_PATIENTS);
+	}
+
 	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<>();
+		args = parseArgs(args, options);
+
 		// parsing the problem description from the command line
 		String cityFileName = args[0];
 
+		// time budget for every replanning step, no limit by default
+		long deadline = deadline(options);
+		// steps to wait collecting new patients before replanning
+		int coalesceWindow = Integer.parseInt(options.getOrDefault("coalesce", "0"));
+		// where to export the metrics at the end of the run
+		String metricsFileName = options.get("metrics");
+		Metrics.Format metricsFormat = Metrics.Format
+				.valueOf(options.getOrDefault("metrics-format", "json").toUpperCase());
+		// checkpoints: resume from one, save one every few steps or when the
+		// request file appears
+		String restoreFileName = options.get("restore");
+		int checkpointEvery = Integer.parseInt(options.getOrDefault("checkpoint-every", "0"));
+		File checkpointRequest = options.containsKey("checkpoint-request")
+				? new File(options.get("checkpoint-request")) : null;
+		// the binary journal is always written, text logs only on request
+		boolean textLogs = options.containsKey("text-logs");
+		long journalMaxBytes = Long.parseLong(options.getOrDefault("journal-max-bytes", "67108864"));
+		// minimum duration of a step, pushed patients arrive in real time
+		boolean pushed = options.containsKey("listen") || options.containsKey("pipe");
+		long stepMillis = Long.parseLong(options.getOrDefault("step-millis", pushed ? "100" : "0"));
+
 		// debugging utilities
 		new File("logs").mkdir();
 		String now = new SimpleDateFormat(".yyyy-MM-dd_HH.mm.ss").format(new Date());
 		String easyToReadDescription = "logs/" + cityFileName.split(".pddl")[0] + now + ".descr";
 		String solution = "logs/" + cityFileName.split(".pddl")[0] + now + ".plan";
+		String checkpointPrefix = "logs/" + cityFileName.split(".pddl")[0] + now + ".step";
+		String journalPrefix = "logs/" + cityFileName.split(".pddl")[0] + now;
 
 		// initial set up
 		Planner planner = (Planner) Class.forName(args[1]).getConstructor().newInstance();
+		if (options.containsKey("deadline")) {
+			Planner fallback = (Planner) Class.forName(options.getOrDefault("fallback", "planner.HungarianPlanner"))
+					.getConstructor().newInstance();
+			planner = new DeadlinePlanner(planner, fallback);
+		}
+		Metrics metrics = Metrics.global();
+		Histogram solveTime = metrics.histogram("planner_solve_micros");
 		CityMap map = CityParser.parse(cityFileName);
-		Files.copy(new File(cityFileName).toPath(), new File(easyToReadDescription).toPath());
-
-		PrintWriter solutionWriter = new PrintWriter(solution);
-		PrintWriter eventsWriter = new PrintWriter(easyToReadDescription);
+		DemandModel demandModel = demandModel(options, map);
+		map.setDemandModel(demandModel);
+		if (textLogs) {
+			Files.copy(new File(cityFileName).toPath(), new File(easyToReadDescription).toPath());
+		}
+		PrintWriter solutionWriter = textLogs ? new PrintWriter(solution) : null;
+		PrintWriter eventsWriter = textLogs ? new PrintWriter(easyToReadDescription) : null;
+		EventJournal journal = new EventJournal(journalPrefix, journalMaxBytes);
 
 		PatientProvider pProvider;
-		if (args.length == 2) {
+		if (options.containsKey("listen") || options.containsKey("pipe")) {
+			// incidents pushed by external systems, never blocks the simulation
+			PushPatientProvider push = new PushPatientProvider(map, Integer.parseInt(
+					options.getOrDefault("queue-capacity", Integer.toString(PushPatientProvider.DEFAULT_CAPACITY))));
+			if (options.containsKey("listen")) {
+				push.listen(Integer.parseInt(options.get("listen")));
+			}
+			if (options.containsKey("pipe")) {
+				push.readPipe(options.get("pipe"));
+			}
+			pProvider = push;
+		} else if (options.containsKey("trace")) {
+			// recorded incidents, trace time units per simulation step
+			pProvider = new TracePatientProvider(options.get("trace"),
+					Double.parseDouble(options.getOrDefault("trace-step", "1")), map);
+		} else if (args.length == 2) {
 			pProvider = new ManualPatientProvider(map);
 		} else {
-			pProvider = new RandomPatientProvider(Double.parseDouble(args[2]), Integer.parseInt(args[3]), map);
+			// Poisson arrivals with --rate, otherwise single ones with the probability
+			int maxPatients = Integer.parseInt(args[3]);
+			pProvider = options.containsKey("rate")
+					? RandomPatientProvider.poisson(Double.parseDouble(options.get("rate")), maxPatients, map)
+					: new RandomPatientProvider(Double.parseDouble(args[2]), maxPatients, map);
 		}
 
 		System.out.println(map.represent(Print.ADJ_MATRIX));
@@ -52,91 +175,153 @@ public class Main {
 		System.out.println(map.represent(Print.PATIENT_LOCATIONS));
 		System.out.println(map.represent(Print.DEMANDS));
 
-		eventsWriter.println(map.represent(Print.ADJ_MATRIX));
-		eventsWriter.println(map.represent(Print.SHORTEST_DISTANCES_MATRIX));
-		eventsWriter.println(map.represent(Print.SHORTEST_PATHS));
-		eventsWriter.println(map.represent(Print.HOSPITAL_LOCATIONS));
-		eventsWriter.println(map.represent(Print.DEMANDS));
-		eventsWriter.println("\n--------------------------------------------------\n");
-
-		Map<Ambulance, List<Action>> plan = null;
-		int step = 0;
-		boolean replanningNeeded = true;
-		do {
-			System.out.println("\n--------------------------------------------------");
-			System.out.println("Step: " + step);
-			solutionWriter.println("Step:" + step);
-			eventsWriter.println("Step:" + step);
-			step++;
+		if (textLogs) {
+			eventsWriter.println(map.represent(Print.ADJ_MATRIX));
+			eventsWriter.println(map.represent(Print.SHORTEST_DISTANCES_MATRIX));
+			eventsWriter.println(map.represent(Print.SHORTEST_PATHS));
+			eventsWriter.println(map.represent(Print.HOSPITAL_LOCATIONS));
+			eventsWriter.println(map.represent(Print.DEMANDS));
+			eventsWriter.println("\n--------------------------------------------------\n");
+		}
 
-			// if we don't have a plan make one
-			if (replanningNeeded) {
-				System.out.println("Replanning...");
-				eventsWriter.println("  Replanning...");
-				plan = planner.solve(map);
-				replanningNeeded = false;
+		CitySimulation city = new CitySimulation(cityFileName, map, planner, pProvider, deadline, coalesceWindow,
+				metrics);
+		city.setListener(new CitySimulation.Listener() {
+			@Override
+			public void replanned(int step, long solveMicros) {
+				// the planner does not change the map, this is the state it planned on
+				int stateChecksum = map.stateChecksum();
+				journal.replan(step, solveMicros, deadline, stateChecksum);
+				if (textLogs) {
+					eventsWriter.println("  Replanning...");
+					eventsWriter.println("  Planned in " + solveMicros + " us");
+					if (deadline != Long.MAX_VALUE) {
+						eventsWriter.println("  Deadline: " + deadline + " ms");
+					}
+					eventsWriter.printf("  State: %08x\n", stateChecksum);
+				}
 			}
 
-			System.out.print(map.represent(Print.AMBULANCES_LOCATIONS));
-			System.out.print(map.represent(Print.PATIENT_LOCATIONS));
+			@Override
+			public void executing(int step, Map<Ambulance, List<Action>> plan) {
+				System.out.print(map.represent(Print.AMBULANCES_LOCATIONS));
+				System.out.print(map.represent(Print.PATIENT_LOCATIONS));
 
-			// print full plan
-			for (Ambulance amb : plan.keySet()) {
-				System.out.println("Actions for " + amb);
-				if (!plan.get(amb).isEmpty()) {
-					for (Action a : plan.get(amb)) {
-						System.out.println("   " + a);
+				// print full plan
+				for (Ambulance amb : plan.keySet()) {
+					System.out.println("Actions for " + amb);
+					if (!plan.get(amb).isEmpty()) {
+						for (Action a : plan.get(amb)) {
+							System.out.println("   " + a);
+						}
+					} else {
+						System.out.println("   nop");
 					}
-				} else {
-					System.out.println("   nop");
 				}
 			}
 
-			for (Ambulance amb : plan.keySet()) {
-				if (!plan.get(amb).isEmpty()) {
-					Action a = plan.get(amb).remove(0);
-					System.out.println("Executing: " + a);
-					solutionWriter.println("  " + a);
-					eventsWriter.println("  " + a);
-					map.performAction(a);
-					if (a instanceof ActionMove) {
-						int from = ((ActionMove) a).getFrom();
-						int to= ((ActionMove) a).getTo();
-						totalDistance += map.shortestDistance(from, to);
-					}
-					if (a instanceof ActionDrop && planner.replanAfterDropAction()) {
-						replanningNeeded = true;
-					}
+			@Override
+			public void performing(int step, Action action) {
+				System.out.println("Executing: " + action);
+				journal.action(step, action);
+				if (textLogs) {
+					solutionWriter.println("  " + action);
+					eventsWriter.println("  " + action);
 				}
 			}
-			
-			totalWaitingTime += map.getPatients().stream().filter(Patient::isWaiting).count();
 
-			boolean planIsEmpty = plan.values().stream().allMatch(List::isEmpty);
-
-			if (pProvider.hasNewPatient(planIsEmpty)) {
-				Patient patient = pProvider.getNewPatient();
+			@Override
+			public void spawning(int step, Patient patient) {
 				System.out.println("Added " + patient);
-				eventsWriter.println("  Added " + patient);
-				map.spawn(patient);
-				replanningNeeded = true;
+				journal.spawn(step, patient);
+				if (textLogs) {
+					eventsWriter.println("  Added " + patient);
+				}
+			}
+		});
+
+		if (restoreFileName != null) {
+			long restoreStartTime = System.currentTimeMillis();
+			city.restore(Checkpoint.load(restoreFileName, map, pProvider, metrics));
+			journal.restored(city.getStep());
+			System.out.println("Restored step " + city.getStep() + " from " + restoreFileName + " in "
+					+ (System.currentTimeMillis() - restoreStartTime) + " ms");
+			if (textLogs) {
+				eventsWriter.println("Restored step " + city.getStep() + " from " + restoreFileName);
+			}
+		}
+
+		boolean more;
+		do {
+			System.out.println("\n--------------------------------------------------");
+			System.out.println("Step: " + city.getStep());
+			if (textLogs) {
+				solutionWriter.println("Step:" + city.getStep());
+				eventsWriter.println("Step:" + city.getStep());
+			}
+			long stepStartTime = System.currentTimeMillis();
+			if (city.isReplanningNeeded()) {
+				System.out.println("Replanning...");
 			}
-		} while (replanningNeeded || !plan.values().stream().allMatch(List::isEmpty));
+			more = city.step();
+
+			int step = city.getStep();
+			boolean checkpointRequested = checkpointRequest != null && checkpointRequest.delete();
+			if (checkpointRequested || checkpointEvery > 0 && step % checkpointEvery == 0) {
+				String checkpointFileName = checkpointPrefix + step + ".ckpt";
+				city.checkpoint().save(checkpointFileName, map, pProvider, metrics);
+				System.out.println("Checkpoint saved to " + checkpointFileName);
+				if (textLogs) {
+					eventsWriter.println("  Checkpoint saved to " + checkpointFileName);
+				}
+			}
+
+			long remainingMillis = stepStartTime + stepMillis - System.currentTimeMillis();
+			if (remainingMillis > 0) {
+				Thread.sleep(remainingMillis);
+			}
+		} while (more);
+		double totalDistance = city.getTotalDistance();
+		long totalWaitingTime = city.getTotalWaitingTime();
 
 		System.out.println("\nDone!");
 		System.out.println(map.represent(Print.AMBULANCES_LOCATIONS));
 		System.out.println("\nMetrics:");
 		System.out.println("  Total distance travelled: " + totalDistance);
 		System.out.println("  Total time patients waited: " + totalWaitingTime);
-		
+		System.out.println("  Replannings: " + metrics.counter("replans").get());
+		System.out.println("  Planning time p50/p99/max (us): " + solveTime.quantile(0.5) + "/"
+				+ solveTime.quantile(0.99) + "/" + solveTime.getMax());
+
+		if (metricsFileName != null) {
+			metrics.export(metricsFormat, metricsFileName);
+		}
 
-		eventsWriter.println("\nDone!");
-		eventsWriter.println(map.represent(Print.AMBULANCES_LOCATIONS));
-		eventsWriter.println("\nMetrics:");
-		eventsWriter.println("  Total distance travelled: " + totalDistance);
-		eventsWriter.println("  Total time patients waited: " + totalWaitingTime);
+		journal.end(city.getStep(), totalDistance, totalWaitingTime);
+		journal.close();
 
-		solutionWriter.close();
-		eventsWriter.close();
+		if (pProvider instanceof PushPatientProvider) {
+			PushPatientProvider push = (PushPatientProvider) pProvider;
+			System.out.println("  Incidents rejected (queue full/invalid): " + push.getRejected() + "/"
+					+ push.getInvalid());
+		}
+		if (pProvider instanceof TracePatientProvider) {
+			TracePatientProvider trace = (TracePatientProvider) pProvider;
+			if (trace.getSkipped() > 0) {
+				System.out.println("  Invalid incidents skipped: " + trace.getSkipped());
+			}
+			trace.close();
+		}
+
+		if (textLogs) {
+			eventsWriter.println("\nDone!");
+			eventsWriter.println(map.represent(Print.AMBULANCES_LOCATIONS));
+			eventsWriter.println("\nMetrics:");
+			eventsWriter.println("  Total distance travelled: " + totalDistance);
+			eventsWriter.println("  Total time patients waited: " + totalWaitingTime);
+
+			solutionWriter.close();
+			eventsWriter.close();
+		}
 	}
 }
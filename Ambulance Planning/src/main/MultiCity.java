@@ -0,0 +1,129 @@
+package main;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import metrics.Histogram;
+import metrics.Metrics;
+import model.CityMap;
+import model.CityParser;
+import model.RandomPatientProvider;
+import planner.DeadlinePlanner;
+import planner.Planner;
+import utils.SplitMix64;
+
+/**
+ * Runs the simulations of many independent cities in the same process.
+ * <p>
+ * Every city has its own map, planner, patient provider and metrics. The
+ * cities share a fixed pool of threads: a task performs a few steps of one
+ * city and then puts the city back at the end of the queue, so a city with
+ * expensive replannings can not starve the others.
+ *
+ * <pre>
+ * java -cp Planner.jar main.MultiCity [options] city1.pddl planner.PSOPlanner 0.6 10 city2.pddl planner.HungarianPlanner 0.4 20 ...
+ * </pre>
+ *
+ * Options: <code>--threads=N</code> (default: number of processors),
+ * <code>--slice=steps</code> (steps per task, default 1),
+ * <code>--deadline</code>, <code>--fallback</code> and
+ * <code>--coalesce</code> as in {@link Main},
+ * <code>--demand-model</code> and its settings as in {@link Main},
+ * <code>--seed=N</code> for the patient generators (default 504),
+ * <code>--rate</code> as in {@link Main} and
+ * <code>--metrics-dir=dir</code> to export the metrics of every city.
+ */
+public class MultiCity {
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<>();
+		args = Main.parseArgs(args, options);
+		if (args.length == 0 || args.length % 4 != 0) {
+			System.err.println("Expected groups of: city.pddl planner.Class spawnProbability maxPatients");
+			System.exit(1);
+		}
+
+		int threads = Integer.parseInt(
+				options.getOrDefault("threads", Integer.toString(Runtime.getRuntime().availableProcessors())));
+		int slice = Integer.parseInt(options.getOrDefault("slice", "1"));
+		long deadline = Main.deadline(options);
+		int coalesceWindow = Integer.parseInt(options.getOrDefault("coalesce", "0"));
+		String metricsDir = options.get("metrics-dir");
+		Metrics.Format metricsFormat = Metrics.Format
+				.valueOf(options.getOrDefault("metrics-format", "json").toUpperCase());
+
+		// every city gets its own stream, split in the order of the arguments
+		SplitMix64 random = new SplitMix64(Long.parseLong(options.getOrDefault("seed", "504")));
+		List<CitySimulation> cities = new ArrayList<>();
+		for (int i = 0; i < args.length; i += 4) {
+			CityMap map = CityParser.parse(args[i]);
+			map.setDemandModel(Main.demandModel(options, map));
+			Planner planner = (Planner) Class.forName(args[i + 1]).getConstructor().newInstance();
+			if (options.containsKey("deadline")) {
+				Planner fallback = (Planner) Class
+						.forName(options.getOrDefault("fallback", "planner.HungarianPlanner")).getConstructor()
+						.newInstance();
+				planner = new DeadlinePlanner(planner, fallback);
+			}
+			RandomPatientProvider provider = options.containsKey("rate")
+					? RandomPatientProvider.poisson(Double.parseDouble(options.get("rate")),
+							Integer.parseInt(args[i + 3]), map, random.split())
+					: new RandomPatientProvider(Double.parseDouble(args[i + 2]), Integer.parseInt(args[i + 3]), map,
+							random.split());
+			String name = "city" + cities.size() + "-" + new File(args[i]).getName().split(".pddl")[0];
+			cities.add(new CitySimulation(name, map, planner, provider, deadline, coalesceWindow));
+		}
+
+		long start = System.currentTimeMillis();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		CountDownLatch finished = new CountDownLatch(cities.size());
+		for (CitySimulation city : cities) {
+			pool.execute(new Runnable() {
+				@Override
+				public void run() {
+					boolean more = true;
+					try {
+						for (int i = 0; i < slice && more; i++) {
+							more = city.step();
+						}
+					} catch (RuntimeException e) {
+						System.err.println(city.getName() + " failed at step " + city.getStep() + ": " + e);
+						more = false;
+					}
+					if (more) {
+						pool.execute(this);
+					} else {
+						finished.countDown();
+					}
+				}
+			});
+		}
+		finished.await();
+		pool.shutdown();
+		long elapsed = System.currentTimeMillis() - start;
+
+		System.out.println("\nDone in " + elapsed + " ms with " + threads + " threads");
+		for (CitySimulation city : cities) {
+			Histogram solveTime = city.getMetrics().histogram("planner_solve_micros");
+			System.out.println(city.getName() + ":");
+			System.out.println("  Steps: " + city.getStep());
+			System.out.println("  Total distance travelled: " + city.getTotalDistance());
+			System.out.println("  Total time patients waited: " + city.getTotalWaitingTime());
+			System.out.println("  Replannings: " + city.getMetrics().counter("replans").get());
+			System.out.println("  Planning time p50/p99/max (us): " + solveTime.quantile(0.5) + "/"
+					+ solveTime.quantile(0.99) + "/" + solveTime.getMax());
+			System.out.println("  Step wall time (ms): " + city.getWallNanos() / 1000000);
+			if (metricsDir != null) {
+				new File(metricsDir).mkdirs();
+				String extension = metricsFormat == Metrics.Format.JSON ? ".json" : ".prom";
+				city.getMetrics().export(metricsFormat, new File(metricsDir, city.getName() + extension).getPath());
+			}
+		}
+	}
+}
@@ -0,0 +1,261 @@
+package main;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import journal.JournalReader;
+import metrics.Histogram;
+import metrics.Metrics;
+import model.Action;
+import model.ActionDrop;
+import model.ActionMove;
+import model.ActionPick;
+import model.Ambulance;
+import model.CityMap;
+import model.CityMap.Print;
+import model.CityParser;
+import model.Patient;
+import planner.DeadlinePlanner;
+import planner.Planner;
+
+/**
+ * Re-executes a run recorded by {@link Main} in its <code>.descr</code> log
+ * or in its binary journal.
+ * <p>
+ * The same patients are spawned and the same actions are performed at the
+ * same steps, checking their preconditions. The state at every replanning,
+ * the final state (only recorded in the <code>.descr</code> log) and the
+ * total distance are compared with the recorded ones. Runs restored from a
+ * checkpoint are refused. If a planner is given it is called at every
+ * recorded replanning on exactly the same state, with the recorded deadline
+ * unless <code>--deadline</code> is given, and its time is compared with the
+ * recorded one, so that production logs can be used as benchmarks.
+ *
+ * <pre>
+ * java -cp Planner.jar main.Replay test.pddl logs/test.[timestamp].descr [planner.PSOPlanner]
+ * java -cp Planner.jar main.Replay test.pddl logs/test.[timestamp].000.journal [planner.PSOPlanner] [--deadline=200]
+ * </pre>
+ */
+public class Replay {
+
+	/**
+	 * Patient spawned in the recorded run.
+	 */
+	private static class RecordedPatient {
+		private int node;
+		private int id;
+		private int severity;
+
+		private RecordedPatient(int node, int id, int severity) {
+			this.node = node;
+			this.id = id;
+			this.severity = severity;
+		}
+	}
+
+	/**
+	 * Everything that happened in one recorded step.
+	 */
+	private static class RecordedStep {
+		private int step;
+		private boolean replanning;
+		private long plannedMicros = -1;
+		private long deadline = Long.MAX_VALUE;
+		// checksum of the state the planner was called on, null if not recorded
+		private Integer state;
+		private List<String> actions = new ArrayList<>();
+		private List<RecordedPatient> added = new ArrayList<>();
+	}
+
+	private static final Pattern MOVE = Pattern.compile("move\\(A(\\d+) (\\d+) -> (\\d+)\\)");
+	private static final Pattern PICK = Pattern.compile("pick\\(A(\\d+) P(\\d+) @ N(\\d+)\\)");
+	private static final Pattern DROP = Pattern.compile("drop\\(A(\\d+) P(\\d+) @ N(\\d+)\\)");
+	private static final Pattern ADDED = Pattern.compile("Added P(\\d+) \\((\\d+)\\) @ N(\\d+)");
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<>();
+		args = Main.parseArgs(args, options);
+		CityMap map = CityParser.parse(args[0]);
+		Planner planner = args.length > 2 ? (Planner) Class.forName(args[2]).getConstructor().newInstance() : null;
+		// the deadline of the recording unless one is given
+		Long deadline = options.containsKey("deadline") ? Main.deadline(options) : null;
+
+		List<RecordedStep> steps = new ArrayList<>();
+		List<String> recordedFinalState = new ArrayList<>();
+		double recordedDistance = parse(args[1], steps, recordedFinalState);
+
+		Metrics metrics = new Metrics();
+		Histogram recordedTime = metrics.histogram("recorded_solve_micros");
+		Histogram replayTime = metrics.histogram("replay_solve_micros");
+		// as in Main, the fallback is used when the planner misses the deadline
+		boolean deadlineRecorded = steps.stream().anyMatch(rs -> rs.deadline != Long.MAX_VALUE);
+		if (planner != null && (deadline != null ? deadline != Long.MAX_VALUE : deadlineRecorded)) {
+			Planner fallback = (Planner) Class.forName(options.getOrDefault("fallback", "planner.HungarianPlanner"))
+					.getConstructor().newInstance();
+			planner = new DeadlinePlanner(planner, fallback);
+		}
+		if (planner != null) {
+			planner.setMetrics(metrics);
+		}
+
+		double totalDistance = 0;
+		int statesChecked = 0;
+		for (RecordedStep rs : steps) {
+			if (rs.replanning && rs.state != null) {
+				if (map.stateChecksum() != rs.state)
+					throw new IllegalStateException("Step " + rs.step + ": replanning on a different state");
+				statesChecked++;
+			}
+			if (rs.replanning && planner != null) {
+				long start = System.nanoTime();
+				planner.solve(map, deadline != null ? deadline : rs.deadline);
+				long micros = (System.nanoTime() - start) / 1000;
+				replayTime.record(micros);
+				if (rs.plannedMicros >= 0) {
+					recordedTime.record(rs.plannedMicros);
+					System.out.printf("Step %d: replanned in %d us (recorded %d us)\n", rs.step, micros,
+							rs.plannedMicros);
+				} else {
+					System.out.printf("Step %d: replanned in %d us\n", rs.step, micros);
+				}
+			}
+
+			for (String actionText : rs.actions) {
+				Action a = toAction(actionText, map);
+				try {
+					map.performAction(a);
+				} catch (IllegalStateException e) {
+					throw new IllegalStateException("Step " + rs.step + ": can not perform " + actionText, e);
+				}
+				if (a instanceof ActionMove) {
+					totalDistance += map.shortestDistance(((ActionMove) a).getFrom(), ((ActionMove) a).getTo());
+				}
+			}
+
+			for (RecordedPatient recorded : rs.added) {
+				Patient patient = map.newPatient(recorded.node, recorded.severity);
+				if (patient.getId() != recorded.id)
+					throw new IllegalStateException("Step " + rs.step + ": spawned P" + patient.getId()
+							+ " instead of P" + recorded.id);
+				map.spawn(patient);
+			}
+		}
+
+		// compare only the ambulance lines, as done while parsing the log
+		List<String> finalState = new ArrayList<>();
+		for (String line : map.represent(Print.AMBULANCES_LOCATIONS).split("\n")) {
+			line = line.trim();
+			if (line.startsWith("A") && line.contains(" @ N"))
+				finalState.add(line);
+		}
+		// journals do not record the final state
+		boolean stateChecked = !recordedFinalState.isEmpty();
+		boolean sameState = !stateChecked || finalState.equals(recordedFinalState);
+		boolean sameDistance = Double.isNaN(recordedDistance) || Math.abs(totalDistance - recordedDistance) < 1e-6;
+
+		System.out.println("\nReplayed " + steps.size() + " steps");
+		System.out.println("  States at replannings: " + statesChecked + " equal");
+		System.out.println("  Final state: " + (!stateChecked ? "not checked" : sameState ? "equal"
+				: "DIFFERENT " + finalState));
+		System.out.println("  Total distance travelled: " + totalDistance + (sameDistance ? "" : " (recorded "
+				+ recordedDistance + ")"));
+		if (planner != null) {
+			System.out.println("  Replannings: " + replayTime.getCount());
+			System.out.println("  Planning time p50/p99/max (us): " + replayTime.quantile(0.5) + "/"
+					+ replayTime.quantile(0.99) + "/" + replayTime.getMax());
+			if (recordedTime.getCount() > 0) {
+				System.out.println("  Recorded planning time p50/p99/max (us): " + recordedTime.quantile(0.5) + "/"
+						+ recordedTime.quantile(0.99) + "/" + recordedTime.getMax());
+			}
+		}
+
+		if (!sameState || !sameDistance)
+			System.exit(1);
+	}
+
+	/**
+	 * Reads the <code>.descr</code> log, journals are read through their text
+	 * view.
+	 *
+	 * @param fileName
+	 *            log to read
+	 * @param steps
+	 *            list where to put the recorded steps
+	 * @param finalState
+	 *            list where to put the final ambulance locations
+	 * @return recorded total distance, NaN if the run did not end
+	 * @throws IOException
+	 */
+	private static double parse(String fileName, List<RecordedStep> steps, List<String> finalState)
+			throws IOException {
+		double distance = Double.NaN;
+		try (BufferedReader in = new BufferedReader(fileName.endsWith(".journal")
+				? new StringReader(JournalReader.toText(fileName)) : new FileReader(fileName))) {
+			RecordedStep current = null;
+			boolean done = false;
+			String line;
+			while ((line = in.readLine()) != null) {
+				line = line.trim();
+				if (line.startsWith("Restored step"))
+					throw new IOException("Runs restored from a checkpoint can not be replayed");
+				if (done) {
+					if (line.startsWith("A") && line.contains(" @ N")) {
+						finalState.add(line);
+					} else if (line.startsWith("Total distance travelled: ")) {
+						distance = Double.parseDouble(line.substring("Total distance travelled: ".length()));
+					}
+				} else if (line.startsWith("Step:")) {
+					current = new RecordedStep();
+					current.step = Integer.parseInt(line.substring("Step:".length()));
+					steps.add(current);
+				} else if (line.equals("Done!")) {
+					done = true;
+				} else if (current == null) {
+					continue;
+				} else if (line.equals("Replanning...")) {
+					current.replanning = true;
+				} else if (line.startsWith("Planned in ")) {
+					current.plannedMicros = Long.parseLong(line.split(" ")[2]);
+				} else if (line.startsWith("Deadline: ")) {
+					current.deadline = Long.parseLong(line.split(" ")[1]);
+				} else if (line.startsWith("State: ")) {
+					current.state = Integer.parseUnsignedInt(line.substring("State: ".length()), 16);
+				} else if (line.startsWith("move(") || line.startsWith("pick(") || line.startsWith("drop(")) {
+					current.actions.add(line);
+				} else if (line.startsWith("Added ")) {
+					Matcher m = ADDED.matcher(line);
+					if (!m.find())
+						throw new IOException("Can not parse " + line);
+					current.added.add(new RecordedPatient(Integer.parseInt(m.group(3)),
+							Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2))));
+				}
+			}
+		}
+		return distance;
+	}
+
+	private static Action toAction(String text, CityMap map) {
+		Matcher m;
+		if ((m = MOVE.matcher(text)).matches()) {
+			Ambulance amb = map.getAmbulanceById(Integer.parseInt(m.group(1)));
+			return new ActionMove(amb, Integer.parseInt(m.group(2)), Integer.parseInt(m.group(3)));
+		} else if ((m = PICK.matcher(text)).matches()) {
+			Ambulance amb = map.getAmbulanceById(Integer.parseInt(m.group(1)));
+			Patient p = map.getPatientById(Integer.parseInt(m.group(2)));
+			return new ActionPick(amb, Integer.parseInt(m.group(3)), p);
+		} else if ((m = DROP.matcher(text)).matches()) {
+			Ambulance amb = map.getAmbulanceById(Integer.parseInt(m.group(1)));
+			Patient p = map.getPatientById(Integer.parseInt(m.group(2)));
+			return new ActionDrop(amb, Integer.parseInt(m.group(3)), p);
+		}
+		throw new IllegalArgumentException("Unknown action " + text);
+	}
+}
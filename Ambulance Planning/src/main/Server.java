@@ -0,0 +1,217 @@
+package main;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+
+import metrics.Histogram;
+import metrics.Metrics;
+import model.Action;
+import model.ActionMove;
+import model.Ambulance;
+import model.CityMap;
+import model.CityParser;
+import model.Patient;
+import planner.Planner;
+import utils.Json;
+
+/**
+ * Long-running dispatch server.
+ * <p>
+ * Keeps the city (with its precomputed shortest paths) and the planners in
+ * memory between requests, so that the JVM gets warm and no request pays for
+ * parsing or class loading. Requests and responses are JSON objects, one per
+ * line:
+ *
+ * <pre>
+ * {"cmd": "load", "file": "test.pddl"}
+ * {"cmd": "planner", "class": "planner.PSOPlanner"}
+ * {"cmd": "patient", "node": 3, "severity": 2}
+ * {"cmd": "plan", "deadline": 200}
+ * {"cmd": "step"}
+ * {"cmd": "state"}
+ * {"cmd": "metrics"}
+ * {"cmd": "quit"}
+ * </pre>
+ *
+ * Every response has an <code>ok</code> field, and an <code>error</code>
+ * field when it is false. Without arguments the server talks over
+ * stdin/stdout, with a port it listens on the loopback interface and serves
+ * one client at a time (see {@link ServerClient}).
+ */
+public class Server {
+
+	public static void main(String[] args) throws IOException {
+		// planners print debug output, keep stdout for the responses
+		PrintStream stdout = System.out;
+		System.setOut(System.err);
+
+		Server server = new Server();
+		if (args.length == 0) {
+			server.serve(new BufferedReader(new InputStreamReader(System.in)), new PrintWriter(stdout, true));
+			return;
+		}
+
+		try (ServerSocket socket = new ServerSocket(Integer.parseInt(args[0]), 0, InetAddress.getLoopbackAddress())) {
+			System.err.println("Listening on " + socket.getLocalSocketAddress());
+			while (!server.stopped) {
+				try (Socket client = socket.accept()) {
+					server.serve(new BufferedReader(new InputStreamReader(client.getInputStream())),
+							new PrintWriter(client.getOutputStream(), true));
+				}
+			}
+		}
+	}
+
+	private final Metrics metrics = new Metrics();
+	private final Histogram solveTime = metrics.histogram("planner_solve_micros");
+	private final Map<String, Planner> planners = new HashMap<>();
+
+	private CityMap map;
+	private Planner planner;
+	private Map<Ambulance, List<Action>> plan = new HashMap<>();
+	private int step;
+	private double totalDistance;
+	private boolean stopped;
+
+	/**
+	 * Handles a single request.
+	 *
+	 * @param request
+	 *            parsed request
+	 * @return response without the surrounding braces
+	 */
+	private String handle(Map<String, String> request) throws Exception {
+		String cmd = request.get("cmd");
+		if (cmd == null)
+			throw new IllegalArgumentException("Missing cmd");
+
+		switch (cmd) {
+		case "load":
+			map = CityParser.parse(request.get("file"));
+			if (map == null)
+				throw new IllegalArgumentException("Can not load " + request.get("file"));
+			plan = new HashMap<>();
+			step = 0;
+			totalDistance = 0;
+			// planners remember the previous city by patient id, start over
+			planners.clear();
+			if (planner != null) {
+				planner = planners.computeIfAbsent(planner.getClass().getName(), this::newPlanner);
+			}
+			return "\"nodes\": " + map.nodesCount() + ", \"ambulances\": " + map.ambulanceCount()
+					+ ", \"hospitals\": " + map.hospitalCount() + ", \"patients\": " + map.getPatients().size();
+		case "planner":
+			planner = planners.computeIfAbsent(request.get("class"), this::newPlanner);
+			return "\"planner\": " + Json.quote(planner.getClass().getName());
+		case "patient": {
+			checkMap();
+			int node = Integer.parseInt(request.get("node"));
+			int severity = Integer.parseInt(request.getOrDefault("severity", "1"));
+			if (node < 0 || node >= map.nodesCount() || severity < 1 || severity > 3)
+				throw new IllegalArgumentException("Invalid patient");
+			Patient patient = map.newPatient(node, severity);
+			map.spawn(patient);
+			metrics.counter("patients_spawned", "severity", Integer.toString(severity)).increment();
+			return "\"id\": " + patient.getId();
+		}
+		case "plan": {
+			checkMap();
+			if (planner == null)
+				throw new IllegalStateException("No planner selected");
+			long deadline = Long.parseLong(request.getOrDefault("deadline", Long.toString(Long.MAX_VALUE)));
+			long start = System.nanoTime();
+			plan = planner.solve(map, deadline);
+			long micros = (System.nanoTime() - start) / 1000;
+			solveTime.record(micros);
+			metrics.counter("replans").increment();
+			return "\"micros\": " + micros + ", \"plan\": " + planToJson();
+		}
+		case "step": {
+			checkMap();
+			StringJoiner executed = new StringJoiner(", ", "[", "]");
+			for (Ambulance amb : plan.keySet()) {
+				if (!plan.get(amb).isEmpty()) {
+					Action a = plan.get(amb).remove(0);
+					map.performAction(a);
+					if (a instanceof ActionMove) {
+						totalDistance += map.shortestDistance(((ActionMove) a).getFrom(), ((ActionMove) a).getTo());
+					}
+					executed.add(Json.quote(a.toString()));
+				}
+			}
+			step++;
+			boolean done = plan.values().stream().allMatch(List::isEmpty);
+			return "\"step\": " + step + ", \"executed\": " + executed + ", \"done\": " + done;
+		}
+		case "state": {
+			checkMap();
+			StringJoiner ambs = new StringJoiner(", ", "[", "]");
+			map.getAmbulances().forEach(a -> ambs.add(Json.quote(a.toString())));
+			StringJoiner pats = new StringJoiner(", ", "[", "]");
+			map.getPatients().forEach(p -> pats.add(Json.quote(p.toString())));
+			return "\"step\": " + step + ", \"distance\": " + totalDistance + ", \"ambulances\": " + ambs
+					+ ", \"patients\": " + pats;
+		}
+		case "metrics":
+			return "\"metrics\": " + metrics.toJson().trim();
+		case "quit":
+			stopped = true;
+			return "\"bye\": true";
+		default:
+			throw new IllegalArgumentException("Unknown cmd " + cmd);
+		}
+	}
+
+	private void checkMap() {
+		if (map == null)
+			throw new IllegalStateException("No city loaded");
+	}
+
+	private Planner newPlanner(String className) {
+		try {
+			Planner p = (Planner) Class.forName(className).getConstructor().newInstance();
+			p.setMetrics(metrics);
+			return p;
+		} catch (ReflectiveOperationException | ClassCastException e) {
+			throw new IllegalArgumentException("Unknown planner " + className);
+		}
+	}
+
+	private String planToJson() {
+		StringJoiner json = new StringJoiner(", ", "{", "}");
+		for (Map.Entry<Ambulance, List<Action>> e : plan.entrySet()) {
+			StringJoiner actions = new StringJoiner(", ", "[", "]");
+			e.getValue().forEach(a -> actions.add(Json.quote(a.toString())));
+			json.add(Json.quote("A" + e.getKey().getId()) + ": " + actions);
+		}
+		return json.toString();
+	}
+
+	/**
+	 * Answers requests until the input ends or a quit request arrives.
+	 */
+	private void serve(BufferedReader in, PrintWriter out) throws IOException {
+		String line;
+		while (!stopped && (line = in.readLine()) != null) {
+			if (line.trim().isEmpty())
+				continue;
+			String response;
+			try {
+				response = "{\"ok\": true, " + handle(Json.parseObject(line)) + "}";
+			} catch (Exception e) {
+				response = "{\"ok\": false, \"error\": " + Json.quote(String.valueOf(e.getMessage())) + "}";
+			}
+			out.println(response.replace('\n', ' '));
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package main;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * Local client for {@link Server}.
+ * <p>
+ * Sends the requests read from a file (or from stdin) one by one, printing
+ * every response together with its round trip time.
+ *
+ * <pre>
+ * java -cp Planner.jar main.ServerClient 7070 requests.jsonl
+ * </pre>
+ */
+public class ServerClient {
+
+	public static void main(String[] args) throws IOException {
+		int port = Integer.parseInt(args[0]);
+		BufferedReader requests = new BufferedReader(
+				args.length > 1 ? new FileReader(args[1]) : new InputStreamReader(System.in));
+
+		try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+			PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+			String request;
+			while ((request = requests.readLine()) != null) {
+				if (request.trim().isEmpty())
+					continue;
+				long start = System.nanoTime();
+				out.println(request);
+				String response = in.readLine();
+				if (response == null) {
+					System.out.println("Connection closed by the server");
+					break;
+				}
+				System.out.printf("%s\n  -> (%d us) %s\n", request, (System.nanoTime() - start) / 1000, response);
+			}
+		}
+		requests.close();
+	}
+}
@@ -0,0 +1,225 @@
+package main;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import metrics.Histogram;
+import model.CityMap;
+import model.CityParser;
+import model.StressPatientProvider;
+import model.StressPatientProvider.StressSettings;
+import planner.DeadlinePlanner;
+import planner.Planner;
+
+/**
+ * Finds the load a planner can sustain.
+ * <p>
+ * The city is simulated once per arrival rate with a
+ * {@link StressPatientProvider}, recording at every step the number of
+ * waiting patients (the backlog) and the planning time. A run is unstable
+ * when, in the second half of the arrival phase, the backlog keeps growing
+ * by more than <code>--growth</code> patients per step. The step where the
+ * backlog (or the planning time) starts to grow is found by fitting trends on
+ * longer and longer suffixes of the run.
+ *
+ * <pre>
+ * java -cp Planner.jar main.StressTest [options] city.pddl planner.PSOPlanner
+ * </pre>
+ *
+ * Options: <code>--rates=r1,r2,...</code> (mean arrivals per step, default
+ * 0.25,0.5,1,2,4), <code>--steps</code>, <code>--ramp</code>,
+ * <code>--burst-every</code>, <code>--burst-length</code>,
+ * <code>--burst-factor</code>, <code>--hotspots</code>,
+ * <code>--hotspot-share</code>, <code>--severity-mix=p1,p2,p3</code> and
+ * <code>--seed</code> for the load (see {@link StressSettings}),
+ * <code>--deadline</code> and <code>--fallback</code> as in {@link Main},
+ * <code>--window=steps</code> (default 20), <code>--growth</code> (default
+ * 0.05) and <code>--csv=prefix</code> to write the time series of every run.
+ */
+public class StressTest {
+
+	/**
+	 * Growth of the planning time per replanning, relative to its mean, above
+	 * which it counts as growing.
+	 */
+	private static final double LATENCY_GROWTH = 0.01;
+
+	/**
+	 * Simulations can not catch up forever once the arrivals are over.
+	 */
+	private static final int DRAIN_STEPS_FACTOR = 10;
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<>();
+		args = Main.parseArgs(args, options);
+		if (args.length != 2) {
+			System.err.println("Expected: city.pddl planner.Class");
+			System.exit(1);
+		}
+
+		// planners print debug output, keep stdout for the report
+		PrintStream report = System.out;
+		System.setOut(System.err);
+
+		List<Double> rates = new ArrayList<>();
+		for (String r : options.getOrDefault("rates", "0.25,0.5,1,2,4").split(",")) {
+			rates.add(Double.parseDouble(r));
+		}
+		int window = Integer.parseInt(options.getOrDefault("window", "20"));
+		double growth = Double.parseDouble(options.getOrDefault("growth", "0.05"));
+		long deadline = Main.deadline(options);
+		String csvPrefix = options.get("csv");
+
+		report.printf("%8s %8s %8s %10s %10s %10s %8s %10s %10s %10s  %s\n", "rate", "patients", "replans",
+				"p50(us)", "p99(us)", "max(us)", "backlog", "slope", "backlogAt", "latencyAt", "verdict");
+		for (double rate : rates) {
+			StressSettings settings = settings(options);
+			settings.RATE = rate;
+
+			CityMap map = CityParser.parse(args[0]);
+			Planner planner = (Planner) Class.forName(args[1]).getConstructor().newInstance();
+			if (options.containsKey("deadline")) {
+				Planner fallback = (Planner) Class
+						.forName(options.getOrDefault("fallback", "planner.HungarianPlanner")).getConstructor()
+						.newInstance();
+				planner = new DeadlinePlanner(planner, fallback);
+			}
+			int initialPatients = map.getPatients().size();
+			CitySimulation city = new CitySimulation("rate" + rate, map, planner,
+					new StressPatientProvider(map, settings), deadline, 0);
+
+			List<Long> backlog = new ArrayList<>();
+			List<Long> latency = new ArrayList<>();
+			List<Integer> latencySteps = new ArrayList<>();
+			int maxSteps = settings.STEPS * DRAIN_STEPS_FACTOR;
+			boolean more = true;
+			while (more && city.getStep() < maxSteps) {
+				more = city.step();
+				backlog.add(city.getWaitingPatients());
+				if (city.getLastSolveMicros() >= 0) {
+					latency.add(city.getLastSolveMicros());
+					latencySteps.add(city.getStep());
+				}
+			}
+
+			// only the arrival phase tells if the planner keeps up
+			int arrivalSteps = Math.min(settings.STEPS, backlog.size());
+			double[] b = new double[arrivalSteps];
+			long maxBacklog = 0;
+			for (int i = 0; i < arrivalSteps; i++) {
+				b[i] = backlog.get(i);
+				maxBacklog = Math.max(maxBacklog, backlog.get(i));
+			}
+			int latencyCount = 0;
+			while (latencyCount < latencySteps.size() && latencySteps.get(latencyCount) <= arrivalSteps) {
+				latencyCount++;
+			}
+			double[] l = new double[latencyCount];
+			for (int i = 0; i < latencyCount; i++) {
+				l[i] = latency.get(i);
+			}
+
+			// trends in the second half of the arrival phase
+			double backlogSlope = trend(b, arrivalSteps / 2, arrivalSteps, false);
+			boolean unstable = backlogSlope > growth;
+			boolean latencyGrowing = trend(l, latencyCount / 2, latencyCount, true) > LATENCY_GROWTH;
+			int backlogOnset = unstable ? growthOnset(b, window, growth, false) : -1;
+			int latencyOnset = latencyGrowing ? growthOnset(l, window, LATENCY_GROWTH, true) : -1;
+
+			Histogram solveTime = city.getMetrics().histogram("planner_solve_micros");
+			report.printf("%8.2f %8d %8d %10d %10d %10d %8d %10.3f %10s %10s  %s\n", rate,
+					map.getPatients().size() - initialPatients, solveTime.getCount(), solveTime.quantile(0.5),
+					solveTime.quantile(0.99), solveTime.getMax(), maxBacklog, backlogSlope,
+					backlogOnset < 0 ? "-" : Integer.toString(backlogOnset + 1),
+					latencyOnset < 0 ? "-" : Integer.toString(latencySteps.get(latencyOnset)),
+					unstable ? "UNSTABLE" : more ? "NOT DRAINED" : "stable");
+
+			if (csvPrefix != null) {
+				try (PrintWriter csv = new PrintWriter(csvPrefix + "rate" + rate + ".csv")) {
+					csv.println("step,backlog,solve_micros");
+					int j = 0;
+					for (int i = 0; i < backlog.size(); i++) {
+						long micros = -1;
+						if (j < latencySteps.size() && latencySteps.get(j) == i + 1) {
+							micros = latency.get(j++);
+						}
+						csv.println((i + 1) + "," + backlog.get(i) + "," + (micros < 0 ? "" : Long.toString(micros)));
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Step from which the series grows: the earliest window boundary from
+	 * which the trend up to the end is above the threshold. Fitting a trend
+	 * on the whole suffix is robust to bursts and noise.
+	 *
+	 * @return index of the first sample, -1 if no suffix grows
+	 */
+	static int growthOnset(double[] series, int window, double threshold, boolean relative) {
+		for (int from = 0; from <= series.length - 2 * window; from += window) {
+			if (trend(series, from, series.length, relative) > threshold)
+				return from;
+		}
+		return -1;
+	}
+
+	/**
+	 * Builds the load from the command line options.
+	 */
+	private static StressSettings settings(Map<String, String> options) {
+		StressSettings settings = new StressSettings();
+		settings.STEPS = Integer.parseInt(options.getOrDefault("steps", Integer.toString(settings.STEPS)));
+		settings.RAMP = Double.parseDouble(options.getOrDefault("ramp", Double.toString(settings.RAMP)));
+		settings.BURST_EVERY = Integer
+				.parseInt(options.getOrDefault("burst-every", Integer.toString(settings.BURST_EVERY)));
+		settings.BURST_LENGTH = Integer
+				.parseInt(options.getOrDefault("burst-length", Integer.toString(settings.BURST_LENGTH)));
+		settings.BURST_FACTOR = Double
+				.parseDouble(options.getOrDefault("burst-factor", Double.toString(settings.BURST_FACTOR)));
+		settings.HOTSPOTS = Integer.parseInt(options.getOrDefault("hotspots", Integer.toString(settings.HOTSPOTS)));
+		settings.HOTSPOT_SHARE = Double
+				.parseDouble(options.getOrDefault("hotspot-share", Double.toString(settings.HOTSPOT_SHARE)));
+		if (options.containsKey("severity-mix")) {
+			String[] mix = options.get("severity-mix").split(",");
+			for (int i = 0; i < 3; i++) {
+				settings.SEVERITY_MIX[i] = Double.parseDouble(mix[i]);
+			}
+		}
+		settings.SEED = Long.parseLong(options.getOrDefault("seed", Long.toString(settings.SEED)));
+		return settings;
+	}
+
+	/**
+	 * Least squares slope of the series between the given indices.
+	 *
+	 * @param relative
+	 *            if the slope is divided by the mean of the samples
+	 */
+	static double trend(double[] series, int from, int to, boolean relative) {
+		int n = to - from;
+		if (n < 2)
+			return 0;
+		double meanX = (n - 1) / 2.0;
+		double meanY = 0;
+		for (int i = from; i < to; i++) {
+			meanY += series[i];
+		}
+		meanY /= n;
+		double num = 0;
+		double den = 0;
+		for (int i = from; i < to; i++) {
+			double dx = i - from - meanX;
+			num += dx * (series[i] - meanY);
+			den += dx * dx;
+		}
+		if (relative)
+			return meanY > 0 ? num / den / meanY : 0;
+		return num / den;
+	}
+}
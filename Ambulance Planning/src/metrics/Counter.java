@@ -0,0 +1,34 @@
+package metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Monotonic counter that can be incremented from many threads without locks.
+ */
+public class Counter {
+
+	private final LongAdder value = new LongAdder();
+
+	Counter() {
+	}
+
+	public void add(long delta) {
+		value.add(delta);
+	}
+
+	public long get() {
+		return value.sum();
+	}
+
+	/**
+	 * Sets the value, used when restoring a checkpoint.
+	 */
+	void set(long value) {
+		this.value.reset();
+		this.value.add(value);
+	}
+
+	public void increment() {
+		value.increment();
+	}
+}
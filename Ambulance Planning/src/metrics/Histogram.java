@@ -0,0 +1,124 @@
+package metrics;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative values with logarithmic buckets.
+ * <p>
+ * Bucket <code>0</code> holds zeros, bucket <code>i</code> holds values in
+ * <code>[2^(i-1); 2^i)</code>. Quantiles are therefore estimated within a
+ * factor of two, which is plenty for latencies spanning several orders of
+ * magnitude.
+ */
+public class Histogram {
+
+	public static final int BUCKETS = 64;
+
+	/**
+	 * Index of the bucket containing the given value.
+	 */
+	static int bucketOf(long value) {
+		if (value <= 0)
+			return 0;
+		return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+	}
+
+	/**
+	 * Exclusive upper bound of the given bucket.
+	 */
+	public static long upperBound(int bucket) {
+		return bucket >= 63 ? Long.MAX_VALUE : 1L << bucket;
+	}
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	Histogram() {
+	}
+
+	public long getBucketCount(int bucket) {
+		return counts.get(bucket);
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long n = getCount();
+		return n == 0 ? 0 : (double) getSum() / n;
+	}
+
+	public long getSum() {
+		return sum.sum();
+	}
+
+	/**
+	 * Estimate of the given quantile.
+	 *
+	 * @param q
+	 *            quantile in <code>[0; 1]</code>
+	 * @return upper bound of the bucket containing the quantile, never more
+	 *         than the max recorded value
+	 */
+	public long quantile(double q) {
+		long n = getCount();
+		if (n == 0)
+			return 0;
+		long rank = (long) Math.ceil(q * n);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank && seen > 0) {
+				return i == 0 ? 0 : Math.min(upperBound(i) - 1, getMax());
+			}
+		}
+		return getMax();
+	}
+
+	/**
+	 * Reads the state written by {@link #writeState(DataOutput)}, replacing
+	 * the current one.
+	 */
+	void readState(DataInput in) throws IOException {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, in.readLong());
+		}
+		count.reset();
+		count.add(in.readLong());
+		sum.reset();
+		sum.add(in.readLong());
+		max.set(in.readLong());
+	}
+
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+		counts.incrementAndGet(bucketOf(value));
+		count.increment();
+		sum.add(value);
+		long cur;
+		while (value > (cur = max.get()) && !max.compareAndSet(cur, value))
+			;
+	}
+
+	void writeState(DataOutput out) throws IOException {
+		for (int i = 0; i < BUCKETS; i++) {
+			out.writeLong(counts.get(i));
+		}
+		out.writeLong(getCount());
+		out.writeLong(getSum());
+		out.writeLong(getMax());
+	}
+}
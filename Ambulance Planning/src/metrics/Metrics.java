@@ -0,0 +1,221 @@
+package metrics;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Registry of counters, histograms and gauges.
+ * <p>
+ * Metrics are identified by a name and optional label pairs, e.g.
+ * <code>histogram("patient_wait_steps", "severity", "3")</code>. Lookups are
+ * lock-free, but hot paths should keep a reference to the metric instead of
+ * looking it up every time.
+ */
+public class Metrics {
+
+	public static enum Format {
+		JSON, PROMETHEUS
+	}
+
+	private static final Metrics GLOBAL = new Metrics();
+
+	/**
+	 * Registry used when nothing else is configured.
+	 */
+	public static Metrics global() {
+		return GLOBAL;
+	}
+
+	/**
+	 * Builds the key of a metric, labels are given as name/value pairs.
+	 */
+	private static String key(String name, String... labels) {
+		if (labels.length == 0)
+			return name;
+		if (labels.length % 2 != 0)
+			throw new IllegalArgumentException("Labels must be name/value pairs");
+		StringBuilder sb = new StringBuilder(name).append('{');
+		for (int i = 0; i < labels.length; i += 2) {
+			if (i > 0)
+				sb.append(',');
+			sb.append(labels[i]).append("=\"").append(labels[i + 1]).append('"');
+		}
+		return sb.append('}').toString();
+	}
+
+	private static String name(String key) {
+		int brace = key.indexOf('{');
+		return brace < 0 ? key : key.substring(0, brace);
+	}
+
+	/**
+	 * Labels of the key without braces, empty if there are none.
+	 */
+	private static String labels(String key) {
+		int brace = key.indexOf('{');
+		return brace < 0 ? "" : key.substring(brace + 1, key.length() - 1);
+	}
+
+	private static String jsonString(String s) {
+		return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+
+	private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+	private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+	private final Map<String, DoubleSupplier> gauges = new ConcurrentHashMap<>();
+
+	public Counter counter(String name, String... labels) {
+		return counters.computeIfAbsent(key(name, labels), k -> new Counter());
+	}
+
+	/**
+	 * Registers a value that is computed when the metrics are exported.
+	 */
+	public void gauge(String name, DoubleSupplier value, String... labels) {
+		gauges.put(key(name, labels), value);
+	}
+
+	public Histogram histogram(String name, String... labels) {
+		return histograms.computeIfAbsent(key(name, labels), k -> new Histogram());
+	}
+
+	/**
+	 * Restores counters and histograms written by
+	 * {@link #writeState(DataOutput)}. Gauges are computed and are not part
+	 * of the state.
+	 */
+	public void readState(DataInput in) throws IOException {
+		int counterCount = in.readInt();
+		for (int i = 0; i < counterCount; i++) {
+			counters.computeIfAbsent(in.readUTF(), k -> new Counter()).set(in.readLong());
+		}
+		int histogramCount = in.readInt();
+		for (int i = 0; i < histogramCount; i++) {
+			histograms.computeIfAbsent(in.readUTF(), k -> new Histogram()).readState(in);
+		}
+	}
+
+	public void writeState(DataOutput out) throws IOException {
+		Map<String, Counter> counters = new TreeMap<>(this.counters);
+		out.writeInt(counters.size());
+		for (Map.Entry<String, Counter> e : counters.entrySet()) {
+			out.writeUTF(e.getKey());
+			out.writeLong(e.getValue().get());
+		}
+		Map<String, Histogram> histograms = new TreeMap<>(this.histograms);
+		out.writeInt(histograms.size());
+		for (Map.Entry<String, Histogram> e : histograms.entrySet()) {
+			out.writeUTF(e.getKey());
+			e.getValue().writeState(out);
+		}
+	}
+
+	public String export(Format format) {
+		return format == Format.JSON ? toJson() : toPrometheus();
+	}
+
+	public void export(Format format, String fileName) throws FileNotFoundException {
+		PrintWriter pw = new PrintWriter(fileName);
+		pw.print(export(format));
+		pw.close();
+	}
+
+	/**
+	 * Exports all metrics as a JSON object.
+	 */
+	public String toJson() {
+		StringBuilder sb = new StringBuilder("{\n  \"counters\": {");
+		String sep = "\n";
+		for (Map.Entry<String, Counter> e : new TreeMap<>(counters).entrySet()) {
+			sb.append(sep).append("    ").append(jsonString(e.getKey())).append(": ").append(e.getValue().get());
+			sep = ",\n";
+		}
+		sb.append("\n  },\n  \"gauges\": {");
+		sep = "\n";
+		for (Map.Entry<String, DoubleSupplier> e : new TreeMap<>(gauges).entrySet()) {
+			double v = e.getValue().getAsDouble();
+			sb.append(sep).append("    ").append(jsonString(e.getKey())).append(": ")
+					.append(Double.isFinite(v) ? Double.toString(v) : "null");
+			sep = ",\n";
+		}
+		sb.append("\n  },\n  \"histograms\": {");
+		sep = "\n";
+		for (Map.Entry<String, Histogram> e : new TreeMap<>(histograms).entrySet()) {
+			Histogram h = e.getValue();
+			sb.append(sep).append("    ").append(jsonString(e.getKey())).append(": {");
+			sb.append("\"count\": ").append(h.getCount());
+			sb.append(", \"sum\": ").append(h.getSum());
+			sb.append(", \"max\": ").append(h.getMax());
+			sb.append(", \"mean\": ").append(h.getMean());
+			sb.append(", \"p50\": ").append(h.quantile(0.5));
+			sb.append(", \"p90\": ").append(h.quantile(0.9));
+			sb.append(", \"p99\": ").append(h.quantile(0.99));
+			sb.append(", \"buckets\": {");
+			String bucketSep = "";
+			for (int i = 0; i < Histogram.BUCKETS; i++) {
+				if (h.getBucketCount(i) > 0) {
+					sb.append(bucketSep).append("\"").append(Histogram.upperBound(i)).append("\": ")
+							.append(h.getBucketCount(i));
+					bucketSep = ", ";
+				}
+			}
+			sb.append("}}");
+			sep = ",\n";
+		}
+		sb.append("\n  }\n}\n");
+		return sb.toString();
+	}
+
+	/**
+	 * Exports all metrics in the Prometheus text exposition format.
+	 */
+	public String toPrometheus() {
+		StringBuilder sb = new StringBuilder();
+		String lastName = null;
+		for (Map.Entry<String, Counter> e : new TreeMap<>(counters).entrySet()) {
+			String name = name(e.getKey());
+			if (!name.equals(lastName))
+				sb.append("# TYPE ").append(name).append(" counter\n");
+			lastName = name;
+			sb.append(e.getKey()).append(' ').append(e.getValue().get()).append('\n');
+		}
+		for (Map.Entry<String, DoubleSupplier> e : new TreeMap<>(gauges).entrySet()) {
+			String name = name(e.getKey());
+			if (!name.equals(lastName))
+				sb.append("# TYPE ").append(name).append(" gauge\n");
+			lastName = name;
+			sb.append(e.getKey()).append(' ').append(e.getValue().getAsDouble()).append('\n');
+		}
+		for (Map.Entry<String, Histogram> e : new TreeMap<>(histograms).entrySet()) {
+			String name = name(e.getKey());
+			String labels = labels(e.getKey());
+			String prefix = labels.isEmpty() ? "" : labels + ",";
+			String suffix = labels.isEmpty() ? "" : "{" + labels + "}";
+			Histogram h = e.getValue();
+			if (!name.equals(lastName))
+				sb.append("# TYPE ").append(name).append(" histogram\n");
+			lastName = name;
+			long cumulative = 0;
+			for (int i = 0; i < Histogram.BUCKETS - 1; i++) {
+				cumulative += h.getBucketCount(i);
+				if (h.getBucketCount(i) > 0) {
+					// buckets are exclusive, le is inclusive
+					sb.append(name).append("_bucket{").append(prefix).append("le=\"")
+							.append(Histogram.upperBound(i) - 1).append("\"} ").append(cumulative).append('\n');
+				}
+			}
+			sb.append(name).append("_bucket{").append(prefix).append("le=\"+Inf\"} ").append(h.getCount())
+					.append('\n');
+			sb.append(name).append("_sum").append(suffix).append(' ').append(h.getSum()).append('\n');
+			sb.append(name).append("_count").append(suffix).append(' ').append(h.getCount()).append('\n');
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,63 @@
+package metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event covering one phase of the planning.
+ * <p>
+ * When recording is off the JIT removes the event, so it can stay in the
+ * production build. Record with
+ * <code>java -XX:StartFlightRecording=filename=run.jfr ...</code>.
+ */
+@Name("planner.PlanningPhase")
+@Label("Planning Phase")
+@Category({ "Ambulance Planning", "Planner" })
+@Description("Time spent in one phase of the planning")
+@StackTrace(false)
+public class PlanningPhaseEvent extends Event {
+
+	/**
+	 * Creates the event and starts timing it.
+	 */
+	public static PlanningPhaseEvent start(String phase) {
+		PlanningPhaseEvent event = new PlanningPhaseEvent();
+		event.phase = phase;
+		event.begin();
+		return event;
+	}
+
+	@Label("Phase")
+	String phase;
+
+	@Label("Patients")
+	int patients;
+
+	@Label("Ambulances")
+	int ambulances;
+
+	@Label("Nodes")
+	int nodes;
+
+	@Label("Iterations")
+	int iterations;
+
+	/**
+	 * Stops timing and commits the event with the sizes of the problem. Sizes
+	 * that do not make sense for the phase should be 0.
+	 */
+	public void finish(int patients, int ambulances, int nodes, int iterations) {
+		end();
+		if (shouldCommit()) {
+			this.patients = patients;
+			this.ambulances = ambulances;
+			this.nodes = nodes;
+			this.iterations = iterations;
+			commit();
+		}
+	}
+}
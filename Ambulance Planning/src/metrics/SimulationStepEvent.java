@@ -0,0 +1,58 @@
+package metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event covering one step of the simulation.
+ */
+@Name("planner.SimulationStep")
+@Label("Simulation Step")
+@Category({ "Ambulance Planning", "Simulation" })
+@Description("One step of the simulation, including the replanning if any")
+@StackTrace(false)
+public class SimulationStepEvent extends Event {
+
+	/**
+	 * Creates the event and starts timing it.
+	 */
+	public static SimulationStepEvent start(int step) {
+		SimulationStepEvent event = new SimulationStepEvent();
+		event.step = step;
+		event.begin();
+		return event;
+	}
+
+	@Label("Step")
+	int step;
+
+	@Label("Replanned")
+	boolean replanned;
+
+	@Label("Actions")
+	int actions;
+
+	@Label("New Patients")
+	int newPatients;
+
+	@Label("Waiting Patients")
+	int waitingPatients;
+
+	/**
+	 * Stops timing and commits the event.
+	 */
+	public void finish(boolean replanned, int actions, int newPatients, int waitingPatients) {
+		end();
+		if (shouldCommit()) {
+			this.replanned = replanned;
+			this.actions = actions;
+			this.newPatients = newPatients;
+			this.waitingPatients = waitingPatients;
+			commit();
+		}
+	}
+}
@@ -1,6 +1,40 @@
 package model;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 public abstract class Action {
+	static final byte MOVE = 0;
+	static final byte PICK = 1;
+	static final byte DROP = 2;
+
+	/**
+	 * Reads an action written by {@link #write(DataOutput)}, resolving
+	 * ambulances and patients on the {@link CityMap} passed as parameter
+	 * 
+	 * @param in
+	 * @param cityMap
+	 * @return the action
+	 * @throws IOException
+	 */
+	public static Action read(DataInput in, CityMap cityMap) throws IOException {
+		byte type = in.readByte();
+		Ambulance ambulance = cityMap.getAmbulanceById(in.readInt());
+		int a = in.readInt();
+		int b = in.readInt();
+		switch (type) {
+		case MOVE:
+			return new ActionMove(ambulance, a, b);
+		case PICK:
+			return new ActionPick(ambulance, a, cityMap.getPatientById(b));
+		case DROP:
+			return new ActionDrop(ambulance, a, cityMap.getPatientById(b));
+		default:
+			throw new IOException("Unknown action type " + type);
+		}
+	}
+
 	/**
 	 * Applies the effect of this action object on the {@link CityMap} object
 	 * 
@@ -26,4 +60,23 @@ public abstract class Action {
 		checkPreconditions(cityMap);
 		applyEffects(cityMap);
 	}
+
+	/**
+	 * Builds the same action on the {@link CityMap} passed as parameter,
+	 * resolving ambulances and patients by id, e.g. for a plan made on a
+	 * {@link CityMap#snapshot()}
+	 * 
+	 * @param cityMap
+	 * @return the action
+	 */
+	public abstract Action resolve(CityMap cityMap);
+
+	/**
+	 * Writes this action as a fixed size record: type, ambulance id and two
+	 * action specific integers
+	 * 
+	 * @param out
+	 * @throws IOException
+	 */
+	public abstract void write(DataOutput out) throws IOException;
 }
@@ -1,11 +1,26 @@
 package model;
 
+import java.io.DataOutput;
+import java.io.IOException;
+
 public class ActionDrop extends Action {
 
 	private Ambulance ambulance;
 	private int at;
 	private Patient p;
 
+	public Ambulance getAmbulance() {
+		return ambulance;
+	}
+
+	public int getAt() {
+		return at;
+	}
+
+	public Patient getPatient() {
+		return p;
+	}
+
 	/**
 	 * Builds an {@link ActionDrop} object with the specified ambulance,
 	 * dropping the specified patient at the specified node
@@ -50,4 +65,17 @@ public class ActionDrop extends Action {
 	public String toString() {
 		return String.format("drop(A%d P%d @ N%d)", ambulance.getId(), p.getId(), at);
 	}
+
+	@Override
+	public Action resolve(CityMap cityMap) {
+		return new ActionDrop(cityMap.getAmbulanceById(ambulance.getId()), at, cityMap.getPatientById(p.getId()));
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		out.writeByte(DROP);
+		out.writeInt(ambulance.getId());
+		out.writeInt(at);
+		out.writeInt(p.getId());
+	}
 }
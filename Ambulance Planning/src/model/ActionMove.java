@@ -1,5 +1,8 @@
 package model;
 
+import java.io.DataOutput;
+import java.io.IOException;
+
 public class ActionMove extends Action {
 
 	private Ambulance ambulance;
@@ -62,4 +65,17 @@ public class ActionMove extends Action {
 	public String toString() {
 		return String.format("move(A%d %d -> %d)", ambulance.getId(), from, to);
 	}
+
+	@Override
+	public Action resolve(CityMap cityMap) {
+		return new ActionMove(cityMap.getAmbulanceById(ambulance.getId()), from, to);
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		out.writeByte(MOVE);
+		out.writeInt(ambulance.getId());
+		out.writeInt(from);
+		out.writeInt(to);
+	}
 }
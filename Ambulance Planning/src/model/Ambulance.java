@@ -3,12 +3,14 @@
  */
 package model;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * @author federico
  *
  */
 public class Ambulance extends NodeContent {
-	private static int ID = 0;
+	private static final AtomicInteger ID = new AtomicInteger();
 
 	private final int id;
 	private Patient patient;
@@ -21,7 +23,7 @@ public class Ambulance extends NodeContent {
 	 * @param node
 	 */
 	Ambulance(int node) {
-		this(node, ID++, null, true);
+		this(node, ID.getAndIncrement(), null, true);
 	}
 
 	/**
@@ -37,8 +39,8 @@ public class Ambulance extends NodeContent {
 		this.patient = patient;
 		this.clean = clean;
 
-		ID = Math.max(ID, id + 1); // avoid id collisions, ID is always greater
-									// than max id
+		ID.accumulateAndGet(id + 1, Math::max); // avoid id collisions, ID is
+												// always greater than max id
 	}
 
 	/**
@@ -77,6 +79,17 @@ public class Ambulance extends NodeContent {
 		clean = false;
 	}
 
+	/**
+	 * Sets the state of the ambulance, used when restoring a checkpoint
+	 * 
+	 * @param patient
+	 * @param clean
+	 */
+	void restore(Patient patient, boolean clean) {
+		this.patient = patient;
+		this.clean = clean;
+	}
+
 	@Override
 	public String toString() {
 		return String.format("A%d @ N%d [%s] %s", id, getNode(), isFree() ? "" : patient.toString(),
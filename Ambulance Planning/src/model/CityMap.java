@@ -1,7 +1,13 @@
 package model;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -12,6 +18,8 @@ import java.util.Random;
 import java.util.Set;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 
 public class CityMap {
 	public static enum Print {
@@ -119,6 +127,18 @@ public class CityMap {
 
 	private Map<Integer, Hospital> hospitals = new HashMap<>();
 
+	/**
+	 * Ids of new patients are local to the city, so that many cities can live
+	 * in the same process.
+	 */
+	private int nextPatientId;
+
+	/**
+	 * Learns the demand from the spawned patients, static demands are used
+	 * if it is not set.
+	 */
+	private DemandModel demandModel;
+
 	public CityMap(double[][] adjMatrix, double[][] coordinates, List<List<NodeContent>> contents, double[] demands) {
 		// Just to debug
 		dump(adjMatrix);
@@ -132,6 +152,7 @@ public class CityMap {
 		contents.stream().flatMap(Collection::stream).filter(nc -> nc instanceof Patient)
 				.forEach(pat -> patients.put(pat.getId(), (Patient) pat));
 
+		nextPatientId = patients.keySet().stream().mapToInt(id -> id + 1).max().orElse(0);
 		ambulanceCount = ambulances.size();
 		hospitalCount = hospitals.size();
 
@@ -144,6 +165,58 @@ public class CityMap {
 		computePaths();
 	}
 
+	/**
+	 * Copy of the dynamic state of another map, the static part (roads,
+	 * shortest paths, hospitals and demands) is shared.
+	 */
+	private CityMap(CityMap other) {
+		nodeCount = other.nodeCount;
+		ambulanceCount = other.ambulanceCount;
+		hospitalCount = other.hospitalCount;
+		adjMatrix = other.adjMatrix;
+		demands = other.demands;
+		shortestDistances = other.shortestDistances;
+		shortestsPaths = other.shortestsPaths;
+		nextPatientId = other.nextPatientId;
+		hospitals = other.hospitals;
+		demandModel = other.demandModel == null ? null : other.demandModel.copy();
+
+		for (Patient patient : other.patients.values()) {
+			Patient copy = new Patient(patient.getNode(), patient.getId(), patient.getSeverity());
+			copy.restore(patient.isWaiting(), patient.isInHospital());
+			patients.put(copy.getId(), copy);
+		}
+		for (Ambulance amb : other.ambulances.values()) {
+			ambulances.put(amb.getId(), new Ambulance(amb.getNode(), amb.getId(),
+					amb.isFree() ? null : patients.get(amb.getPatient().getId()), amb.isClean()));
+		}
+		contents = new ArrayList<>(nodeCount);
+		for (List<NodeContent> node : other.contents) {
+			List<NodeContent> copy = new ArrayList<>(node.size());
+			for (NodeContent content : node) {
+				if (content instanceof Ambulance) {
+					copy.add(ambulances.get(content.getId()));
+				} else if (content instanceof Patient) {
+					copy.add(patients.get(content.getId()));
+				} else {
+					copy.add(content);
+				}
+			}
+			contents.add(copy);
+		}
+	}
+
+	/**
+	 * Independent copy of the state of the city, to plan on while this map
+	 * keeps changing. Actions planned on the copy are brought back with
+	 * {@link Action#resolve(CityMap)}.
+	 *
+	 * @return the copy
+	 */
+	public CityMap snapshot() {
+		return new CityMap(this);
+	}
+
 	public Set<Integer> adjacentNodes(int from) {
 		return IntStream.range(0, nodeCount).filter(to -> adjMatrix[from][to] > 0).boxed().collect(Collectors.toSet());
 	}
@@ -221,6 +294,10 @@ public class CityMap {
 		}
 	}
 
+	public Ambulance getAmbulanceById(int id) {
+		return ambulances.get(id);
+	}
+
 	public List<Ambulance> getAmbulances() {
 		return new ArrayList<>(ambulances.values());
 	}
@@ -237,6 +314,18 @@ public class CityMap {
 		return Arrays.stream(demands).boxed().collect(Collectors.toList());
 	}
 
+	public DemandModel getDemandModel() {
+		return demandModel;
+	}
+
+	/**
+	 * Demand expected now: the forecast of the demand model if there is one,
+	 * the static demands otherwise.
+	 */
+	public double[] getForecastDemands() {
+		return demandModel != null ? demandModel.forecast() : demands.clone();
+	}
+
 	public List<Hospital> getHospitals() {
 		return new ArrayList<>(hospitals.values());
 	}
@@ -257,6 +346,18 @@ public class CityMap {
 		return hospitalCount;
 	}
 
+	/**
+	 * Creates a new patient with the next id of this city, the patient still
+	 * has to be spawn.
+	 * 
+	 * @param node
+	 * @param severity
+	 * @return the patient
+	 */
+	public Patient newPatient(int node, int severity) {
+		return new Patient(node, nextPatientId++, severity);
+	}
+
 	public int nodesCount() {
 		return nodeCount;
 	}
@@ -321,6 +422,10 @@ public class CityMap {
 		return sb.toString();
 	}
 
+	public void setDemandModel(DemandModel demandModel) {
+		this.demandModel = demandModel;
+	}
+
 	public double shortestDistance(int from, int to) {
 		return shortestDistances[from][to];
 	}
@@ -329,6 +434,56 @@ public class CityMap {
 		return (ArrayList<Integer>) shortestsPaths[from][to];
 	}
 
+	/**
+	 * Restores the state written by {@link #writeState(DataOutput)}. The map
+	 * must have been built from the same problem file.
+	 * 
+	 * @param in
+	 * @throws IOException
+	 */
+	public void readState(DataInput in) throws IOException {
+		if (in.readInt() != nodeCount)
+			throw new IOException("State was saved for a different city");
+		nextPatientId = in.readInt();
+
+		int patientCount = in.readInt();
+		for (int i = 0; i < patientCount; i++) {
+			int id = in.readInt();
+			int node = in.readInt();
+			int severity = in.readInt();
+			boolean waiting = in.readBoolean();
+			boolean inHospital = in.readBoolean();
+			Patient patient = patients.get(id);
+			if (patient == null) {
+				patient = new Patient(node, id, severity);
+				patients.put(id, patient);
+			}
+			patient.restore(waiting, inHospital);
+			contents.get(node).remove(patient);
+			if (waiting) {
+				contents.get(node).add(patient);
+			}
+		}
+
+		int ambCount = in.readInt();
+		for (int i = 0; i < ambCount; i++) {
+			Ambulance amb = ambulances.get(in.readInt());
+			int node = in.readInt();
+			int patientId = in.readInt();
+			boolean clean = in.readBoolean();
+			contents.get(amb.getNode()).remove(amb);
+			amb.setNode(node);
+			contents.get(node).add(amb);
+			amb.restore(patientId < 0 ? null : patients.get(patientId), clean);
+		}
+
+		if (in.readBoolean()) {
+			if (demandModel == null)
+				throw new IOException("State was saved with a demand model");
+			demandModel.readState(in);
+		}
+	}
+
 	public List<?> shortestPathsFrom(int from) {
 		return IntStream.range(0, nodeCount).mapToObj(to -> shortestsPaths[from][to]).collect(Collectors.toList());
 	}
@@ -337,8 +492,65 @@ public class CityMap {
 		return IntStream.range(0, nodeCount).mapToObj(from -> shortestsPaths[from][to]).collect(Collectors.toList());
 	}
 
+	/**
+	 * Writes the dynamic state of the city: position and load of the
+	 * ambulances and the state of every patient. The static part (roads,
+	 * hospitals and demands) is expected to come from the problem file.
+	 * 
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeState(DataOutput out) throws IOException {
+		writeAmbulancesAndPatients(out);
+
+		out.writeBoolean(demandModel != null);
+		if (demandModel != null) {
+			demandModel.writeState(out);
+		}
+	}
+
+	/**
+	 * Checksum of the state written by {@link #writeState(DataOutput)},
+	 * demand model excluded, to tell if two runs reached the same state.
+	 */
+	public int stateChecksum() {
+		CRC32 crc = new CRC32();
+		try {
+			writeAmbulancesAndPatients(
+					new DataOutputStream(new CheckedOutputStream(OutputStream.nullOutputStream(), crc)));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return (int) crc.getValue();
+	}
+
+	private void writeAmbulancesAndPatients(DataOutput out) throws IOException {
+		out.writeInt(nodeCount);
+		out.writeInt(nextPatientId);
+
+		out.writeInt(patients.size());
+		for (Patient patient : patients.values()) {
+			out.writeInt(patient.getId());
+			out.writeInt(patient.getNode());
+			out.writeInt(patient.getSeverity());
+			out.writeBoolean(patient.isWaiting());
+			out.writeBoolean(patient.isInHospital());
+		}
+
+		out.writeInt(ambulances.size());
+		for (Ambulance amb : ambulances.values()) {
+			out.writeInt(amb.getId());
+			out.writeInt(amb.getNode());
+			out.writeInt(amb.isFree() ? -1 : amb.getPatient().getId());
+			out.writeBoolean(amb.isClean());
+		}
+	}
+
 	public void spawn(Patient patient) {
 		contents.get(patient.getNode()).add(patient);
 		patients.put(patient.getId(), patient);
+		if (demandModel != null) {
+			demandModel.observe(patient.getNode());
+		}
 	}
 }
@@ -0,0 +1,163 @@
+package model;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Online estimate of where patients are going to appear.
+ * <p>
+ * Arrivals are counted per node and per time-of-day bucket, with exponential
+ * decay so that old observations fade out. Counts are decayed lazily, when a
+ * cell is touched, so that recording an arrival costs O(1) whatever the size
+ * of the city. The forecast blends the observed counts of the current bucket
+ * with the static demands of the problem file, which act as a prior worth a
+ * few patients and dominate until enough arrivals have been observed.
+ */
+public class DemandModel {
+
+	public static final int DEFAULT_BUCKETS = 24;
+	public static final double DEFAULT_PRIOR_PATIENTS = 5;
+
+	private final int nodeCount;
+	private final int buckets;
+	private final int stepsPerDay;
+	private final double decayPerStep;
+	private final double priorPatients;
+	private final double[] priorShare;
+
+	// decayed counts, valid at lastUpdate of the same cell
+	private final double[][] counts;
+	private final int[][] lastUpdate;
+
+	private int now;
+
+	/**
+	 * @param demands
+	 *            static demands, used as prior
+	 * @param stepsPerDay
+	 *            length of the daily cycle in steps
+	 * @param buckets
+	 *            number of time-of-day buckets
+	 * @param halfLife
+	 *            steps after which an observation weights half
+	 * @param priorPatients
+	 *            weight of the static demands, in patients
+	 */
+	public DemandModel(double[] demands, int stepsPerDay, int buckets, double halfLife, double priorPatients) {
+		if (stepsPerDay <= 0 || buckets <= 0 || buckets > stepsPerDay)
+			throw new IllegalArgumentException("Invalid time-of-day buckets");
+		this.nodeCount = demands.length;
+		this.stepsPerDay = stepsPerDay;
+		this.buckets = buckets;
+		this.decayPerStep = Math.pow(0.5, 1 / halfLife);
+		this.priorPatients = priorPatients;
+
+		double sum = 0;
+		for (double d : demands) {
+			sum += d;
+		}
+		priorShare = new double[nodeCount];
+		for (int i = 0; i < nodeCount; i++) {
+			priorShare[i] = sum > 0 ? demands[i] / sum : 1.0 / nodeCount;
+		}
+
+		counts = new double[buckets][nodeCount];
+		lastUpdate = new int[buckets][nodeCount];
+	}
+
+	private DemandModel(DemandModel other) {
+		nodeCount = other.nodeCount;
+		stepsPerDay = other.stepsPerDay;
+		buckets = other.buckets;
+		decayPerStep = other.decayPerStep;
+		priorPatients = other.priorPatients;
+		priorShare = other.priorShare;
+		counts = new double[buckets][];
+		lastUpdate = new int[buckets][];
+		for (int b = 0; b < buckets; b++) {
+			counts[b] = other.counts[b].clone();
+			lastUpdate[b] = other.lastUpdate[b].clone();
+		}
+		now = other.now;
+	}
+
+	/**
+	 * Independent copy of the model, see {@link CityMap#snapshot()}.
+	 */
+	public DemandModel copy() {
+		return new DemandModel(this);
+	}
+
+	public int bucketOf(int step) {
+		return (int) ((long) Math.floorMod(step, stepsPerDay) * buckets / stepsPerDay);
+	}
+
+	/**
+	 * Decayed number of arrivals observed on the node in the bucket, as of
+	 * the current step.
+	 */
+	public double count(int node, int bucket) {
+		return counts[bucket][node] * Math.pow(decayPerStep, now - lastUpdate[bucket][node]);
+	}
+
+	/**
+	 * Relative demand of every node in the current time-of-day bucket, to be
+	 * used in place of the static demands.
+	 */
+	public double[] forecast() {
+		return forecast(bucketOf(now));
+	}
+
+	/**
+	 * Relative demand of every node in the given time-of-day bucket: decayed
+	 * arrivals plus the share of the prior.
+	 */
+	public double[] forecast(int bucket) {
+		double[] result = new double[nodeCount];
+		for (int i = 0; i < nodeCount; i++) {
+			result[i] = count(i, bucket) + priorPatients * priorShare[i];
+		}
+		return result;
+	}
+
+	/**
+	 * Records an arrival at the current step.
+	 */
+	public void observe(int node) {
+		int bucket = bucketOf(now);
+		counts[bucket][node] = count(node, bucket) + 1;
+		lastUpdate[bucket][node] = now;
+	}
+
+	public void readState(DataInput in) throws IOException {
+		if (in.readInt() != nodeCount || in.readInt() != buckets)
+			throw new IOException("Demand model was saved with a different shape");
+		now = in.readInt();
+		for (int b = 0; b < buckets; b++) {
+			for (int i = 0; i < nodeCount; i++) {
+				counts[b][i] = in.readDouble();
+				lastUpdate[b][i] = in.readInt();
+			}
+		}
+	}
+
+	/**
+	 * Moves the clock of the model to the given step.
+	 */
+	public void tick(int step) {
+		now = step;
+	}
+
+	public void writeState(DataOutput out) throws IOException {
+		out.writeInt(nodeCount);
+		out.writeInt(buckets);
+		out.writeInt(now);
+		for (int b = 0; b < buckets; b++) {
+			for (int i = 0; i < nodeCount; i++) {
+				out.writeDouble(counts[b][i]);
+				out.writeInt(lastUpdate[b][i]);
+			}
+		}
+	}
+}
@@ -1,7 +1,9 @@
 package model;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class Hospital extends NodeContent {
-	private static int ID = 0;
+	private static final AtomicInteger ID = new AtomicInteger();
 
 	private final int id;
 	private final int maxSeverity;
@@ -11,7 +13,7 @@ public class Hospital extends NodeContent {
 	 * @param maxSeverity
 	 */
 	Hospital(int node, int maxSeverity) {
-		this(node, ++ID, maxSeverity);
+		this(node, ID.incrementAndGet(), maxSeverity);
 	}
 
 	/**Builds a new {@link Hospital} at the provided node using the id passed as parameter.
@@ -24,8 +26,8 @@ public class Hospital extends NodeContent {
 		this.id = id;
 		this.maxSeverity = maxSeverity;
 
-		ID = Math.max(ID, id + 1); // avoid id collisions, ID is always greater
-									// than max id
+		ID.accumulateAndGet(id + 1, Math::max); // avoid id collisions, ID is
+												// always greater than max id
 	}
 
 	void accept(Patient patient) {
@@ -3,13 +3,16 @@ package model;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Random;
 
 public class ManualPatientProvider implements PatientProvider {
 
 	private BufferedReader in;
 	private CityMap map;
-	private Patient newPatient;
+	private LinkedList<Patient> newPatients = new LinkedList<>();
 	private Random r;
 
 	public ManualPatientProvider(CityMap map) {
@@ -20,9 +23,17 @@ public class ManualPatientProvider implements PatientProvider {
 
 	@Override
 	public Patient getNewPatient() {
-		Patient p = newPatient;
-		newPatient = null;
-		return p;
+		return newPatients.poll();
+	}
+
+	@Override
+	public List<Patient> getNewPatients(boolean planIsEmpty) {
+		List<Patient> patients = new ArrayList<>();
+		if (hasNewPatient(planIsEmpty)) {
+			patients.addAll(newPatients);
+			newPatients.clear();
+		}
+		return patients;
 	}
 
 	@Override
@@ -35,14 +46,14 @@ public class ManualPatientProvider implements PatientProvider {
 			if (answer != null && !answer.trim().isEmpty()) {
 				// parse user input
 				if (answer.trim().equals("r")) {
-					newPatient = new Patient(r.nextInt(map.nodesCount()), r.nextInt(3) + 1);
+					newPatients.add(map.newPatient(r.nextInt(map.nodesCount()), r.nextInt(3) + 1));
 				} else {
 					String[] tokens = answer.trim().split(" ");
 					for (int i = 0; i < tokens.length; i += 2) {
 						int node = Integer.parseInt(tokens[i]);
 						int severity = Integer.parseInt(tokens[i + 1]);
 						if (node < map.nodesCount() && severity >= 1 && severity <= 3) {
-							newPatient = new Patient(node, severity);
+							newPatients.add(map.newPatient(node, severity));
 						} else {
 							System.out.println("Nope");
 						}
@@ -52,6 +63,6 @@ public class ManualPatientProvider implements PatientProvider {
 		} catch (IOException | NumberFormatException | ArrayIndexOutOfBoundsException e) {
 			System.out.println("Input error");
 		}
-		return newPatient != null;
+		return !newPatients.isEmpty();
 	}
 }
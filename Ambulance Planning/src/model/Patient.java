@@ -1,7 +1,13 @@
 package model;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class Patient extends NodeContent {
-	private static int COUNT = 0;
+	/**
+	 * Global id counter, cities running in the same process should use
+	 * {@link CityMap#newPatient(int, int)} to get ids local to the city.
+	 */
+	private static final AtomicInteger COUNT = new AtomicInteger();
 
 	private final int id;
 	private final int severity;
@@ -26,8 +32,8 @@ public class Patient extends NodeContent {
 	 */
 	Patient(int node, int id, int severity) {
 		super(node);
-		this.id = id == -1 ? COUNT : id;
-		COUNT++;
+		int count = COUNT.getAndIncrement();
+		this.id = id == -1 ? count : id;
 		this.severity = severity;
 	}
 
@@ -66,6 +72,15 @@ public class Patient extends NodeContent {
 		return sb.toString();
 	}
 
+	/**Sets the state of the patient, used when restoring a checkpoint
+	 * @param waiting
+	 * @param inHospital
+	 */
+	void restore(boolean waiting, boolean inHospital) {
+		this.waiting = waiting;
+		this.inHospital = inHospital;
+	}
+
 	public void unload() {
 		inHospital = true;
 	}
@@ -1,5 +1,11 @@
 package model;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
 public interface PatientProvider {
 
 	/**A new patient if available
@@ -13,4 +19,39 @@ public interface PatientProvider {
 	 */
 	public abstract boolean hasNewPatient(boolean planIsEmpty);
 
+	/**Drains all the patients that are ready to be spawn, so that a burst of
+	 * arrivals can be handled with a single replanning
+	 * @param planIsEmpty
+	 * @return the new patients, empty if there are none
+	 */
+	public default List<Patient> getNewPatients(boolean planIsEmpty) {
+		if (hasNewPatient(planIsEmpty)) {
+			return Collections.singletonList(getNewPatient());
+		}
+		return Collections.emptyList();
+	}
+
+	/**Checks if patients are still expected later, so that the simulation must
+	 * go on even when the plan is empty and nobody arrived
+	 * @return
+	 */
+	public default boolean hasPendingPatients() {
+		return false;
+	}
+
+	/**Writes the internal state of the provider (e.g. random generators), so
+	 * that a restored run spawns the same patients
+	 * @param out
+	 * @throws IOException
+	 */
+	public default void writeState(DataOutput out) throws IOException {
+	}
+
+	/**Restores the state written by {@link #writeState(DataOutput)}
+	 * @param in
+	 * @throws IOException
+	 */
+	public default void readState(DataInput in) throws IOException {
+	}
+
 }
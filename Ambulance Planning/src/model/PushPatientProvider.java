@@ -0,0 +1,286 @@
+package model;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import utils.MpscLongQueue;
+
+/**
+ * Provider fed asynchronously by external systems.
+ * <p>
+ * Incidents are pushed by any number of threads into a bounded lock-free
+ * queue, and every step drains what has arrived without ever blocking the
+ * simulation. When the queue is full new incidents are rejected and counted.
+ * Incidents can come from:
+ * <ul>
+ * <li>clients of a socket on the loopback interface ({@link #listen(int)}),
+ * <li>a named pipe or a file ({@link #readPipe(String)}),
+ * <li>any {@link Flow.Publisher} of {@link Incident}s, since the provider is a
+ * subscriber with back-pressure,
+ * <li>direct calls to {@link #offer(int, int)}.
+ * </ul>
+ * Sockets and pipes use the syntax of the interactive mode: a line with one
+ * or more <code>node severity</code> pairs. A line with <code>quit</code>
+ * closes the provider, the simulation then ends once the plan is done.
+ */
+public class PushPatientProvider implements PatientProvider, Flow.Subscriber<PushPatientProvider.Incident> {
+
+	/**
+	 * Incident published to the provider.
+	 */
+	public static class Incident {
+		private final int node;
+		private final int severity;
+
+		public Incident(int node, int severity) {
+			this.node = node;
+			this.severity = severity;
+		}
+
+		public int getNode() {
+			return node;
+		}
+
+		public int getSeverity() {
+			return severity;
+		}
+	}
+
+	public static final int DEFAULT_CAPACITY = 1 << 16;
+
+	private final CityMap map;
+	private final MpscLongQueue queue;
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong invalid = new AtomicLong();
+	// sockets, pipes and subscriptions that may still push incidents
+	private final AtomicInteger openSources = new AtomicInteger();
+	private volatile boolean closed;
+	private volatile Flow.Subscription subscription;
+
+	private final List<Patient> drained = new ArrayList<>();
+
+	public PushPatientProvider(CityMap map, int capacity) {
+		this.map = map;
+		this.queue = new MpscLongQueue(capacity);
+	}
+
+	/**
+	 * Stops accepting incidents, those already queued are still spawned.
+	 */
+	public void close() {
+		closed = true;
+	}
+
+	/**
+	 * Incidents that were rejected because they were malformed or outside the
+	 * city.
+	 */
+	public long getInvalid() {
+		return invalid.get();
+	}
+
+	@Override
+	public Patient getNewPatient() {
+		if (drained.isEmpty())
+			drain();
+		return drained.isEmpty() ? null : drained.remove(0);
+	}
+
+	@Override
+	public List<Patient> getNewPatients(boolean planIsEmpty) {
+		drain();
+		List<Patient> patients = new ArrayList<>(drained);
+		drained.clear();
+		return patients;
+	}
+
+	/**
+	 * Incidents that were rejected because the queue was full.
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	@Override
+	public boolean hasNewPatient(boolean planIsEmpty) {
+		drain();
+		return !drained.isEmpty();
+	}
+
+	@Override
+	public boolean hasPendingPatients() {
+		return !closed || !queue.isEmpty();
+	}
+
+	/**
+	 * Accepts clients on the given port of the loopback interface, each one
+	 * served by its own daemon thread.
+	 */
+	public void listen(int port) throws IOException {
+		ServerSocket server = new ServerSocket(port, 0, InetAddress.getLoopbackAddress());
+		System.out.println("Listening for patients on " + server.getLocalSocketAddress());
+		openSources.incrementAndGet();
+		startDaemon("patients-listener", () -> {
+			try (ServerSocket s = server) {
+				while (!closed) {
+					Socket client = s.accept();
+					openSources.incrementAndGet();
+					startDaemon("patients-client", () -> {
+						try (Socket c = client) {
+							readLines(c.getInputStream());
+						} catch (IOException e) {
+							System.out.println("Patient client failed: " + e.getMessage());
+						} finally {
+							sourceClosed();
+						}
+					});
+				}
+			} catch (IOException e) {
+				System.out.println("Patient listener failed: " + e.getMessage());
+			} finally {
+				sourceClosed();
+			}
+		});
+	}
+
+	/**
+	 * Queues an incident, can be called by any thread.
+	 *
+	 * @return false if it was rejected
+	 */
+	public boolean offer(int node, int severity) {
+		if (closed)
+			return false;
+		if (node < 0 || node >= map.nodesCount() || severity < 1 || severity > 3) {
+			invalid.incrementAndGet();
+			return false;
+		}
+		if (!queue.offer((long) node << 2 | severity)) {
+			rejected.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public void onComplete() {
+		sourceClosed();
+	}
+
+	@Override
+	public void onError(Throwable throwable) {
+		System.out.println("Patient publisher failed: " + throwable.getMessage());
+		sourceClosed();
+	}
+
+	@Override
+	public void onNext(Incident item) {
+		// a rejected item is never drained, give its demand back here
+		if (!offer(item.getNode(), item.getSeverity())) {
+			subscription.request(1);
+		}
+	}
+
+	@Override
+	public void onSubscribe(Flow.Subscription subscription) {
+		if (this.subscription != null || closed) {
+			subscription.cancel();
+			return;
+		}
+		this.subscription = subscription;
+		openSources.incrementAndGet();
+		// as many as the queue can hold, then as many as are drained
+		subscription.request(queue.capacity());
+	}
+
+	/**
+	 * Reads incidents from a named pipe (or a plain file) in a daemon thread.
+	 * A named pipe is opened again when its writer closes it, a plain file is
+	 * read once.
+	 */
+	public void readPipe(String fileName) {
+		Path path = Paths.get(fileName);
+		boolean reopen = !Files.isRegularFile(path);
+		openSources.incrementAndGet();
+		startDaemon("patients-pipe", () -> {
+			try {
+				do {
+					try (InputStream in = Files.newInputStream(path)) {
+						readLines(in);
+					}
+				} while (reopen && !closed);
+			} catch (IOException e) {
+				System.out.println("Patient pipe failed: " + e.getMessage());
+			} finally {
+				sourceClosed();
+			}
+		});
+	}
+
+	/**
+	 * Turns the queued incidents into patients, on the simulation thread since
+	 * patient ids are not thread-safe.
+	 */
+	private void drain() {
+		int count = queue.drain(v -> drained.add(map.newPatient((int) (v >>> 2), (int) (v & 3))),
+				Integer.MAX_VALUE);
+		Flow.Subscription s = subscription;
+		if (s != null && count > 0) {
+			s.request(count);
+		}
+	}
+
+	private void readLines(InputStream stream) throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(stream));
+		String line;
+		while (!closed && (line = in.readLine()) != null) {
+			line = line.trim();
+			if (line.isEmpty())
+				continue;
+			if (line.equals("quit")) {
+				close();
+				return;
+			}
+			String[] tokens = line.split("\\s+");
+			if (tokens.length % 2 != 0) {
+				invalid.incrementAndGet();
+				continue;
+			}
+			for (int i = 0; i < tokens.length; i += 2) {
+				try {
+					offer(Integer.parseInt(tokens[i]), Integer.parseInt(tokens[i + 1]));
+				} catch (NumberFormatException e) {
+					invalid.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Closes the provider once no source is left.
+	 */
+	private void sourceClosed() {
+		if (openSources.decrementAndGet() == 0) {
+			close();
+		}
+	}
+
+	private static void startDaemon(String name, Runnable task) {
+		Thread t = new Thread(task, name);
+		t.setDaemon(true);
+		t.start();
+	}
+}
@@ -1,39 +1,113 @@
 package model;
 
-import java.util.Random;
-import java.util.stream.DoubleStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
+import utils.AliasTable;
+import utils.SplitMix64;
+
+/**
+ * Spawns patients at random, on nodes drawn according to their demand.
+ * <p>
+ * Either one patient arrives in a step with probability <code>prob</code>,
+ * or the number of arrivals per step is Poisson distributed with the given
+ * rate (see {@link #poisson}). When the plan is empty at least one patient
+ * arrives.
+ */
 public class RandomPatientProvider implements PatientProvider {
 
-	private Random random = new Random(504);
+	private static final long SEED = 504;
+
+	private SplitMix64 random;
 	private double prob;
+	// patients per step, NaN for single arrivals with probability prob
+	private double rate = Double.NaN;
 	private int maxNumberOfPatients;
+	// patients drawn by hasNewPatient and not yet returned
+	private int pending;
 
-	private double[] demands;
-	private double demandSum;
+	private CityMap map;
+	private AliasTable demands;
 
 	public RandomPatientProvider(double prob, int maxNumberOfPatients, CityMap map) {
+		this(prob, maxNumberOfPatients, map, new SplitMix64(SEED));
+	}
+
+	/**
+	 * @param random
+	 *            generator to use, e.g. split from a common one so that
+	 *            parallel runs are reproducible
+	 */
+	public RandomPatientProvider(double prob, int maxNumberOfPatients, CityMap map, SplitMix64 random) {
 		this.prob = prob;
 		this.maxNumberOfPatients = maxNumberOfPatients;
+		this.map = map;
+		this.random = random;
 
-		demands = map.getDemands().stream().mapToDouble(x -> x).toArray();
-		demandSum = DoubleStream.of(demands).sum();
+		demands = new AliasTable(map.getDemands().stream().mapToDouble(x -> x).toArray());
+	}
+
+	public static RandomPatientProvider poisson(double rate, int maxNumberOfPatients, CityMap map) {
+		return poisson(rate, maxNumberOfPatients, map, new SplitMix64(SEED));
+	}
+
+	/**
+	 * Provider whose number of arrivals per step is Poisson distributed.
+	 *
+	 * @param rate
+	 *            expected number of arrivals per step
+	 */
+	public static RandomPatientProvider poisson(double rate, int maxNumberOfPatients, CityMap map,
+			SplitMix64 random) {
+		RandomPatientProvider provider = new RandomPatientProvider(0, maxNumberOfPatients, map, random);
+		provider.rate = rate;
+		return provider;
 	}
 
 	@Override
 	public Patient getNewPatient() {
+		if (pending > 0)
+			pending--;
 		maxNumberOfPatients--;
-		double demand = random.nextDouble() * demandSum;
-		int node = 0;
-		while (node < demands.length - 1 && demand > 0) {
-			demand -= demands[node];
-			node++;
+		return map.newPatient(demands.sample(random), 1 + random.nextInt(3));
+	}
+
+	@Override
+	public List<Patient> getNewPatients(boolean planIsEmpty) {
+		List<Patient> patients = new ArrayList<>();
+		if (hasNewPatient(planIsEmpty)) {
+			while (pending > 0) {
+				patients.add(getNewPatient());
+			}
 		}
-		return new Patient(node, 1 + random.nextInt(3));
+		return patients;
 	}
 
 	@Override
 	public boolean hasNewPatient(boolean planIsEmpty) {
-		return maxNumberOfPatients > 0 && (planIsEmpty || random.nextDouble() < prob);
+		if (maxNumberOfPatients <= 0)
+			return false;
+		long arrivals = Double.isNaN(rate) ? (random.nextDouble() < prob ? 1 : 0) : random.nextPoisson(rate);
+		if (planIsEmpty)
+			arrivals = Math.max(arrivals, 1);
+		pending = (int) Math.min(arrivals, maxNumberOfPatients);
+		return pending > 0;
+	}
+
+	@Override
+	public void readState(DataInput in) throws IOException {
+		maxNumberOfPatients = in.readInt();
+		pending = in.readInt();
+		random.readState(in);
+	}
+
+	@Override
+	public void writeState(DataOutput out) throws IOException {
+		out.writeInt(maxNumberOfPatients);
+		out.writeInt(pending);
+		random.writeState(out);
 	}
 }
@@ -0,0 +1,144 @@
+package model;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import utils.AliasTable;
+import utils.SplitMix64;
+
+/**
+ * Synthetic load for stress tests.
+ * <p>
+ * Patients arrive for a fixed number of steps with a Poisson distributed
+ * count per step. The rate can grow linearly and be multiplied during
+ * periodic bursts, part of the arrivals can be concentrated on a few hotspot
+ * nodes and the severities follow the given mix. There is no cap on the number
+ * of patients, so the load can be pushed beyond what the planner can handle.
+ */
+public class StressPatientProvider implements PatientProvider {
+
+	public static class StressSettings {
+		// mean arrivals per step, and its increase at every step
+		public double RATE = 1;
+		public double RAMP = 0;
+
+		// steps in which patients arrive
+		public int STEPS = 200;
+
+		// every BURST_EVERY steps the rate is multiplied by BURST_FACTOR for
+		// BURST_LENGTH steps, no bursts if 0
+		public int BURST_EVERY = 0;
+		public int BURST_LENGTH = 5;
+		public double BURST_FACTOR = 5;
+
+		// share of the arrivals on HOTSPOTS random nodes, the rest follows the
+		// demands of the city
+		public int HOTSPOTS = 0;
+		public double HOTSPOT_SHARE = 0.5;
+
+		// probability of severity 1, 2 and 3
+		public double[] SEVERITY_MIX = { 1, 1, 1 };
+
+		public long SEED = 504;
+	}
+
+	private final StressSettings settings;
+	private final CityMap map;
+	private final SplitMix64 random;
+	private final AliasTable nodes;
+	private final AliasTable severities;
+
+	private int step;
+	private int pending;
+
+	public StressPatientProvider(CityMap map, StressSettings settings) {
+		this.map = map;
+		this.settings = settings;
+		random = new SplitMix64(settings.SEED);
+
+		int nodeCount = map.nodesCount();
+		double[] demands = map.getDemands().stream().mapToDouble(d -> d).toArray();
+		double demandSum = 0;
+		for (double d : demands) {
+			demandSum += d;
+		}
+		int hotspots = Math.min(settings.HOTSPOTS, nodeCount);
+		double hotspotShare = hotspots > 0 ? settings.HOTSPOT_SHARE : 0;
+		double[] weights = new double[nodeCount];
+		for (int i = 0; i < nodeCount; i++) {
+			weights[i] = (1 - hotspotShare) * (demandSum > 0 ? demands[i] / demandSum : 1.0 / nodeCount);
+		}
+		// distinct hotspots, drawn from the same seed
+		boolean[] taken = new boolean[nodeCount];
+		for (int h = 0; h < hotspots; h++) {
+			int node;
+			do {
+				node = random.nextInt(nodeCount);
+			} while (taken[node]);
+			taken[node] = true;
+			weights[node] += hotspotShare / hotspots;
+		}
+		nodes = new AliasTable(weights);
+		severities = new AliasTable(settings.SEVERITY_MIX);
+	}
+
+	/**
+	 * Mean number of arrivals in the given step.
+	 */
+	public double rateAt(int step) {
+		if (step >= settings.STEPS)
+			return 0;
+		double rate = settings.RATE + settings.RAMP * step;
+		if (settings.BURST_EVERY > 0 && step % settings.BURST_EVERY < settings.BURST_LENGTH) {
+			rate *= settings.BURST_FACTOR;
+		}
+		return Math.max(0, rate);
+	}
+
+	@Override
+	public Patient getNewPatient() {
+		if (pending > 0)
+			pending--;
+		return map.newPatient(nodes.sample(random), 1 + severities.sample(random));
+	}
+
+	@Override
+	public List<Patient> getNewPatients(boolean planIsEmpty) {
+		List<Patient> patients = new ArrayList<>();
+		if (hasNewPatient(planIsEmpty)) {
+			while (pending > 0) {
+				patients.add(getNewPatient());
+			}
+		}
+		return patients;
+	}
+
+	@Override
+	public boolean hasNewPatient(boolean planIsEmpty) {
+		pending = (int) random.nextPoisson(rateAt(step));
+		step++;
+		return pending > 0;
+	}
+
+	@Override
+	public boolean hasPendingPatients() {
+		return step < settings.STEPS;
+	}
+
+	@Override
+	public void readState(DataInput in) throws IOException {
+		step = in.readInt();
+		pending = in.readInt();
+		random.readState(in);
+	}
+
+	@Override
+	public void writeState(DataOutput out) throws IOException {
+		out.writeInt(step);
+		out.writeInt(pending);
+		random.writeState(out);
+	}
+}
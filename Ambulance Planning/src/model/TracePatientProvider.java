@@ -0,0 +1,300 @@
+package model;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Provider that replays a recorded stream of incidents.
+ * <p>
+ * Incidents are read from a CSV file (<code>time,node,severity</code> per
+ * line, an optional header is skipped) or from the binary format written by
+ * {@link #convert(String, String)}. The file is memory-mapped in windows, so
+ * traces of any size can be streamed without loading them in memory.
+ * <p>
+ * Incident times are mapped on simulation steps: step <code>k</code> covers
+ * the times in <code>[t0 + k * stepSeconds; t0 + (k + 1) * stepSeconds)</code>,
+ * where <code>t0</code> is the time of the first incident. With
+ * <code>stepSeconds = 1</code> and integer times the trace can directly
+ * contain step numbers. Every call to {@link #hasNewPatient(boolean)} or
+ * {@link #getNewPatients(boolean)} advances the clock by one step.
+ */
+public class TracePatientProvider implements PatientProvider, AutoCloseable {
+
+	public static final int MAGIC = 0x414d4254; // "AMBT"
+	public static final int HEADER_SIZE = 8;
+	public static final int RECORD_SIZE = 16;
+
+	private static final long WINDOW_SIZE = 64L << 20;
+	private static final int MAX_LINE = 4096;
+
+	/**
+	 * Converts a CSV trace into the binary format.
+	 * <p>
+	 * Usage: <code>java -cp Planner.jar model.TracePatientProvider incidents.csv incidents.trace</code>
+	 */
+	public static void main(String[] args) throws IOException {
+		System.out.println(convert(args[0], args[1]) + " incidents converted");
+	}
+
+	/**
+	 * Converts a CSV trace into the binary format: a header with
+	 * {@link #MAGIC} and the record size, then one record per incident with
+	 * time (double), node (int) and severity (int), little-endian.
+	 *
+	 * @return number of incidents
+	 */
+	public static long convert(String csvFileName, String binaryFileName) throws IOException {
+		long count = 0;
+		try (TracePatientProvider csv = new TracePatientProvider(csvFileName, 1, null);
+				BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(binaryFileName))) {
+			ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			record.putInt(MAGIC).putInt(RECORD_SIZE);
+			out.write(record.array(), 0, HEADER_SIZE);
+			for (; csv.hasNext; csv.hasNext = csv.readNext()) {
+				record.clear();
+				record.putDouble(csv.nextTime).putInt(csv.nextNode).putInt(csv.nextSeverity);
+				out.write(record.array());
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private final FileChannel channel;
+	private final long fileSize;
+	private final boolean binary;
+	private final double stepSeconds;
+	private final CityMap map;
+
+	private MappedByteBuffer window;
+	private long windowStart;
+
+	private int step = -1;
+	private boolean started;
+	private double firstTime;
+
+	// next incident, read ahead of time
+	private boolean hasNext;
+	private double nextTime;
+	private int nextNode;
+	private int nextSeverity;
+	private long nextPosition;
+
+	private int skipped;
+	// the rest of a line longer than MAX_LINE is to be skipped
+	private boolean inLongLine;
+
+	/**
+	 * Opens a trace.
+	 *
+	 * @param fileName
+	 *            CSV or binary trace
+	 * @param stepSeconds
+	 *            time covered by a simulation step, in the unit of the trace
+	 * @param map
+	 *            city where the patients are spawned
+	 * @throws IOException
+	 */
+	public TracePatientProvider(String fileName, double stepSeconds, CityMap map) throws IOException {
+		this.stepSeconds = stepSeconds;
+		this.map = map;
+		channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+		fileSize = channel.size();
+		mapWindow(0);
+		binary = fileSize >= HEADER_SIZE && window.order(ByteOrder.LITTLE_ENDIAN).getInt(0) == MAGIC;
+		if (binary) {
+			if (window.getInt(4) != RECORD_SIZE)
+				throw new IOException(fileName + " has an unsupported record size");
+			window.position(HEADER_SIZE);
+		}
+		hasNext = readNext();
+	}
+
+	/**
+	 * Releases the file.
+	 */
+	@Override
+	public void close() throws IOException {
+		window = null;
+		channel.close();
+	}
+
+	@Override
+	public Patient getNewPatient() {
+		if (!isNextDue())
+			return null;
+		Patient patient = map.newPatient(nextNode, nextSeverity);
+		advance();
+		return patient;
+	}
+
+	@Override
+	public List<Patient> getNewPatients(boolean planIsEmpty) {
+		List<Patient> patients = new ArrayList<>();
+		if (hasNewPatient(planIsEmpty)) {
+			while (isNextDue()) {
+				patients.add(getNewPatient());
+			}
+		}
+		return patients;
+	}
+
+	/**
+	 * Number of incidents skipped because they can not be parsed, their node
+	 * is not in the city or their severity is not between 1 and 3.
+	 */
+	public int getSkipped() {
+		return skipped;
+	}
+
+	@Override
+	public boolean hasPendingPatients() {
+		return hasNext;
+	}
+
+	@Override
+	public boolean hasNewPatient(boolean planIsEmpty) {
+		step++;
+		return isNextDue();
+	}
+
+	@Override
+	public void readState(DataInput in) throws IOException {
+		step = in.readInt();
+		started = in.readBoolean();
+		firstTime = in.readDouble();
+		skipped = in.readInt();
+		inLongLine = false;
+		mapWindow(in.readLong());
+		hasNext = readNext();
+	}
+
+	@Override
+	public void writeState(DataOutput out) throws IOException {
+		out.writeInt(step);
+		out.writeBoolean(started);
+		out.writeDouble(firstTime);
+		out.writeInt(skipped);
+		// position of the incident read ahead, it is read again on restore
+		out.writeLong(hasNext ? nextPosition : fileSize);
+	}
+
+	private void advance() {
+		try {
+			hasNext = readNext();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private boolean isNextDue() {
+		if (!hasNext)
+			return false;
+		if (!started) {
+			started = true;
+			firstTime = nextTime;
+		}
+		return (nextTime - firstTime) / stepSeconds < step + 1;
+	}
+
+	/**
+	 * Maps the window starting at the given absolute position.
+	 */
+	private void mapWindow(long position) throws IOException {
+		windowStart = position;
+		window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW_SIZE, fileSize - position));
+		window.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Reads the next valid incident into the <code>next*</code> fields.
+	 *
+	 * @return false at the end of the trace
+	 */
+	private boolean readNext() throws IOException {
+		while (true) {
+			int needed = binary ? RECORD_SIZE : MAX_LINE;
+			if (window.remaining() < needed && windowStart + window.limit() < fileSize) {
+				mapWindow(windowStart + window.position());
+			}
+			nextPosition = windowStart + window.position();
+			if (binary) {
+				if (window.remaining() < RECORD_SIZE)
+					return false;
+				nextTime = window.getDouble();
+				nextNode = window.getInt();
+				nextSeverity = window.getInt();
+			} else if (!window.hasRemaining()) {
+				return false;
+			} else if (!readLine()) {
+				// one line at a time, so that the window is remapped in time
+				continue;
+			}
+			if ((map == null || nextNode >= 0 && nextNode < map.nodesCount()) && nextSeverity >= 1
+					&& nextSeverity <= 3) {
+				return true;
+			}
+			skipped++;
+		}
+	}
+
+	/**
+	 * Parses the next CSV line. Empty lines and headers are ignored, lines
+	 * that can not be parsed or longer than {@link #MAX_LINE} are counted as
+	 * skipped.
+	 *
+	 * @return false if the line has no incident
+	 */
+	private boolean readLine() {
+		int start = window.position();
+		while (window.hasRemaining() && window.get() != '\n')
+			;
+		int end = window.position();
+		boolean complete = end > start && window.get(end - 1) == '\n' || windowStart + end >= fileSize;
+		if (inLongLine) {
+			inLongLine = !complete;
+			return false;
+		}
+		if (!complete) {
+			// cut by the end of the window, the rest is skipped with it
+			inLongLine = true;
+			skipped++;
+			return false;
+		}
+		String line = new String(toBytes(start, end)).trim();
+		if (line.isEmpty() || !Character.isDigit(line.charAt(0)) && line.charAt(0) != '-')
+			return false;
+		String[] tokens = line.split("[,;\\s]+");
+		try {
+			if (tokens.length != 3)
+				throw new NumberFormatException(line);
+			nextTime = Double.parseDouble(tokens[0]);
+			nextNode = Integer.parseInt(tokens[1]);
+			nextSeverity = Integer.parseInt(tokens[2]);
+			return true;
+		} catch (NumberFormatException e) {
+			skipped++;
+			return false;
+		}
+	}
+
+	private byte[] toBytes(int start, int end) {
+		byte[] bytes = new byte[end - start];
+		for (int i = start; i < end; i++) {
+			bytes[i - start] = window.get(i);
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,437 @@
+package planner;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+
+import metrics.PlanningPhaseEvent;
+import model.Action;
+import model.Ambulance;
+import model.CityMap;
+import utils.Utils;
+
+/**
+ * Planner based on adaptive large neighborhood search (ALNS).
+ * <p>
+ * Searches the routes directly instead of the random keys of PSO, with the
+ * same cost model, cheapest insertion and local search as the decoding of
+ * {@link PSOPlanner}. Every iteration removes some patients from the current
+ * plan with one of the destroy operators, inserts them back where they cost
+ * the least, in random order, and improves the result with the local search.
+ * The new plan replaces the current one if it is better, or with a
+ * probability that decreases with how much worse it is and with the
+ * iterations (simulated annealing). Destroy operators are chosen by weights
+ * that follow how often they led to better plans.
+ * <p>
+ * Several searches with their own seeds run in parallel, the best plan is
+ * returned. Every search stops after <code>MAX_ITER</code> iterations,
+ * <code>GLOBAL_ITER_THRES</code> iterations without improvement, when the
+ * time budget is spent or when the calling thread is interrupted.
+ */
+public class ALNSPlanner extends PSOPlanner {
+
+	/**
+	 * Defaults can be changed with the alns.iterations, alns.restarts and
+	 * alns.seed system properties.
+	 */
+	public static class ALNSSettings {
+		public int MAX_ITER = Integer.getInteger("alns.iterations", 5000);
+		public int GLOBAL_ITER_THRES = 2000;
+
+		// searches run in parallel, each with a seed split from SEED
+		public int RESTARTS = Integer.getInteger("alns.restarts", Runtime.getRuntime().availableProcessors());
+		public long SEED = Long.getLong("alns.seed", 239);
+
+		// random insertion orders tried for the first plan
+		public int INITIAL_PLANS = 10;
+
+		// patients removed at every iteration: between 1 and this share of
+		// the patients, at most MAX_REMOVED
+		public double REMOVED_SHARE = 0.4;
+		public int MAX_REMOVED = 30;
+
+		/*
+		 * A plan worse by START_WORSENING of the cost of the first plan is
+		 * accepted with probability 1/2 at the start, the temperature then
+		 * decreases geometrically down to END_TEMPERATURE of the start one at
+		 * MAX_ITER or at the end of the time budget, whichever comes first.
+		 */
+		public double START_WORSENING = 0.001;
+		public double END_TEMPERATURE = 0.001;
+
+		/*
+		 * Operator weights are updated every SEGMENT iterations from the
+		 * scores of the operators in the segment: a new best plan, a better
+		 * plan, an accepted worse plan.
+		 */
+		public int SEGMENT = 100;
+		public double REACTION = 0.1;
+		public double SCORE_BEST = 33;
+		public double SCORE_BETTER = 9;
+		public double SCORE_ACCEPTED = 13;
+
+		// randomness of the worst and related removals, 1 is uniform
+		public double DETERMINISM = 3;
+	}
+
+	// destroy operators
+	private static final int RANDOM = 0;
+	private static final int WORST = 1;
+	private static final int RELATED = 2;
+	// repair operators
+	private static final int GREEDY = 3;
+	private static final int REGRET = 4;
+	private static final int OPERATORS = 5;
+
+	/**
+	 * Cost improvements below this are ignored.
+	 */
+	private static final double EPS = 1e-7;
+
+	private ALNSSettings settings = new ALNSSettings();
+
+	private int iterations;
+
+	public ALNSPlanner() {
+	}
+
+	public ALNSPlanner(ALNSSettings settings) {
+		this.settings = settings;
+	}
+
+	/**
+	 * Iterations performed by all the searches of the last solve.
+	 */
+	public int getPerformedIterations() {
+		return iterations;
+	}
+
+	@Override
+	public Map<Ambulance, List<Action>> solve(CityMap map, long millis) {
+		long solveStartTime = System.currentTimeMillis();
+		prepare(map);
+
+		PlanningPhaseEvent alnsEvent = PlanningPhaseEvent.start("alns");
+		long elapsed = System.currentTimeMillis() - solveStartTime;
+		PSOPlanner.Decoder best = search(Math.max(0, millis - elapsed));
+		alnsEvent.finish(patientCount(), map.getAmbulances().size(), map.nodesCount(), iterations);
+		metrics.histogram("alns_iterations").record(iterations);
+
+		return toActions(best);
+	}
+
+	/**
+	 * Runs the searches on the prepared problem.
+	 *
+	 * @param millis
+	 *            max time in milliseconds
+	 * @return best plan found
+	 */
+	PSOPlanner.Decoder search(long millis) {
+		long start = System.currentTimeMillis();
+		long deadline = millis > Long.MAX_VALUE - start ? Long.MAX_VALUE : start + millis;
+		int restarts = Math.max(1, settings.RESTARTS);
+		SplittableRandom seeds = new SplittableRandom(settings.SEED);
+		long[] restartSeeds = new long[restarts];
+		for (int r = 0; r < restarts; r++) {
+			restartSeeds[r] = seeds.nextLong();
+		}
+
+		PSOPlanner.Decoder[] results = new PSOPlanner.Decoder[restarts];
+		int[] restartIterations = new int[restarts];
+		Thread caller = Thread.currentThread();
+		IntStream restartIndices = IntStream.range(0, restarts);
+		if (restarts > 1) {
+			restartIndices = restartIndices.parallel();
+		}
+		restartIndices.forEach(
+				r -> results[r] = search(new SplittableRandom(restartSeeds[r]), start, deadline, caller, restartIterations, r));
+
+		iterations = Arrays.stream(restartIterations).sum();
+		PSOPlanner.Decoder best = results[0];
+		for (PSOPlanner.Decoder result : results) {
+			if (result.getPlanCost() < best.getPlanCost()) {
+				best = result;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * One search, from a random plan.
+	 */
+	private PSOPlanner.Decoder search(SplittableRandom random, long start, long deadline, Thread caller,
+			int[] iterations, int index) {
+		int n = patientCount();
+		PSOPlanner.Decoder current = newDecoder();
+		PSOPlanner.Decoder candidate = newDecoder();
+		PSOPlanner.Decoder best = newDecoder();
+
+		// patients removed from the candidate, in [0; count)
+		int[] removed = new int[n];
+		boolean[] isRemoved = new boolean[n];
+		// buffers of the destroy operators
+		int[] patients = new int[n];
+		double[] keys = new double[n];
+
+		// start from the best of a few random insertion orders
+		for (int k = 0; k < Math.max(1, settings.INITIAL_PLANS); k++) {
+			for (int i = 0; i < n; i++) {
+				removed[i] = i;
+			}
+			candidate.clear();
+			greedyInsertion(candidate, n, removed, random);
+			improve(candidate);
+			if (k == 0 || candidate.getPlanCost() < current.getPlanCost()) {
+				current.copyFrom(candidate);
+			}
+		}
+		best.copyFrom(current);
+		if (n == 0)
+			return best;
+
+		double[] weights = new double[OPERATORS];
+		double[] scores = new double[OPERATORS];
+		int[] uses = new int[OPERATORS];
+		Arrays.fill(weights, 1);
+		// accept a worsening of START_WORSENING * cost with probability 1/2
+		double startTemperature = settings.START_WORSENING * current.getPlanCost() / Math.log(2);
+		int maxRemoved = Math.max(1, Math.min(settings.MAX_REMOVED, (int) (settings.REMOVED_SHARE * n)));
+
+		int iteration = 0;
+		int lastImprovement = 0;
+		long now;
+		while (iteration < settings.MAX_ITER && iteration - lastImprovement < settings.GLOBAL_ITER_THRES
+				&& (now = System.currentTimeMillis()) < deadline && !caller.isInterrupted()) {
+			// share of the iterations or of the time budget spent
+			double progress = (double) iteration / settings.MAX_ITER;
+			if (deadline != Long.MAX_VALUE) {
+				progress = Math.max(progress, (double) (now - start) / (deadline - start));
+			}
+			double temperature = startTemperature * Math.pow(settings.END_TEMPERATURE, progress);
+			iteration++;
+			int destroy = choose(weights, RANDOM, GREEDY, random);
+			int repair = choose(weights, GREEDY, OPERATORS, random);
+			int count = 1 + random.nextInt(maxRemoved);
+			candidate.copyFrom(current);
+			switch (destroy) {
+			case RANDOM:
+				randomRemoval(candidate, count, removed, random);
+				break;
+			case WORST:
+				worstRemoval(candidate, count, removed, patients, keys, random);
+				break;
+			case RELATED:
+				relatedRemoval(candidate, count, removed, isRemoved, random);
+				break;
+			}
+			for (int i = 0; i < count; i++) {
+				isRemoved[removed[i]] = false;
+			}
+			if (repair == GREEDY) {
+				greedyInsertion(candidate, count, removed, random);
+			} else {
+				regretInsertion(candidate, count, removed);
+			}
+			improve(candidate);
+
+			uses[destroy]++;
+			uses[repair]++;
+			double delta = candidate.getPlanCost() - current.getPlanCost();
+			double score = 0;
+			boolean accepted = true;
+			if (candidate.getPlanCost() < best.getPlanCost() - EPS) {
+				score = settings.SCORE_BEST;
+				best.copyFrom(candidate);
+				lastImprovement = iteration;
+			} else if (delta < -EPS) {
+				score = settings.SCORE_BETTER;
+			} else if (delta > EPS && random.nextDouble() < Math.exp(-delta / temperature)) {
+				score = settings.SCORE_ACCEPTED;
+			} else {
+				accepted = false;
+			}
+			scores[destroy] += score;
+			scores[repair] += score;
+			if (accepted) {
+				PSOPlanner.Decoder t = current;
+				current = candidate;
+				candidate = t;
+			}
+
+			if (iteration % settings.SEGMENT == 0) {
+				for (int o = 0; o < OPERATORS; o++) {
+					if (uses[o] > 0) {
+						weights[o] = (1 - settings.REACTION) * weights[o] + settings.REACTION * scores[o] / uses[o];
+					}
+					// keep every operator in use
+					weights[o] = Math.max(weights[o], 0.01);
+				}
+				Arrays.fill(scores, 0);
+				Arrays.fill(uses, 0);
+			}
+		}
+		iterations[index] = iteration;
+		return best;
+	}
+
+	/**
+	 * Operator in [from; to), with a probability proportional to its weight.
+	 */
+	private static int choose(double[] weights, int from, int to, SplittableRandom random) {
+		double total = 0;
+		for (int o = from; o < to; o++) {
+			total += weights[o];
+		}
+		double x = random.nextDouble() * total;
+		for (int o = from; o < to - 1; o++) {
+			x -= weights[o];
+			if (x < 0)
+				return o;
+		}
+		return to - 1;
+	}
+
+	/**
+	 * Index in [0; size) biased towards 0 by <code>DETERMINISM</code>.
+	 */
+	private int biasedIndex(int size, SplittableRandom random) {
+		return (int) (Math.pow(random.nextDouble(), settings.DETERMINISM) * size);
+	}
+
+	/**
+	 * Removes <code>count</code> patients chosen uniformly.
+	 */
+	private void randomRemoval(PSOPlanner.Decoder decoder, int count, int[] removed, SplittableRandom random) {
+		int n = patientCount();
+		for (int i = 0; i < n; i++) {
+			removed[i] = i;
+		}
+		// partial Fisher-Yates shuffle
+		for (int i = 0; i < count; i++) {
+			int j = i + random.nextInt(n - i);
+			int t = removed[i];
+			removed[i] = removed[j];
+			removed[j] = t;
+			removePatient(decoder, removed[i]);
+		}
+	}
+
+	/**
+	 * Removes <code>count</code> patients, preferring the ones whose removal
+	 * saves most. Savings are computed once, on the plan before the removals.
+	 */
+	private void worstRemoval(PSOPlanner.Decoder decoder, int count, int[] removed, int[] patients, double[] keys,
+			SplittableRandom random) {
+		int n = patientCount();
+		for (int i = 0; i < n; i++) {
+			keys[i] = -removalGain(decoder, i);
+		}
+		Utils.sortIndices(keys, 0, n, patients);
+		int left = n;
+		for (int i = 0; i < count; i++) {
+			int k = biasedIndex(left, random);
+			removed[i] = patients[k];
+			System.arraycopy(patients, k + 1, patients, k, left - k - 1);
+			left--;
+			removePatient(decoder, removed[i]);
+		}
+	}
+
+	/**
+	 * Removes a random patient and then patients close to the removed ones,
+	 * from the neighbour lists of the local search.
+	 */
+	private void relatedRemoval(PSOPlanner.Decoder decoder, int count, int[] removed, boolean[] isRemoved,
+			SplittableRandom random) {
+		int n = patientCount();
+		removed[0] = random.nextInt(n);
+		isRemoved[removed[0]] = true;
+		removePatient(decoder, removed[0]);
+		for (int i = 1; i < count; i++) {
+			int[] neighbours = neighbours(removed[random.nextInt(i)]);
+			int next = -1;
+			// closest neighbours first, skipping the removed ones
+			for (int tries = 0; tries < neighbours.length && next < 0; tries++) {
+				int v = neighbours[biasedIndex(neighbours.length, random)];
+				if (!isRemoved[v]) {
+					next = v;
+				}
+			}
+			for (int k = 0; k < neighbours.length && next < 0; k++) {
+				if (!isRemoved[neighbours[k]]) {
+					next = neighbours[k];
+				}
+			}
+			while (next < 0 || isRemoved[next]) {
+				next = random.nextInt(n);
+			}
+			removed[i] = next;
+			isRemoved[next] = true;
+			removePatient(decoder, next);
+		}
+	}
+
+	/**
+	 * Inserts the removed patients in random order, each where it costs the
+	 * least.
+	 */
+	private void greedyInsertion(PSOPlanner.Decoder decoder, int count, int[] removed, SplittableRandom random) {
+		shuffle(removed, count, random);
+		for (int i = 0; i < count; i++) {
+			insertPatient(decoder, removed[i]);
+		}
+	}
+
+	/**
+	 * Inserts first the removed patient that would cost most if it could not
+	 * go to its best ambulance: the one with the largest difference between
+	 * its cheapest insertions in the two best routes.
+	 */
+	private void regretInsertion(PSOPlanner.Decoder decoder, int count, int[] removed) {
+		int ambCnt = ambulanceCount();
+		for (int left = count; left > 0; left--) {
+			int bestK = -1;
+			int bestAmbulance = -1;
+			double bestRegret = Double.NEGATIVE_INFINITY;
+			double bestCost = Double.POSITIVE_INFINITY;
+			for (int k = 0; k < left; k++) {
+				double first = Double.POSITIVE_INFINITY;
+				double second = Double.POSITIVE_INFINITY;
+				int firstAmbulance = -1;
+				for (int a = 0; a < ambCnt; a++) {
+					double cost = insertionCost(decoder, a, removed[k]);
+					if (cost < first) {
+						second = first;
+						first = cost;
+						firstAmbulance = a;
+					} else if (cost < second) {
+						second = cost;
+					}
+				}
+				// with one ambulance it is the cheapest insertion
+				double regret = ambCnt > 1 ? second - first : -first;
+				if (regret > bestRegret + EPS || regret > bestRegret - EPS && first < bestCost) {
+					bestK = k;
+					bestAmbulance = firstAmbulance;
+					bestRegret = regret;
+					bestCost = first;
+				}
+			}
+			insertPatient(decoder, bestAmbulance, removed[bestK]);
+			removed[bestK] = removed[left - 1];
+			removed[left - 1] = -1;
+		}
+	}
+
+	private static void shuffle(int[] array, int length, SplittableRandom random) {
+		for (int i = length - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int t = array[i];
+			array[i] = array[j];
+			array[j] = t;
+		}
+	}
+}
@@ -2,6 +2,8 @@ package planner;
 
 import java.util.Arrays;
 
+import metrics.PlanningPhaseEvent;
+
 /**
  * Solver for an assignment problem. Here we use a version of Hungarian
  * algorithm with asymptotic <code>O(N^3)</code>. Algorithm author: Andrei
@@ -12,7 +14,7 @@ public class AssignmentProblemSolver {
 	/**
 	 * Should be greater than any number in the given matrix.
 	 */
-	private static final int INF = Integer.MAX_VALUE / 10;
+	private static final long INF = Long.MAX_VALUE / 10;
 
 	//  just testing
 	public static void main(String[] args) {
@@ -38,12 +40,32 @@ public class AssignmentProblemSolver {
 	 * @return array of size N
 	 */
 	public static int[] solve(int[][] a) {
+		long[][] costs = new long[a.length][];
+		for (int i = 0; i < a.length; i++) {
+			costs[i] = new long[a[i].length];
+			for (int j = 0; j < a[i].length; j++) {
+				costs[i][j] = a[i][j];
+			}
+		}
+		return solve(costs);
+	}
+
+	/**
+	 * Same as {@link #solve(int[][])}, for when rounding to int loses too
+	 * much precision.
+	 *
+	 * @param a
+	 *            matrix of size NxM (values should be non-negative)
+	 * @return array of size N
+	 */
+	public static int[] solve(long[][] a) {
 		int n = a.length;
 		if (n == 0)
 			return new int[0];
 		int m = a[0].length;
-		int[] u = new int[n + 1]; // potential
-		int[] v = new int[m + 1]; // potential
+		PlanningPhaseEvent event = PlanningPhaseEvent.start("AssignmentProblemSolver.solve");
+		long[] u = new long[n + 1]; // potential
+		long[] v = new long[m + 1]; // potential
 		int[] p = new int[m + 1]; // maximum matching: for ith row, p[i] -
 									// matching column
 		int[] way = new int[m + 1]; // way[j] = argmin_i {a[i][j] - u[i] - v[j]}
@@ -51,18 +73,18 @@ public class AssignmentProblemSolver {
 		for (int i = 1; i <= n; i++) {
 			p[0] = i;
 			int j0 = 0;
-			int[] minv = new int[m + 1]; // minv[j] = min_i {a[i][j] - u[i] -
+			long[] minv = new long[m + 1]; // minv[j] = min_i {a[i][j] - u[i] -
 											// v[j]}
 			Arrays.fill(minv, INF);
 			boolean[] used = new boolean[m + 1];
 			do {
 				used[j0] = true;
 				int i0 = p[j0];
-				int delta = INF;
+				long delta = INF;
 				int j1 = -1;
 				for (int j = 1; j <= m; j++) {
 					if (!used[j]) {
-						int cur = a[i0 - 1][j - 1] - u[i0] - v[j];
+						long cur = a[i0 - 1][j - 1] - u[i0] - v[j];
 						if (cur < minv[j]) {
 							minv[j] = cur;
 							way[j] = j0;
@@ -98,6 +120,8 @@ public class AssignmentProblemSolver {
 			ans[p[j] - 1] = j - 1;
 		}
 
+		// rows are ambulances, columns are patients and centroids
+		event.finish(m, n, 0, 0);
 		return ans;
 	}
 }
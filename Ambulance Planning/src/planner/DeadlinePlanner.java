@@ -0,0 +1,183 @@
+package planner;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import metrics.Metrics;
+import model.Action;
+import model.Ambulance;
+import model.CityMap;
+
+/**
+ * Planner that guarantees a plan within a deadline.
+ * <p>
+ * The primary planner runs on a watchdog thread, on a snapshot of the map so
+ * that the simulation can go on if it misses the deadline. It gets a share of
+ * the budget; if it has not answered when that share is spent, the fallback
+ * planner (usually a fast greedy one like {@link HungarianPlanner}) plans on
+ * the live map in the rest of the budget. The plan of the primary is still
+ * used if it arrives while the fallback runs, otherwise the primary is
+ * interrupted. The fallback also plans if the primary fails.
+ */
+public class DeadlinePlanner extends Planner {
+
+	/**
+	 * Part of the deadline the primary planner is waited for, the rest is
+	 * left to the fallback planner.
+	 */
+	private static final double PRIMARY_BUDGET_SHARE = 0.8;
+
+	/**
+	 * Part of its budget the primary planner is asked to search for, the rest
+	 * is left to turn its best solution into actions.
+	 */
+	private static final double PRIMARY_SEARCH_SHARE = 0.8;
+
+	private final Planner primary;
+	private final Planner fallback;
+	private final ExecutorService watchdog;
+
+	/**
+	 * Set while the primary planner is running, including solves that missed
+	 * their deadline and have not noticed the interruption yet.
+	 */
+	private volatile boolean primaryRunning;
+	private boolean lastPlanFromFallback;
+	private int fallbackCount;
+
+	public DeadlinePlanner(Planner primary, Planner fallback) {
+		this.primary = primary;
+		this.fallback = fallback;
+		watchdog = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "planner-watchdog");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * How many times the fallback planner had to be used.
+	 */
+	public int getFallbackCount() {
+		return fallbackCount;
+	}
+
+	/**
+	 * Plans of the fallback planner may cover only part of the work, so
+	 * replanning after a drop is needed if either planner asks for it.
+	 */
+	@Override
+	public boolean replanAfterDropAction() {
+		return primary.replanAfterDropAction() || (lastPlanFromFallback && fallback.replanAfterDropAction());
+	}
+
+	@Override
+	public void setMetrics(Metrics metrics) {
+		super.setMetrics(metrics);
+		primary.setMetrics(metrics);
+		fallback.setMetrics(metrics);
+	}
+
+	@Override
+	public Map<Ambulance, List<Action>> solve(CityMap map, long millis) {
+		// planners keep state between calls, never run two solves at once
+		if (primaryRunning) {
+			return solveWithFallback(map, millis);
+		}
+
+		long primaryMillis = (long) (millis * PRIMARY_BUDGET_SHARE);
+		CityMap snapshot = map.snapshot();
+		// whoever sets it first clears the flag: the task when it starts, or
+		// cancel() when the task is cancelled before starting
+		AtomicBoolean started = new AtomicBoolean();
+		primaryRunning = true;
+		Future<Map<Ambulance, List<Action>>> pending = watchdog.submit(() -> {
+			if (!started.compareAndSet(false, true))
+				return null;
+			try {
+				return primary.solve(snapshot, (long) (primaryMillis * PRIMARY_SEARCH_SHARE));
+			} finally {
+				primaryRunning = false;
+			}
+		});
+		Map<Ambulance, List<Action>> plan;
+		try {
+			plan = pending.get(primaryMillis, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			// the primary may still answer while the fallback plans
+			Map<Ambulance, List<Action>> fallbackPlan = fallback.solve(map, millis - primaryMillis);
+			plan = pending.isDone() ? primaryPlan(pending) : null;
+			if (plan == null) {
+				cancel(pending, started);
+				return fallbackUsed(fallbackPlan);
+			}
+		} catch (InterruptedException e) {
+			cancel(pending, started);
+			Thread.currentThread().interrupt();
+			return solveWithFallback(map, millis - primaryMillis);
+		} catch (ExecutionException e) {
+			System.err.println("Primary planner failed: " + e.getCause());
+			return solveWithFallback(map, millis - primaryMillis);
+		}
+		lastPlanFromFallback = false;
+		return resolve(plan, map);
+	}
+
+	/**
+	 * Interrupts the primary planner. A task cancelled before it started
+	 * never runs, so the running flag is cleared here.
+	 */
+	private void cancel(Future<?> pending, AtomicBoolean started) {
+		pending.cancel(true);
+		if (started.compareAndSet(false, true)) {
+			primaryRunning = false;
+		}
+	}
+
+	/**
+	 * Plan of a finished primary solve, null if it failed.
+	 */
+	private static Map<Ambulance, List<Action>> primaryPlan(Future<Map<Ambulance, List<Action>>> pending) {
+		try {
+			return pending.get();
+		} catch (InterruptedException | ExecutionException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Brings a plan made on a snapshot back to the live map.
+	 */
+	private static Map<Ambulance, List<Action>> resolve(Map<Ambulance, List<Action>> plan, CityMap map) {
+		Map<Ambulance, List<Action>> resolved = new HashMap<>();
+		for (Map.Entry<Ambulance, List<Action>> entry : plan.entrySet()) {
+			List<Action> actions = new ArrayList<>(entry.getValue().size());
+			for (Action action : entry.getValue()) {
+				actions.add(action.resolve(map));
+			}
+			resolved.put(map.getAmbulanceById(entry.getKey().getId()), actions);
+		}
+		return resolved;
+	}
+
+	private Map<Ambulance, List<Action>> solveWithFallback(CityMap map, long millis) {
+		return fallbackUsed(fallback.solve(map, millis));
+	}
+
+	private Map<Ambulance, List<Action>> fallbackUsed(Map<Ambulance, List<Action>> plan) {
+		System.out.println("Deadline missed, using " + fallback.getClass().getSimpleName());
+		fallbackCount++;
+		metrics.counter("planner_fallbacks").increment();
+		lastPlanFromFallback = true;
+		return plan;
+	}
+}
@@ -0,0 +1,169 @@
+package planner;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of plan costs by patient ordering.
+ * <p>
+ * Particles that sort the patients in the same order decode into the same
+ * plan, which is common once the swarm converges. The cache is set
+ * associative: an ordering is hashed to a set of {@link #WAYS} entries and
+ * replaces the least recently used one when the set is full. Orderings are
+ * stored in full and compared on lookup, so a hash collision is a miss and
+ * never a wrong cost. Sets are guarded by striped locks, the cache can be used
+ * by the threads evaluating the swarm and allocates nothing after
+ * {@link #reset(int)}.
+ */
+class DecodeCache {
+
+	private static final int WAYS = 4;
+
+	private static final int LOCKS = 64;
+
+	/**
+	 * Upper bound of the stored orderings, in patients, to bound the memory
+	 * on large problems.
+	 */
+	private static final int MAX_STORED = 1 << 22;
+
+	private final int capacity;
+	private final Object[] locks = new Object[LOCKS];
+
+	private int sets;
+	private int length;
+	private long[] hashes = new long[0];
+	// last use of the entry in its set, 0 if empty
+	private long[] stamps = new long[0];
+	private long[] clocks = new long[0];
+	private double[] costs = new double[0];
+	// ordering of entry e in [e * length; (e + 1) * length)
+	private int[] orderings = new int[0];
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * @param capacity
+	 *            max entries, rounded to a power of two
+	 */
+	DecodeCache(int capacity) {
+		this.capacity = capacity;
+		for (int i = 0; i < LOCKS; i++) {
+			locks[i] = new Object();
+		}
+	}
+
+	/**
+	 * 64-bit hash of the first <code>length</code> elements of the ordering.
+	 */
+	static long hash(int[] ordering, int length) {
+		long h = length;
+		for (int i = 0; i < length; i++) {
+			h = (h + ordering[i]) * 0x9e3779b97f4a7c15L;
+			h ^= h >>> 29;
+		}
+		h ^= h >>> 32;
+		h *= 0xbf58476d1ce4e5b9L;
+		return h ^ h >>> 29;
+	}
+
+	/**
+	 * Cost of the ordering, NaN if it is not cached.
+	 */
+	double get(int[] ordering, long hash) {
+		int set = set(hash);
+		synchronized (locks[set & (LOCKS - 1)]) {
+			for (int e = set * WAYS; e < (set + 1) * WAYS; e++) {
+				if (stamps[e] != 0 && hashes[e] == hash && sameOrdering(e, ordering)) {
+					stamps[e] = ++clocks[set];
+					hits.increment();
+					return costs[e];
+				}
+			}
+		}
+		misses.increment();
+		return Double.NaN;
+	}
+
+	long getEvictions() {
+		return evictions.sum();
+	}
+
+	long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * Share of the lookups that were hits, 0 if there were none.
+	 */
+	double getHitRate() {
+		long h = hits.sum();
+		long total = h + misses.sum();
+		return total == 0 ? 0 : (double) h / total;
+	}
+
+	long getMisses() {
+		return misses.sum();
+	}
+
+	void put(int[] ordering, long hash, double cost) {
+		int set = set(hash);
+		synchronized (locks[set & (LOCKS - 1)]) {
+			int victim = set * WAYS;
+			for (int e = set * WAYS; e < (set + 1) * WAYS; e++) {
+				if (stamps[e] != 0 && hashes[e] == hash && sameOrdering(e, ordering))
+					return; // added by another thread meanwhile
+				if (stamps[e] < stamps[victim]) {
+					victim = e;
+				}
+			}
+			if (stamps[victim] != 0) {
+				evictions.increment();
+			}
+			hashes[victim] = hash;
+			stamps[victim] = ++clocks[set];
+			costs[victim] = cost;
+			System.arraycopy(ordering, 0, orderings, victim * length, length);
+		}
+	}
+
+	/**
+	 * Empties the cache and its statistics for orderings of the given length.
+	 * Arrays are reallocated only if they are too small.
+	 */
+	void reset(int length) {
+		this.length = length;
+		int entries = Integer.highestOneBit(Math.max(WAYS, Math.min(capacity, MAX_STORED / Math.max(1, length))));
+		sets = entries / WAYS;
+		if (hashes.length < entries) {
+			hashes = new long[entries];
+			stamps = new long[entries];
+			costs = new double[entries];
+			clocks = new long[sets];
+		} else {
+			Arrays.fill(stamps, 0);
+			Arrays.fill(clocks, 0);
+		}
+		if (orderings.length < entries * length) {
+			orderings = new int[entries * length];
+		}
+		hits.reset();
+		misses.reset();
+		evictions.reset();
+	}
+
+	private boolean sameOrdering(int entry, int[] ordering) {
+		int base = entry * length;
+		for (int i = 0; i < length; i++) {
+			if (orderings[base + i] != ordering[i])
+				return false;
+		}
+		return true;
+	}
+
+	private int set(long hash) {
+		return (int) (hash >>> 32) & (sets - 1);
+	}
+}
@@ -21,7 +21,7 @@ public class HungarianPlanner extends Planner {
 	}
 
 	@Override
-	public Map<Ambulance, List<Action>> solve(CityMap map) {
+	public Map<Ambulance, List<Action>> solve(CityMap map, long millis) {
 
 		Map<Ambulance, List<Action>> bigplan = new HashMap<Ambulance, List<Action>>();
 
@@ -65,6 +65,7 @@ public class HungarianPlanner extends Planner {
 				}
 			}
 
+			metrics.histogram("assignment_size").record(rowCount);
 			int[] destinations = AssignmentProblemSolver.solve(shortestDistances);
 			for (int ambIdx = 0; ambIdx < availAmb; ambIdx++) {
 				int ambId = availAmbIds[ambIdx];
@@ -0,0 +1,391 @@
+package planner;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Island model of PSO.
+ * <p>
+ * Several independent swarms (islands) search the same problem, each with its
+ * own seed. Every <code>MIGRATION_INTERVAL</code> iterations they stop, and
+ * the best particles of every island are sent to its neighbours in the
+ * topology, where they replace the worst particles. Islands run in threads of
+ * this process or in worker processes ({@link IslandWorker}) reached over the
+ * loopback interface. The result depends only on the settings and the seed,
+ * not on where the islands run, as long as the time budget is not reached.
+ */
+public class IslandPSO implements AutoCloseable {
+
+	/**
+	 * Where the migrants of an island go.
+	 */
+	public enum Topology {
+		// island i sends to island i + 1
+		RING,
+		// island 0 exchanges with all the others
+		STAR,
+		// every island sends to all the others
+		COMPLETE
+	}
+
+	/**
+	 * Problem that can be solved by islands in other processes. Workers create
+	 * it with the public no-argument constructor of its class and read it from
+	 * what the coordinator wrote.
+	 */
+	public interface Problem {
+
+		/**
+		 * Evaluator of the particles, used by all the islands of the process.
+		 */
+		PSO.PSOEvaluator evaluator();
+
+		void readProblem(DataInput in) throws IOException;
+
+		void writeProblem(DataOutput out) throws IOException;
+	}
+
+	/**
+	 * Defaults can be changed with the pso.islands, pso.workers,
+	 * pso.migrationInterval, pso.migrants and pso.topology system properties.
+	 */
+	public static class IslandSettings {
+		public int ISLANDS = Integer.getInteger("pso.islands", 1);
+		// islands that run in worker processes, the others run in threads
+		public int WORKERS = Integer.getInteger("pso.workers", 0);
+
+		public int MIGRATION_INTERVAL = Integer.getInteger("pso.migrationInterval", 10);
+		public int MIGRANTS = Integer.getInteger("pso.migrants", 1);
+		public Topology TOPOLOGY = Topology.valueOf(System.getProperty("pso.topology", "RING").toUpperCase());
+	}
+
+	/**
+	 * A swarm, local or remote.
+	 */
+	interface Island extends AutoCloseable {
+
+		@Override
+		void close();
+
+		/**
+		 * Copies of the best particles, best first.
+		 */
+		double[][] emigrants(int count, double[] evals) throws IOException;
+
+		double[] getBest() throws IOException;
+
+		double getBestEval();
+
+		int getPerformedIterations();
+
+		void immigrate(double[] particle, double eval) throws IOException;
+
+		void run(long millis, int iterations) throws IOException;
+	}
+
+	private static class LocalIsland implements Island {
+		private final PSO pso;
+
+		private LocalIsland(PSO pso) {
+			this.pso = pso;
+		}
+
+		@Override
+		public void close() {
+		}
+
+		@Override
+		public double[][] emigrants(int count, double[] evals) {
+			return pso.getBestParticles(count, evals);
+		}
+
+		@Override
+		public double[] getBest() {
+			return pso.getBest();
+		}
+
+		@Override
+		public double getBestEval() {
+			return pso.getBestEval();
+		}
+
+		@Override
+		public int getPerformedIterations() {
+			return pso.getPerformedIterations();
+		}
+
+		@Override
+		public void immigrate(double[] particle, double eval) {
+			pso.immigrate(particle, eval);
+		}
+
+		@Override
+		public void run(long millis, int iterations) {
+			pso.run(millis, iterations);
+		}
+	}
+
+	private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "pso-island");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private final PSO.PSOSettings settings;
+	private final IslandSettings islandSettings;
+	private final List<Island> islands = new ArrayList<>();
+
+	/**
+	 * @param initialParticles
+	 *            positions the first particles of every island start from,
+	 *            can be null
+	 */
+	public IslandPSO(Problem problem, int particleDims, double[][] worldBounds, PSO.PSOSettings settings,
+			IslandSettings islandSettings, double[][] initialParticles) {
+		this.settings = settings;
+		this.islandSettings = islandSettings;
+
+		int count = Math.max(1, islandSettings.ISLANDS);
+		PSO.PSOEvaluator evaluator = problem.evaluator();
+		SplittableRandom seeds = new SplittableRandom(settings.SEED);
+		for (int i = 0; i < count; i++) {
+			PSO.PSOSettings islandPsoSettings = copy(settings);
+			islandPsoSettings.SEED = seeds.nextLong();
+			// islands already run in parallel
+			islandPsoSettings.THREADS = Math.max(1, settings.THREADS / count);
+			Island island = null;
+			if (i < islandSettings.WORKERS) {
+				try {
+					island = IslandWorker.start(problem, particleDims, worldBounds, islandPsoSettings,
+							initialParticles);
+				} catch (IOException e) {
+					System.out.println("Island worker failed, running the island in a thread: " + e.getMessage());
+				}
+			}
+			if (island == null) {
+				island = new LocalIsland(
+						new PSO(evaluator, particleDims, worldBounds, islandPsoSettings, initialParticles));
+			}
+			islands.add(island);
+		}
+	}
+
+	private static PSO.PSOSettings copy(PSO.PSOSettings settings) {
+		PSO.PSOSettings copy = new PSO.PSOSettings();
+		copy.SWARM_SIZE = settings.SWARM_SIZE;
+		copy.MAX_ITER = settings.MAX_ITER;
+		copy.GLOBAL_ITER_THRES = settings.GLOBAL_ITER_THRES;
+		copy.OMEGA = settings.OMEGA;
+		copy.PHI_LOCAL = settings.PHI_LOCAL;
+		copy.PHI_GLOBAL = settings.PHI_GLOBAL;
+		copy.OMEGA_END = settings.OMEGA_END;
+		copy.PHI_LOCAL_END = settings.PHI_LOCAL_END;
+		copy.PHI_GLOBAL_END = settings.PHI_GLOBAL_END;
+		copy.STAGNATION_ITER = settings.STAGNATION_ITER;
+		copy.GAP_EPSILON = settings.GAP_EPSILON;
+		copy.SEED = settings.SEED;
+		copy.THREADS = settings.THREADS;
+		return copy;
+	}
+
+	/**
+	 * Workers go back to the pool, they are reused by the next runs.
+	 */
+	@Override
+	public void close() {
+		for (Island island : islands) {
+			island.close();
+		}
+		islands.clear();
+	}
+
+	/**
+	 * Iterations performed by the island that performed most.
+	 */
+	public int getPerformedIterations() {
+		int max = 0;
+		for (Island island : islands) {
+			max = Math.max(max, island.getPerformedIterations());
+		}
+		return max;
+	}
+
+	/**
+	 * Find and return the best solution of all the islands.
+	 * <p>
+	 * Stops early if the budget is spent, <code>MAX_ITER</code> iterations
+	 * were performed, no island improves anymore or the calling thread is
+	 * interrupted. Islands whose worker fails are dropped.
+	 *
+	 * @param millis
+	 *            max time in milliseconds
+	 * @return best found particle
+	 */
+	public double[] run(long millis) {
+		long start = System.currentTimeMillis();
+		int done = 0;
+		int interval = Math.max(1, islandSettings.MIGRATION_INTERVAL);
+		while (done < settings.MAX_ITER && !Thread.currentThread().isInterrupted()) {
+			long left = millis - (System.currentTimeMillis() - start);
+			if (left <= 0)
+				break;
+			int iterations = Math.min(interval, settings.MAX_ITER - done);
+			int before = totalIterations();
+			runEpoch(left, iterations);
+			if (totalIterations() == before)
+				break; // every island stopped improving
+			done += iterations;
+			if (islands.size() > 1) {
+				migrate();
+			}
+		}
+
+		Island best = null;
+		for (Island island : islands) {
+			if (best == null || island.getBestEval() < best.getBestEval()) {
+				best = island;
+			}
+		}
+		if (best == null)
+			throw new IllegalStateException("All the islands failed");
+		try {
+			return best.getBest();
+		} catch (IOException e) {
+			drop(best, e);
+			return run(0);
+		}
+	}
+
+	private void drop(Island island, Exception e) {
+		System.out.println("Island failed, dropping it: " + e.getMessage());
+		island.close();
+		islands.remove(island);
+	}
+
+	/**
+	 * Send the best particles of every island to its neighbours.
+	 */
+	private void migrate() {
+		int n = islands.size();
+		int migrants = islandSettings.MIGRANTS;
+		double[][] evals = new double[n][migrants];
+		double[][][] emigrants = new double[n][][];
+		List<Island> failed = new ArrayList<>();
+		for (int i = 0; i < n; i++) {
+			try {
+				emigrants[i] = islands.get(i).emigrants(migrants, evals[i]);
+			} catch (IOException e) {
+				emigrants[i] = new double[0][];
+				failed.add(islands.get(i));
+			}
+		}
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < n; j++) {
+				if (i == j || !isNeighbour(i, j, n) || failed.contains(islands.get(j)))
+					continue;
+				try {
+					for (int k = 0; k < emigrants[i].length; k++) {
+						islands.get(j).immigrate(emigrants[i][k], evals[i][k]);
+					}
+				} catch (IOException e) {
+					failed.add(islands.get(j));
+				}
+			}
+		}
+		for (Island island : failed) {
+			drop(island, new IOException("migration failed"));
+		}
+	}
+
+	/**
+	 * If island <code>from</code> sends its migrants to island
+	 * <code>to</code>.
+	 */
+	private boolean isNeighbour(int from, int to, int n) {
+		switch (islandSettings.TOPOLOGY) {
+		case RING:
+			return to == (from + 1) % n;
+		case STAR:
+			return from == 0 || to == 0;
+		default:
+			return true;
+		}
+	}
+
+	/**
+	 * Run all the islands in parallel for the given number of iterations. If
+	 * the calling thread is interrupted the islands are interrupted too, and
+	 * awaited so that none is still running when the result is read.
+	 */
+	private void runEpoch(long millis, int iterations) {
+		int n = islands.size();
+		CountDownLatch finished = new CountDownLatch(n);
+		Exception[] errors = new Exception[n];
+		// threads running the islands, to interrupt them
+		Thread[] runners = new Thread[n];
+		boolean[] stopped = new boolean[1];
+		for (int i = 0; i < n; i++) {
+			Island island = islands.get(i);
+			int index = i;
+			EXECUTOR.execute(() -> {
+				try {
+					synchronized (runners) {
+						if (stopped[0])
+							return;
+						runners[index] = Thread.currentThread();
+					}
+					island.run(millis, iterations);
+				} catch (IOException | RuntimeException e) {
+					errors[index] = e;
+				} finally {
+					synchronized (runners) {
+						runners[index] = null;
+					}
+					finished.countDown();
+				}
+			});
+		}
+
+		boolean interrupted = false;
+		while (true) {
+			try {
+				finished.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+				synchronized (runners) {
+					stopped[0] = true;
+					for (Thread runner : runners) {
+						if (runner != null) {
+							runner.interrupt();
+						}
+					}
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+
+		for (int i = n - 1; i >= 0; i--) {
+			if (errors[i] != null) {
+				drop(islands.get(i), errors[i]);
+			}
+		}
+	}
+
+	private int totalIterations() {
+		int total = 0;
+		for (Island island : islands) {
+			total += island.getPerformedIterations();
+		}
+		return total;
+	}
+}
@@ -0,0 +1,359 @@
+package planner;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Process hosting one island of an {@link IslandPSO}.
+ * <p>
+ * Workers are started by the coordinator with the same class path, connect
+ * back to it on the loopback interface and serve requests until the
+ * connection is closed. They are kept in a pool and reused by the next
+ * solves, so that the JVM start-up is paid once.
+ *
+ * <pre>
+ * java -cp Planner.jar planner.IslandWorker port
+ * </pre>
+ */
+public class IslandWorker {
+
+	// requests, every one but IMMIGRATE is answered
+	private static final byte INIT = 1;
+	private static final byte RUN = 2;
+	private static final byte EMIGRANTS = 3;
+	private static final byte IMMIGRATE = 4;
+	private static final byte BEST = 5;
+
+	/**
+	 * How long to wait for a new worker to connect.
+	 */
+	private static final int CONNECT_TIMEOUT_MILLIS = 30000;
+
+	/**
+	 * Connection to a worker process.
+	 */
+	private static class Connection {
+		private final Process process;
+		private final Socket socket;
+		private final DataInputStream in;
+		private final DataOutputStream out;
+
+		private Connection(Process process, Socket socket) throws IOException {
+			this.process = process;
+			this.socket = socket;
+			socket.setTcpNoDelay(true);
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		}
+
+		private void destroy() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// the process is killed anyway
+			}
+			process.destroy();
+		}
+	}
+
+	/**
+	 * Island in a worker process.
+	 */
+	private static class RemoteIsland implements IslandPSO.Island {
+		private final Connection connection;
+		private final int particleDims;
+		private double bestEval;
+		private int performedIterations;
+		private boolean broken;
+
+		private RemoteIsland(Connection connection, int particleDims) {
+			this.connection = connection;
+			this.particleDims = particleDims;
+		}
+
+		/**
+		 * Marks the connection broken if the request fails.
+		 */
+		private <T extends IOException> T broken(T e) {
+			broken = true;
+			return e;
+		}
+
+		@Override
+		public void close() {
+			if (broken) {
+				connection.destroy();
+			} else {
+				release(connection);
+			}
+		}
+
+		@Override
+		public double[][] emigrants(int count, double[] evals) throws IOException {
+			try {
+				connection.out.writeByte(EMIGRANTS);
+				connection.out.writeInt(count);
+				connection.out.flush();
+				double[][] particles = new double[connection.in.readInt()][];
+				for (int k = 0; k < particles.length; k++) {
+					evals[k] = connection.in.readDouble();
+					particles[k] = readParticle(connection.in, particleDims);
+				}
+				return particles;
+			} catch (IOException e) {
+				throw broken(e);
+			}
+		}
+
+		@Override
+		public double[] getBest() throws IOException {
+			try {
+				connection.out.writeByte(BEST);
+				connection.out.flush();
+				return readParticle(connection.in, particleDims);
+			} catch (IOException e) {
+				throw broken(e);
+			}
+		}
+
+		@Override
+		public double getBestEval() {
+			return bestEval;
+		}
+
+		@Override
+		public int getPerformedIterations() {
+			return performedIterations;
+		}
+
+		@Override
+		public void immigrate(double[] particle, double eval) throws IOException {
+			try {
+				connection.out.writeByte(IMMIGRATE);
+				connection.out.writeDouble(eval);
+				writeParticle(connection.out, particle);
+			} catch (IOException e) {
+				throw broken(e);
+			}
+		}
+
+		private void init(IslandPSO.Problem problem, double[][] worldBounds, PSO.PSOSettings settings,
+				double[][] initialParticles) throws IOException {
+			try {
+				DataOutputStream out = connection.out;
+				out.writeByte(INIT);
+				out.writeUTF(problem.getClass().getName());
+				problem.writeProblem(out);
+				out.writeInt(particleDims);
+				for (double[] bound : worldBounds) {
+					out.writeDouble(bound[0]);
+					out.writeDouble(bound[1]);
+				}
+				writeSettings(out, settings);
+				out.writeInt(initialParticles == null ? 0 : initialParticles.length);
+				if (initialParticles != null) {
+					for (double[] particle : initialParticles) {
+						writeParticle(out, particle);
+					}
+				}
+				out.flush();
+				bestEval = connection.in.readDouble();
+			} catch (IOException e) {
+				throw broken(e);
+			}
+		}
+
+		@Override
+		public void run(long millis, int iterations) throws IOException {
+			try {
+				connection.out.writeByte(RUN);
+				connection.out.writeLong(millis);
+				connection.out.writeInt(iterations);
+				connection.out.flush();
+				performedIterations = connection.in.readInt();
+				bestEval = connection.in.readDouble();
+			} catch (IOException e) {
+				throw broken(e);
+			}
+		}
+	}
+
+	// idle workers
+	private static final Deque<Connection> POOL = new ArrayDeque<>();
+
+	public static void main(String[] args) throws Exception {
+		try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(args[0]))) {
+			socket.setTcpNoDelay(true);
+			serve(new DataInputStream(new BufferedInputStream(socket.getInputStream())),
+					new DataOutputStream(new BufferedOutputStream(socket.getOutputStream())));
+		}
+	}
+
+	/**
+	 * Serves the requests of the coordinator until it closes the connection.
+	 */
+	private static void serve(DataInputStream in, DataOutputStream out) throws Exception {
+		PSO pso = null;
+		int dims = 0;
+		while (true) {
+			byte request;
+			try {
+				request = in.readByte();
+			} catch (EOFException e) {
+				return;
+			}
+			switch (request) {
+			case INIT:
+				IslandPSO.Problem problem = (IslandPSO.Problem) Class.forName(in.readUTF()).getConstructor()
+						.newInstance();
+				problem.readProblem(in);
+				dims = in.readInt();
+				double[][] bounds = new double[dims][2];
+				for (int i = 0; i < dims; i++) {
+					bounds[i][0] = in.readDouble();
+					bounds[i][1] = in.readDouble();
+				}
+				PSO.PSOSettings settings = readSettings(in);
+				double[][] initialParticles = new double[in.readInt()][];
+				for (int k = 0; k < initialParticles.length; k++) {
+					initialParticles[k] = readParticle(in, dims);
+				}
+				pso = new PSO(problem.evaluator(), dims, bounds, settings, initialParticles);
+				out.writeDouble(pso.getBestEval());
+				break;
+			case RUN:
+				long millis = in.readLong();
+				pso.run(millis, in.readInt());
+				out.writeInt(pso.getPerformedIterations());
+				out.writeDouble(pso.getBestEval());
+				break;
+			case EMIGRANTS:
+				int count = in.readInt();
+				double[] evals = new double[count];
+				double[][] particles = pso.getBestParticles(count, evals);
+				out.writeInt(particles.length);
+				for (int k = 0; k < particles.length; k++) {
+					out.writeDouble(evals[k]);
+					writeParticle(out, particles[k]);
+				}
+				break;
+			case IMMIGRATE:
+				double eval = in.readDouble();
+				pso.immigrate(readParticle(in, dims), eval);
+				break;
+			case BEST:
+				writeParticle(out, pso.getBest());
+				break;
+			default:
+				throw new IOException("Unknown request " + request);
+			}
+			out.flush();
+		}
+	}
+
+	/**
+	 * Island in a worker process, reused from the pool or started.
+	 */
+	static IslandPSO.Island start(IslandPSO.Problem problem, int particleDims, double[][] worldBounds,
+			PSO.PSOSettings settings, double[][] initialParticles) throws IOException {
+		Connection connection;
+		synchronized (POOL) {
+			connection = POOL.poll();
+		}
+		if (connection == null) {
+			connection = startProcess();
+		}
+		RemoteIsland island = new RemoteIsland(connection, particleDims);
+		try {
+			island.init(problem, worldBounds, settings, initialParticles);
+		} catch (IOException e) {
+			island.close();
+			throw e;
+		}
+		return island;
+	}
+
+	private static Connection startProcess() throws IOException {
+		try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+			server.setSoTimeout(CONNECT_TIMEOUT_MILLIS);
+			String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+			Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+					IslandWorker.class.getName(), Integer.toString(server.getLocalPort())).inheritIO().start();
+			try {
+				Connection connection = new Connection(process, server.accept());
+				Runtime.getRuntime().addShutdownHook(new Thread(connection::destroy));
+				return connection;
+			} catch (SocketTimeoutException e) {
+				process.destroy();
+				throw e;
+			}
+		}
+	}
+
+	private static void release(Connection connection) {
+		synchronized (POOL) {
+			POOL.push(connection);
+		}
+	}
+
+	private static double[] readParticle(DataInput in, int dims) throws IOException {
+		double[] particle = new double[dims];
+		for (int i = 0; i < dims; i++) {
+			particle[i] = in.readDouble();
+		}
+		return particle;
+	}
+
+	private static PSO.PSOSettings readSettings(DataInput in) throws IOException {
+		PSO.PSOSettings settings = new PSO.PSOSettings();
+		settings.SWARM_SIZE = in.readInt();
+		settings.MAX_ITER = in.readInt();
+		settings.GLOBAL_ITER_THRES = in.readInt();
+		settings.OMEGA = in.readDouble();
+		settings.PHI_LOCAL = in.readDouble();
+		settings.PHI_GLOBAL = in.readDouble();
+		settings.OMEGA_END = in.readDouble();
+		settings.PHI_LOCAL_END = in.readDouble();
+		settings.PHI_GLOBAL_END = in.readDouble();
+		settings.STAGNATION_ITER = in.readInt();
+		settings.GAP_EPSILON = in.readDouble();
+		settings.SEED = in.readLong();
+		settings.THREADS = in.readInt();
+		return settings;
+	}
+
+	private static void writeParticle(DataOutput out, double[] particle) throws IOException {
+		for (double x : particle) {
+			out.writeDouble(x);
+		}
+	}
+
+	private static void writeSettings(DataOutput out, PSO.PSOSettings settings) throws IOException {
+		out.writeInt(settings.SWARM_SIZE);
+		out.writeInt(settings.MAX_ITER);
+		out.writeInt(settings.GLOBAL_ITER_THRES);
+		out.writeDouble(settings.OMEGA);
+		out.writeDouble(settings.PHI_LOCAL);
+		out.writeDouble(settings.PHI_GLOBAL);
+		out.writeDouble(settings.OMEGA_END);
+		out.writeDouble(settings.PHI_LOCAL_END);
+		out.writeDouble(settings.PHI_GLOBAL_END);
+		out.writeInt(settings.STAGNATION_ITER);
+		out.writeDouble(settings.GAP_EPSILON);
+		out.writeLong(settings.SEED);
+		out.writeInt(settings.THREADS);
+	}
+}
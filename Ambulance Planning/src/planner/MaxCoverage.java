@@ -3,7 +3,9 @@ package planner;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
+import java.util.stream.DoubleStream;
 
+import metrics.PlanningPhaseEvent;
 import model.CityMap;
 
 /**
@@ -151,10 +153,12 @@ public class MaxCoverage {
 	 * @returns the optimal location for the ambulances
 	 */
 	public static int[] findMaxCoverageLocations(int numCentroid, CityMap map) {
+		PlanningPhaseEvent event = PlanningPhaseEvent.start("findMaxCoverageLocations");
 		double[][] distance = map.getShortestDistances();
-		double[] demand = map.getDemands().stream().mapToDouble(d -> d).toArray();
-		double demandSum = map.getDemands().stream().max(Double::compareTo).get();
-		double[] demandNorm = map.getDemands().stream().mapToDouble(d -> d / demandSum).toArray();
+		// learnt demand if the city has a demand model, static one otherwise
+		double[] demand = map.getForecastDemands();
+		double demandSum = DoubleStream.of(demand).max().getAsDouble();
+		double[] demandNorm = DoubleStream.of(demand).map(d -> d / demandSum).toArray();
 
 		int[] optLocation = new int[numCentroid];
 		int numNodes = demand.length;
@@ -197,23 +201,32 @@ public class MaxCoverage {
 			optLocation = bestGuess;
 		}
 
+		event.finish(0, numCentroid, numNodes, 0);
 		return optLocation;
 	}
 
 	/**
 	 * Calculates the confidence for a node to be an apt location for the
-	 * ambulance to be placed in a cluster
+	 * ambulance to be placed in a cluster: the inverse of the demand weighted
+	 * average distance to the nodes of the cluster
 	 * 
-	 * @params weightDist - weighted distance from other nodes
+	 * @params weightDist - demand and distance of the other nodes
 	 * 
 	 * @params demNode - demand at that node
 	 */
 	public static double penalty(double[][] weightDist, double demNode) {
 		double denominator = 0;
+		double weighted = 0;
+		double weightSum = demNode;
 		for (double[] element : weightDist) {
-			// numerator+=weightDist[i][0];
 			denominator += element[1];
+			weighted += element[0] * element[1];
+			weightSum += element[0];
 		}
-		return 1.0 / (denominator / (weightDist.length + 1));
+		if (weightSum <= 0) {
+			// no demand in the cluster, plain average distance
+			return 1.0 / (denominator / (weightDist.length + 1));
+		}
+		return 1.0 / (weighted / weightSum);
 	}
 }
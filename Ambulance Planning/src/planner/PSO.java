@@ -1,17 +1,32 @@
 package planner;
 
 import java.util.Arrays;
-import java.util.Random;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
 
 /**
  * Particle Swarm Optimization algorithm.
+ * <p>
+ * The swarm is stored in flat arrays, particle after particle, so that an
+ * iteration walks contiguous memory and allocates nothing.
  */
 public class PSO {
 
 	/**
 	 * Abstract class that connects PSO with real task.
+	 * <p>
+	 * Particles are evaluated in parallel, so the evaluation must be
+	 * thread-safe: it may be called concurrently on different particles and
+	 * must not change shared state.
 	 */
 	public static abstract class PSOEvaluator {
+
+		private final ThreadLocal<double[]> buffer = ThreadLocal.withInitial(() -> new double[0]);
+
 		/**
 		 * Decode particle and return estimated value.
 		 *
@@ -20,6 +35,31 @@ public class PSO {
 		 * @return estimated value
 		 */
 		public abstract double evaluate(double[] particle);
+
+		/**
+		 * Evaluate the particle stored in
+		 * <code>swarm[offset; offset + dims)</code>. By default it is copied
+		 * in a per-thread buffer, evaluators can override it to read the swarm
+		 * directly.
+		 */
+		public double evaluate(double[] swarm, int offset, int dims) {
+			double[] particle = buffer.get();
+			if (particle.length != dims) {
+				particle = new double[dims];
+				buffer.set(particle);
+			}
+			System.arraycopy(swarm, offset, particle, 0, dims);
+			return evaluate(particle);
+		}
+
+		/**
+		 * Value no particle evaluates below, used to stop the search once the
+		 * best evaluation is close enough to it. Asked once by every swarm,
+		 * by default there is none.
+		 */
+		public double lowerBound() {
+			return Double.NEGATIVE_INFINITY;
+		}
 	}
 
 	/**
@@ -37,9 +77,125 @@ public class PSO {
 		public double OMEGA = 0.6;
 		public double PHI_LOCAL = 0.3;
 		public double PHI_GLOBAL = 0.1;
+
+		/*
+		 * Values reached at MAX_ITER, or when the time budget is spent if
+		 * that comes first: the coefficients change linearly from the values
+		 * above to these ones, e.g. a decreasing inertia and a local
+		 * acceleration that gives way to the global one. NaN keeps the
+		 * coefficient fixed.
+		 */
+		public double OMEGA_END = Double.NaN;
+		public double PHI_LOCAL_END = Double.NaN;
+		public double PHI_GLOBAL_END = Double.NaN;
+
+		/*
+		 * Particles whose memory did not improve for this many iterations
+		 * restart from a random position, 0 to disable. The particle holding
+		 * the global best never restarts.
+		 */
+		public int STAGNATION_ITER = 0;
+
+		/*
+		 * The search stops once the best evaluation is within this absolute
+		 * gap of the lower bound of the evaluator, negative to disable. The
+		 * default 0 stops only at a proven optimum, up to the floating point
+		 * error (MIN_GAP). Can be changed with the pso.gap system property.
+		 */
+		public double GAP_EPSILON = Double.parseDouble(System.getProperty("pso.gap", "0"));
+
+		/*
+		 * Every particle gets its own random stream split from SEED, so the
+		 * result does not depend on THREADS. Defaults can be changed with the
+		 * pso.seed and pso.threads system properties.
+		 */
+		public long SEED = Long.getLong("pso.seed", 239);
+		public int THREADS = Integer.getInteger("pso.threads", Runtime.getRuntime().availableProcessors());
+
+		/**
+		 * Default settings, adaptive if the pso.adaptive system property is
+		 * true.
+		 */
+		public PSOSettings() {
+			if (Boolean.getBoolean("pso.adaptive")) {
+				setAdaptive(true, 20);
+			}
+		}
+
+		/**
+		 * Use a decreasing inertia, a local acceleration that decreases while
+		 * the global one increases, and restarts of the particles that
+		 * stagnate. It reached the best costs in fewer evaluations on
+		 * generated instances, see the convergence mode of
+		 * {@link PSOBenchmark}.
+		 *
+		 * @param schedules
+		 *            whether the coefficients change over the iterations,
+		 *            otherwise the fixed defaults are used
+		 * @param stagnationIter
+		 *            iterations without improvement before a restart, 0
+		 *            for none
+		 */
+		public void setAdaptive(boolean schedules, int stagnationIter) {
+			if (schedules) {
+				OMEGA = 0.9;
+				OMEGA_END = 0.4;
+				PHI_LOCAL = 0.5;
+				PHI_LOCAL_END = 0.1;
+				PHI_GLOBAL = 0.1;
+				PHI_GLOBAL_END = 0.5;
+			} else {
+				OMEGA = 0.6;
+				PHI_LOCAL = 0.3;
+				PHI_GLOBAL = 0.1;
+				OMEGA_END = PHI_LOCAL_END = PHI_GLOBAL_END = Double.NaN;
+			}
+			STAGNATION_ITER = stagnationIter;
+		}
+	}
+
+	/**
+	 * Applies the current action to a range of particles. Tasks are created
+	 * once and reinitialized at every iteration.
+	 */
+	private class ParticleTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final int from;
+		private final int to;
+
+		private ParticleTask(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			for (int i = from; i < to; i++) {
+				action.accept(i);
+			}
+		}
 	}
 
-	private static final Random random = new Random(239);
+	/**
+	 * Pools shared by all the instances, by parallelism.
+	 */
+	private static final Map<Integer, ForkJoinPool> POOLS = new ConcurrentHashMap<>();
+
+	/**
+	 * Chunks per thread, to balance particles that take longer to evaluate.
+	 */
+	private static final int CHUNKS_PER_THREAD = 4;
+
+	/**
+	 * Gap under which the lower bound is reached, relative to the
+	 * evaluation, for the floating point errors of the evaluation and of the
+	 * bound.
+	 */
+	private static final double MIN_GAP = 1e-9;
+
+	private final SplittableRandom random;
+	private SplittableRandom[] particleRandoms;
 
 	private PSOSettings settings;
 	private int swarmSize;
@@ -48,25 +204,64 @@ public class PSO {
 	private int particleDims;
 	private double[][] worldBounds;
 
-	private double[][] particles;
-	private double[][] velocities;
-	private double[][] localBest;
+	// particle i is stored in [i * particleDims; (i + 1) * particleDims)
+	private double[] particles;
+	private double[] velocities;
+	private double[] localBest;
 	private double[] globalBest;
-	private int[] localBestIteration; // todo: use to re-init bad outdated
-										// particles (not necessary)
+	private double[][] initialParticles;
+	private int[] localBestIteration;
 	private int globalBestIteration;
 
 	private double[] localBestEval;
+	private double[] evals;
 
 	private double globalBestEval;
+	private final double lowerBound;
 
 	private int iteration;
+	// start of the first run and end of the budget of the current one
+	private long searchStartTime = -1;
+	private long searchDeadline = Long.MAX_VALUE;
+
+	// coefficients of the current iteration
+	private double curOmega;
+	private double curPhiLocal;
+	private double curPhiGlobal;
+
+	private int performedIterations;
+
+	private ParticleTask[] tasks;
+	private final RecursiveAction allTasks = new RecursiveAction() {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected void compute() {
+			invokeAll(tasks);
+		}
+	};
+	private IntConsumer action;
+	private final IntConsumer initParticle = this::initParticle;
+	private final IntConsumer moveParticle = this::moveParticle;
 
 	public PSO(PSOEvaluator evaluator, int particleDims, double[][] worldBounds) {
 		this(evaluator, particleDims, worldBounds, new PSOSettings());
 	}
 
 	public PSO(PSOEvaluator evaluator, int particleDims, double[][] worldBounds, PSOSettings settings) {
+		this(evaluator, particleDims, worldBounds, settings, null);
+	}
+
+	/**
+	 * Swarm whose first particles start from the given positions, e.g. known
+	 * good solutions, instead of random ones. Their velocities are random as
+	 * for the others.
+	 *
+	 * @param initialParticles
+	 *            positions of the first particles, can be null
+	 */
+	public PSO(PSOEvaluator evaluator, int particleDims, double[][] worldBounds, PSOSettings settings,
+			double[][] initialParticles) {
 		assert particleDims == worldBounds.length;
 
 		this.evaluator = evaluator;
@@ -74,10 +269,33 @@ public class PSO {
 		this.worldBounds = worldBounds;
 		this.settings = settings;
 		swarmSize = settings.SWARM_SIZE;
+		random = new SplittableRandom(settings.SEED);
+		this.initialParticles = initialParticles;
+		// the bound can cost more than the search, only for the gap stop
+		lowerBound = settings.GAP_EPSILON >= 0 ? evaluator.lowerBound() : Double.NEGATIVE_INFINITY;
 
 		init();
 	}
 
+	/**
+	 * Run the action for every particle, in parallel if more threads are
+	 * allowed. The action must only touch the data of its particle.
+	 */
+	private void forEachParticle(IntConsumer action) {
+		this.action = action;
+		if (tasks == null) {
+			for (int i = 0; i < swarmSize; i++) {
+				action.accept(i);
+			}
+			return;
+		}
+		for (ParticleTask task : tasks) {
+			task.reinitialize();
+		}
+		allTasks.reinitialize();
+		POOLS.computeIfAbsent(settings.THREADS, ForkJoinPool::new).invoke(allTasks);
+	}
+
 	/**
 	 * Get a valid random particle to use it outside PSO.
 	 */
@@ -86,11 +304,89 @@ public class PSO {
 		for (int j = 0; j < particleDims; j++) {
 			double min = worldBounds[j][0];
 			double max = worldBounds[j][1];
-			p[j] = unid(min, max);
+			p[j] = unid(random, min, max);
 		}
 		return p;
 	}
 
+	/**
+	 * Copy of the best particle found so far.
+	 */
+	public double[] getBest() {
+		return Arrays.copyOf(globalBest, particleDims);
+	}
+
+	/**
+	 * Value of the best particle found so far.
+	 */
+	public double getBestEval() {
+		return globalBestEval;
+	}
+
+	/**
+	 * Copies of the best positions found by the particles, best first, to
+	 * send them to other swarms.
+	 *
+	 * @param count
+	 *            max number of particles
+	 * @param evals
+	 *            filled with the values of the returned particles
+	 */
+	public double[][] getBestParticles(int count, double[] evals) {
+		count = Math.min(count, swarmSize);
+		Integer[] order = new Integer[swarmSize];
+		for (int i = 0; i < swarmSize; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, (a, b) -> Double.compare(localBestEval[a], localBestEval[b]));
+		double[][] result = new double[count][];
+		for (int k = 0; k < count; k++) {
+			int i = order[k];
+			result[k] = Arrays.copyOfRange(localBest, i * particleDims, (i + 1) * particleDims);
+			evals[k] = localBestEval[i];
+		}
+		return result;
+	}
+
+	/**
+	 * Number of iterations performed by all the calls to
+	 * {@link #run(long)}.
+	 */
+	public int getPerformedIterations() {
+		return performedIterations;
+	}
+
+	/**
+	 * Replace the particle with the worst memory by a particle found by
+	 * another swarm, if it is better. The velocity of the replaced particle is
+	 * kept so that the immigrant keeps exploring.
+	 *
+	 * @param particle
+	 *            position of the immigrant
+	 * @param eval
+	 *            its value
+	 */
+	public void immigrate(double[] particle, double eval) {
+		int worst = 0;
+		for (int i = 1; i < swarmSize; i++) {
+			if (localBestEval[i] > localBestEval[worst]) {
+				worst = i;
+			}
+		}
+		if (!(eval < localBestEval[worst]))
+			return;
+		int base = worst * particleDims;
+		System.arraycopy(particle, 0, particles, base, particleDims);
+		System.arraycopy(particle, 0, localBest, base, particleDims);
+		localBestEval[worst] = eval;
+		localBestIteration[worst] = iteration;
+		if (eval < globalBestEval) {
+			System.arraycopy(particle, 0, globalBest, 0, particleDims);
+			globalBestEval = eval;
+			globalBestIteration = iteration;
+		}
+	}
+
 	/**
 	 * Initialize the swarm of particles.
 	 */
@@ -98,111 +394,220 @@ public class PSO {
 		/*
 		 * Initialize all arrays
 		 */
-		particles = new double[swarmSize][particleDims];
-		velocities = new double[swarmSize][particleDims];
-
-		localBest = new double[swarmSize][];
-		globalBest = null;
+		int size = swarmSize * particleDims;
+		particles = new double[size];
+		velocities = new double[size];
+		localBest = new double[size];
+		globalBest = new double[particleDims];
 
 		localBestIteration = new int[swarmSize];
 		globalBestIteration = 0;
 		iteration = 0;
 
 		localBestEval = new double[swarmSize];
-		Arrays.fill(localBestEval, Double.POSITIVE_INFINITY);
+		evals = new double[swarmSize];
 		globalBestEval = Double.POSITIVE_INFINITY;
 
+		particleRandoms = new SplittableRandom[swarmSize];
+		for (int i = 0; i < swarmSize; i++) {
+			particleRandoms[i] = random.split();
+		}
+
+		if (settings.THREADS > 1 && swarmSize > 1) {
+			int chunks = Math.min(swarmSize, settings.THREADS * CHUNKS_PER_THREAD);
+			tasks = new ParticleTask[chunks];
+			for (int c = 0; c < chunks; c++) {
+				tasks[c] = new ParticleTask(c * swarmSize / chunks, (c + 1) * swarmSize / chunks);
+			}
+		}
+
 		/*
 		 * Randomize initial swarm, in respect of given bounds
 		 */
+		forEachParticle(initParticle);
+		initialParticles = null;
+		// in particle order, as the sequential version
+		boolean found = false;
 		for (int i = 0; i < swarmSize; i++) {
-			for (int j = 0; j < particleDims; j++) {
-				double min = worldBounds[j][0];
-				double max = worldBounds[j][1];
-				particles[i][j] = unid(min, max);
-				velocities[i][j] = unid(-(max - min), max - min);
-			}
-			localBest[i] = Arrays.copyOf(particles[i], particleDims);
-			localBestEval[i] = evaluator.evaluate(particles[i]);
 			if (localBestEval[i] < globalBestEval) {
-				globalBest = Arrays.copyOf(localBest[i], particleDims);
+				System.arraycopy(localBest, i * particleDims, globalBest, 0, particleDims);
 				globalBestEval = localBestEval[i];
+				found = true;
 			}
 		}
 
-		if (globalBest == null)
+		if (!found)
 			throw new IllegalArgumentException("No valid solution found in initial particle swarm");
 	}
 
+	private void initParticle(int i) {
+		SplittableRandom r = particleRandoms[i];
+		int base = i * particleDims;
+		boolean given = initialParticles != null && i < initialParticles.length;
+		for (int j = 0; j < particleDims; j++) {
+			double min = worldBounds[j][0];
+			double max = worldBounds[j][1];
+			particles[base + j] = given ? initialParticles[i][j] : unid(r, min, max);
+			velocities[base + j] = unid(r, -(max - min), max - min);
+		}
+		System.arraycopy(particles, base, localBest, base, particleDims);
+		localBestEval[i] = evaluator.evaluate(particles, base, particleDims);
+	}
+
 	/**
-	 * Perform one iteration.
+	 * Shift a particle according to its velocity and best solutions, then
+	 * evaluate it.
+	 * <p>
+	 * The update walks contiguous memory. Its cost is dominated by the two
+	 * random numbers drawn per dimension, drawing them in a separate pass to
+	 * leave a vectorizable loop was measured to be slower.
+	 */
+	private void moveParticle(int i) {
+		SplittableRandom r = particleRandoms[i];
+		int base = i * particleDims;
+		if (settings.STAGNATION_ITER > 0 && iteration - localBestIteration[i] > settings.STAGNATION_ITER
+				&& localBestEval[i] > globalBestEval) {
+			restartParticle(i);
+			return;
+		}
+		double omega = curOmega;
+		double phiLocal = curPhiLocal;
+		double phiGlobal = curPhiGlobal;
+		for (int j = 0; j < particleDims; j++) {
+			int k = base + j;
+			double v = omega * velocities[k] + phiLocal * r.nextDouble() * (localBest[k] - particles[k])
+					+ phiGlobal * r.nextDouble() * (globalBest[j] - particles[k]);
+			velocities[k] = v;
+			particles[k] += v;
+		}
+
+		evals[i] = evaluator.evaluate(particles, base, particleDims);
+	}
+
+	/**
+	 * Perform one iteration: particles are moved and evaluated in parallel,
+	 * then the global best is updated.
 	 */
 	private void performIteration() {
-		shiftParticles();
+		performedIterations++;
+		iteration++;
+		// share of the iterations or of the time budget spent
+		double progress = (double) iteration / settings.MAX_ITER;
+		if (searchDeadline != Long.MAX_VALUE) {
+			progress = Math.max(progress, (double) (System.currentTimeMillis() - searchStartTime)
+					/ Math.max(1, searchDeadline - searchStartTime));
+		}
+		progress = Math.min(1, progress);
+		curOmega = schedule(settings.OMEGA, settings.OMEGA_END, progress);
+		curPhiLocal = schedule(settings.PHI_LOCAL, settings.PHI_LOCAL_END, progress);
+		curPhiGlobal = schedule(settings.PHI_GLOBAL, settings.PHI_GLOBAL_END, progress);
+		forEachParticle(moveParticle);
 		updateValues();
 	}
 
+	/**
+	 * Coefficient going linearly from start to end, fixed if end is NaN.
+	 */
+	private static double schedule(double start, double end, double progress) {
+		return Double.isNaN(end) ? start : start + (end - start) * progress;
+	}
+
+	/**
+	 * Restart a stagnated particle from a random position, forgetting its
+	 * memory.
+	 */
+	private void restartParticle(int i) {
+		initParticle(i);
+		localBestIteration[i] = iteration;
+		evals[i] = localBestEval[i];
+	}
+
+	/**
+	 * If the best evaluation is within <code>GAP_EPSILON</code> of the lower
+	 * bound of the evaluator.
+	 */
+	public boolean isGapClosed() {
+		return isGapClosed(globalBestEval, lowerBound, settings.GAP_EPSILON);
+	}
+
+	/**
+	 * If the evaluation is within the absolute gap of the lower bound, never
+	 * if the gap is negative. The gap is not relative to the evaluation: a
+	 * large part of it can be the same for every particle.
+	 */
+	public static boolean isGapClosed(double eval, double lowerBound, double gap) {
+		if (gap < 0 || Double.isInfinite(lowerBound) || Double.isInfinite(eval))
+			return false;
+		return eval - lowerBound <= gap + MIN_GAP * Math.abs(eval);
+	}
+
 	/**
 	 * Find and return best solution.
+	 * <p>
+	 * Stops early if the budget is spent, the best evaluation is close
+	 * enough to the lower bound of the evaluator or the calling thread is
+	 * interrupted, in all cases the best particle found so far is returned.
 	 *
 	 * @param millis
 	 *            max time in milliseconds
 	 * @return best found particle
 	 */
 	public double[] run(long millis) {
-		long algorithmStartTime = System.currentTimeMillis();
-		for (int it = 0; it < settings.MAX_ITER && iteration - globalBestIteration < settings.GLOBAL_ITER_THRES
-				&& System.currentTimeMillis() - algorithmStartTime < millis; it++) {
-			performIteration();
-		}
-
-		return globalBest;
+		return run(millis, settings.MAX_ITER);
 	}
 
 	/**
-	 * Shift particles according to their velocities and best solutions.
+	 * Same as {@link #run(long)}, with at most the given number of
+	 * iterations. Can be called again to continue the search.
 	 */
-	private void shiftParticles() {
-		for (int i = 0; i < swarmSize; i++) {
-			for (int j = 0; j < particleDims; j++) {
-				double rLocal = random.nextDouble();
-				double rGlobal = random.nextDouble();
-				velocities[i][j] = settings.OMEGA * velocities[i][j]
-						+ settings.PHI_LOCAL * rLocal * (localBest[i][j] - particles[i][j])
-						+ settings.PHI_GLOBAL * rGlobal * (globalBest[j] - particles[i][j]);
-				particles[i][j] += velocities[i][j];
-			}
+	public double[] run(long millis, int maxIterations) {
+		long algorithmStartTime = System.currentTimeMillis();
+		if (searchStartTime < 0) {
+			searchStartTime = algorithmStartTime;
 		}
+		// islands run a few iterations at a time with what is left of the budget
+		searchDeadline = millis < Long.MAX_VALUE - algorithmStartTime ? algorithmStartTime + millis : Long.MAX_VALUE;
+		for (int it = 0; it < maxIterations && iteration - globalBestIteration < settings.GLOBAL_ITER_THRES
+				&& !isGapClosed() && System.currentTimeMillis() - algorithmStartTime < millis
+				&& !Thread.currentThread().isInterrupted(); it++) {
+			performIteration();
+		}
+
+		return getBest();
 	}
 
 	/**
 	 * Uniform distribution U[l; r].
 	 *
+	 * @param random
+	 *            stream to use
 	 * @param l
 	 *            left bound
 	 * @param r
 	 *            right bound
 	 * @return point on the specified segment
 	 */
-	private double unid(double l, double r) {
+	private static double unid(SplittableRandom random, double l, double r) {
 		return l + random.nextDouble() * (r - l);
 	}
 
 	/**
-	 * Update local and global memories.
+	 * Update local and global memories with the evaluations of the
+	 * iteration.
 	 */
 	private void updateValues() {
 		for (int i = 0; i < swarmSize; i++) {
-			double curEval = evaluator.evaluate(particles[i]);
+			double curEval = evals[i];
 			if (curEval < localBestEval[i]) {
-				localBest[i] = Arrays.copyOf(particles[i], particleDims);
+				System.arraycopy(particles, i * particleDims, localBest, i * particleDims, particleDims);
 				localBestEval[i] = curEval;
 				localBestIteration[i] = iteration;
-				if (curEval < globalBestEval) {
-					globalBest = Arrays.copyOf(particles[i], particleDims);
-					globalBestEval = curEval;
-					globalBestIteration = iteration;
-				}
+			}
+			// restarted particles have no better memory, but can be the best
+			if (curEval < globalBestEval) {
+				System.arraycopy(particles, i * particleDims, globalBest, 0, particleDims);
+				globalBestEval = curEval;
+				globalBestIteration = iteration;
 			}
 		}
 	}
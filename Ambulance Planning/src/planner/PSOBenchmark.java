@@ -0,0 +1,446 @@
+package planner;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+import model.CityMap;
+import model.CityParser;
+
+/**
+ * Micro benchmarks of the PSO hot paths.
+ * <p>
+ * <code>swarm</code> measures the swarm update alone: particles are evaluated
+ * with a trivial function, and the throughput is reported in particle
+ * dimensions updated per second together with the bytes allocated per
+ * iteration by the calling thread (run it with <code>-Dpso.threads=1</code>
+ * to see all the allocations).
+ * <p>
+ * <code>decode</code> measures the decoding of random particles by
+ * {@link PSOPlanner} on the given city, with the given number of random
+ * patients added, and reports the time and the bytes allocated per decode.
+ * <p>
+ * <code>convergence</code> compares PSO settings on generated instances (the
+ * city with random patients): for every setting the best plan cost is
+ * recorded after every iteration, averaged over the instances and the seeds,
+ * and reported as the gap to the best cost found on the instance, together
+ * with the evaluations needed to reach it.
+ * <p>
+ * <code>alns</code> compares {@link ALNSPlanner} to PSO on generated
+ * instances with the given time budgets: for every budget it reports the mean
+ * gap to the best cost found on the instance and the CPU time of the process,
+ * so that the costs are compared for the CPU they used.
+ * <p>
+ * <code>bound</code> runs PSO on generated instances with and without the
+ * early stop at the given gap to the lower bound of {@link PlanLowerBound},
+ * and reports the gaps, the iterations and the cost lost by stopping early.
+ *
+ * <pre>
+ * java -cp Planner.jar planner.PSOBenchmark swarm [dims] [swarmSize] [iterations]
+ * java -cp Planner.jar planner.PSOBenchmark decode city.pddl [patients] [decodes]
+ * java -cp Planner.jar planner.PSOBenchmark convergence city.pddl [patients] [instances] [seeds] [iterations]
+ * java -cp Planner.jar planner.PSOBenchmark alns city.pddl [patients] [instances] [millis...]
+ * java -cp Planner.jar planner.PSOBenchmark bound city.pddl [patients] [instances] [gap]
+ * </pre>
+ */
+public class PSOBenchmark {
+
+	/**
+	 * Relative gap to the best known cost under which a run has converged.
+	 * Most of a plan cost is the same for all the plans (every patient goes
+	 * to a hospital), so only reaching the best cost is meaningful.
+	 */
+	private static final double TARGET_GAP = 1e-9;
+
+	private static final int STAGNATION_ITER = 20;
+
+	/**
+	 * Distance from the center of the bounds, cheap and allocation-free.
+	 */
+	private static class SphereEvaluator extends PSO.PSOEvaluator {
+		@Override
+		public double evaluate(double[] particle) {
+			return evaluate(particle, 0, particle.length);
+		}
+
+		@Override
+		public double evaluate(double[] swarm, int offset, int dims) {
+			double sum = 0;
+			for (int i = offset; i < offset + dims; i++) {
+				double d = swarm[i] - 0.5;
+				sum += d * d;
+			}
+			return sum;
+		}
+	}
+
+	public static void main(String[] args) {
+		String mode = args.length > 0 ? args[0] : "swarm";
+		switch (mode) {
+		case "swarm":
+			benchmarkSwarm(args.length > 1 ? Integer.parseInt(args[1]) : 1000,
+					args.length > 2 ? Integer.parseInt(args[2]) : 30, args.length > 3 ? Integer.parseInt(args[3]) : 2000);
+			break;
+		case "decode":
+			benchmarkDecode(args[1], args.length > 2 ? Integer.parseInt(args[2]) : 100,
+					args.length > 3 ? Integer.parseInt(args[3]) : 20000);
+			break;
+		case "convergence":
+			benchmarkConvergence(args[1], args.length > 2 ? Integer.parseInt(args[2]) : 100,
+					args.length > 3 ? Integer.parseInt(args[3]) : 5, args.length > 4 ? Integer.parseInt(args[4]) : 5,
+					args.length > 5 ? Integer.parseInt(args[5]) : 300);
+			break;
+		case "alns":
+			long[] budgets = args.length > 4 ? new long[args.length - 4] : new long[] { 10, 30, 100, 300 };
+			for (int i = 4; i < args.length; i++) {
+				budgets[i - 4] = Long.parseLong(args[i]);
+			}
+			benchmarkALNS(args[1], args.length > 2 ? Integer.parseInt(args[2]) : 100,
+					args.length > 3 ? Integer.parseInt(args[3]) : 5, budgets);
+			break;
+		case "bound":
+			benchmarkBound(args[1], args.length > 2 ? Integer.parseInt(args[2]) : 20,
+					args.length > 3 ? Integer.parseInt(args[3]) : 20,
+					args.length > 4 ? Double.parseDouble(args[4]) : new PSO.PSOSettings().GAP_EPSILON);
+			break;
+		default:
+			System.err.println("Unknown benchmark " + mode);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Bytes allocated so far by the current thread, -1 if the JVM can not
+	 * tell.
+	 */
+	static long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	/**
+	 * CPU time used so far by all the threads of the process, in nanoseconds,
+	 * -1 if the JVM can not tell.
+	 */
+	static long processCpuTime() {
+		java.lang.management.OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+		if (bean instanceof com.sun.management.OperatingSystemMXBean) {
+			return ((com.sun.management.OperatingSystemMXBean) bean).getProcessCpuTime();
+		}
+		return -1;
+	}
+
+	private static void benchmarkALNS(String cityFileName, int patients, int instances, long[] budgets) {
+		String[] names = { "pso", "alns" };
+		// costs by instance, budget and planner, sums of the CPU seconds
+		double[][][] costs = new double[instances][budgets.length][names.length];
+		double[][] cpu = new double[budgets.length][names.length];
+		double[] best = new double[instances];
+		Arrays.fill(best, Double.POSITIVE_INFINITY);
+
+		// warm up the JIT compiler
+		CityMap warmUp = generatedInstance(cityFileName, patients, -1);
+		for (int i = 0; i < 2; i++) {
+			for (String name : names) {
+				solveALNSBenchmark(name, warmUp, 0, budgets[budgets.length - 1]);
+			}
+		}
+
+		for (int instance = 0; instance < instances; instance++) {
+			CityMap map = generatedInstance(cityFileName, patients, instance);
+			for (int b = 0; b < budgets.length; b++) {
+				for (int p = 0; p < names.length; p++) {
+					long start = processCpuTime();
+					double cost = solveALNSBenchmark(names[p], map, instance, budgets[b]);
+					cpu[b][p] += (processCpuTime() - start) / 1e9;
+					costs[instance][b][p] = cost;
+					best[instance] = Math.min(best[instance], cost);
+				}
+			}
+		}
+
+		System.out.printf("%d instances of %d patients, %d processors\n", instances, patients,
+				Runtime.getRuntime().availableProcessors());
+		System.out.printf("Mean gap to the best cost found and CPU time, by budget\n%10s", "");
+		for (String name : names) {
+			System.out.printf("%12s %10s", name + " gap", "CPU s");
+		}
+		System.out.println();
+		for (int b = 0; b < budgets.length; b++) {
+			System.out.printf("%8d ms", budgets[b]);
+			for (int p = 0; p < names.length; p++) {
+				double gap = 0;
+				for (int instance = 0; instance < instances; instance++) {
+					gap += costs[instance][b][p] - best[instance];
+				}
+				System.out.printf("%12.3f %10.3f", gap / instances, cpu[b][p] / instances);
+			}
+			System.out.println();
+		}
+	}
+
+	/**
+	 * Best plan cost found by the planner with the given budget.
+	 */
+	private static double solveALNSBenchmark(String name, CityMap map, long seed, long millis) {
+		if (name.equals("pso")) {
+			PSOPlanner planner = new PSOPlanner();
+			int dims = planner.prepare(map);
+			PSO.PSOSettings settings = new PSO.PSOSettings();
+			settings.SEED = seed;
+			PSO pso = new PSO(planner.new VRPEvaluator(), dims, unitBounds(dims), settings);
+			pso.run(millis);
+			return pso.getBestEval();
+		}
+		ALNSPlanner.ALNSSettings settings = new ALNSPlanner.ALNSSettings();
+		settings.SEED = seed;
+		ALNSPlanner planner = new ALNSPlanner(settings);
+		planner.prepare(map);
+		return planner.search(millis).getPlanCost();
+	}
+
+	private static double[][] unitBounds(int dims) {
+		double[][] bounds = new double[dims][];
+		for (int i = 0; i < dims; i++) {
+			bounds[i] = new double[] { 0, 1 };
+		}
+		return bounds;
+	}
+
+	private static void benchmarkBound(String cityFileName, int patients, int instances, double gap) {
+		int stopped = 0;
+		long iterations = 0;
+		long iterationsWithStop = 0;
+		double sumGap = 0;
+		double lost = 0;
+		long boundNanos = 0;
+		for (int instance = 0; instance < instances; instance++) {
+			PSOPlanner planner = new PSOPlanner();
+			int dims = planner.prepare(generatedInstance(cityFileName, patients, instance));
+			long start = System.nanoTime();
+			double bound = planner.lowerBound();
+			boundNanos += System.nanoTime() - start;
+
+			double[] costs = new double[2];
+			for (int withStop = 0; withStop < 2; withStop++) {
+				PSO.PSOSettings settings = new PSO.PSOSettings();
+				settings.SEED = instance;
+				settings.GAP_EPSILON = withStop == 1 ? gap : -1;
+				PSO pso = new PSO(planner.new VRPEvaluator(), dims, unitBounds(dims), settings);
+				pso.run(Long.MAX_VALUE);
+				costs[withStop] = pso.getBestEval();
+				if (withStop == 1) {
+					iterationsWithStop += pso.getPerformedIterations();
+					stopped += pso.isGapClosed() ? 1 : 0;
+				} else {
+					iterations += pso.getPerformedIterations();
+				}
+			}
+			sumGap += (costs[0] - bound) / costs[0];
+			lost += costs[1] - costs[0];
+		}
+		System.out.printf("%d instances of %d patients, stop at a gap of %g\n", instances, patients, gap);
+		System.out.printf("  Lower bound: %.3f ms, mean gap of the best cost %.4f%%\n", boundNanos / 1e6 / instances,
+				100 * sumGap / instances);
+		System.out.printf("  Stopped early: %d/%d\n", stopped, instances);
+		System.out.printf("  Iterations: %d without the stop, %d with it\n", iterations, iterationsWithStop);
+		System.out.printf("  Mean cost lost: %.4f\n", lost / instances);
+	}
+
+	/**
+	 * Settings compared by the convergence benchmark, by name.
+	 */
+	private static Map<String, PSO.PSOSettings> convergenceSettings() {
+		Map<String, PSO.PSOSettings> result = new LinkedHashMap<>();
+		PSO.PSOSettings fixed = new PSO.PSOSettings();
+		fixed.setAdaptive(false, 0);
+		result.put("fixed", fixed);
+
+		PSO.PSOSettings adaptive = new PSO.PSOSettings();
+		adaptive.setAdaptive(true, 0);
+		result.put("adaptive", adaptive);
+
+		PSO.PSOSettings restart = new PSO.PSOSettings();
+		restart.setAdaptive(false, STAGNATION_ITER);
+		result.put("restart", restart);
+
+		PSO.PSOSettings both = new PSO.PSOSettings();
+		both.setAdaptive(true, STAGNATION_ITER);
+		result.put("adaptive+restart", both);
+		return result;
+	}
+
+	private static void benchmarkConvergence(String cityFileName, int patients, int instances, int seeds,
+			int iterations) {
+		Map<String, PSO.PSOSettings> settings = convergenceSettings();
+		int[] checkpoints = { 0, 5, 10, 20, 50, 100, 200, 500, 1000 };
+		// sum of the relative gaps at the checkpoints, and of the evaluations
+		// to reach the target, by setting
+		Map<String, double[]> gaps = new LinkedHashMap<>();
+		Map<String, long[]> toTarget = new LinkedHashMap<>();
+		Map<String, Integer> reached = new HashMap<>();
+		for (String name : settings.keySet()) {
+			gaps.put(name, new double[checkpoints.length]);
+			toTarget.put(name, new long[1]);
+			reached.put(name, 0);
+		}
+
+		for (int instance = 0; instance < instances; instance++) {
+			PSOPlanner planner = new PSOPlanner();
+			int dims = planner.prepare(generatedInstance(cityFileName, patients, instance));
+			PSO.PSOEvaluator evaluator = planner.new VRPEvaluator();
+			double[][] bounds = new double[dims][];
+			for (int i = 0; i < dims; i++) {
+				bounds[i] = new double[] { 0, 1 };
+			}
+
+			// best cost after every iteration, by setting and seed
+			Map<String, double[][]> curves = new LinkedHashMap<>();
+			double best = Double.POSITIVE_INFINITY;
+			for (Map.Entry<String, PSO.PSOSettings> e : settings.entrySet()) {
+				double[][] curve = new double[seeds][iterations + 1];
+				for (int seed = 0; seed < seeds; seed++) {
+					PSO.PSOSettings s = e.getValue();
+					s.SEED = 1000 * instance + seed;
+					s.MAX_ITER = iterations;
+					s.GLOBAL_ITER_THRES = Integer.MAX_VALUE;
+					PSO pso = new PSO(evaluator, dims, bounds, s);
+					curve[seed][0] = pso.getBestEval();
+					for (int it = 1; it <= iterations; it++) {
+						pso.run(Long.MAX_VALUE, 1);
+						curve[seed][it] = pso.getBestEval();
+					}
+					best = Math.min(best, curve[seed][iterations]);
+				}
+				curves.put(e.getKey(), curve);
+			}
+
+			int swarmSize = new PSO.PSOSettings().SWARM_SIZE;
+			for (Map.Entry<String, double[][]> e : curves.entrySet()) {
+				for (double[] curve : e.getValue()) {
+					for (int c = 0; c < checkpoints.length; c++) {
+						double value = curve[Math.min(checkpoints[c], iterations)];
+						gaps.get(e.getKey())[c] += value - best;
+					}
+					for (int it = 0; it <= iterations; it++) {
+						if (curve[it] <= best * (1 + TARGET_GAP)) {
+							toTarget.get(e.getKey())[0] += (long) swarmSize * (it + 1);
+							reached.merge(e.getKey(), 1, Integer::sum);
+							break;
+						}
+					}
+				}
+			}
+		}
+
+		int runs = instances * seeds;
+		System.out.printf("%d instances of %d patients, %d seeds, %d iterations\n", instances, patients, seeds,
+				iterations);
+		System.out.printf("Mean gap to the best cost found after the given iterations\n%-18s", "");
+		for (int checkpoint : checkpoints) {
+			if (checkpoint <= iterations) {
+				System.out.printf("%9d", checkpoint);
+			}
+		}
+		System.out.printf("%12s %12s\n", "reached", "evals");
+		for (String name : settings.keySet()) {
+			System.out.printf("%-18s", name);
+			for (int c = 0; c < checkpoints.length; c++) {
+				if (checkpoints[c] <= iterations) {
+					System.out.printf("%9.3f", gaps.get(name)[c] / runs);
+				}
+			}
+			int hits = reached.get(name);
+			System.out.printf("%7d/%-4d %12s\n", hits, runs,
+					hits == 0 ? "-" : Long.toString(toTarget.get(name)[0] / hits));
+		}
+	}
+
+	/**
+	 * The city with the given number of random patients, the same for the
+	 * same seed.
+	 */
+	private static CityMap generatedInstance(String cityFileName, int patients, long seed) {
+		CityMap map = CityParser.parse(cityFileName);
+		SplittableRandom random = new SplittableRandom(239 + seed);
+		for (int i = 0; i < patients; i++) {
+			map.spawn(map.newPatient(random.nextInt(map.nodesCount()), 1 + random.nextInt(3)));
+		}
+		return map;
+	}
+
+	private static void benchmarkDecode(String cityFileName, int patients, int decodes) {
+		CityMap map = generatedInstance(cityFileName, patients, 0);
+		SplittableRandom random = new SplittableRandom(239);
+		// the particles repeat, measure the decoding and not the cache
+		if (System.getProperty("pso.decodeCache") == null) {
+			System.setProperty("pso.decodeCache", "0");
+		}
+		PSOPlanner planner = new PSOPlanner();
+		int dims = planner.prepare(map);
+		PSO.PSOEvaluator evaluator = planner.new VRPEvaluator();
+
+		// a few particles, decoded in turn
+		int particles = 64;
+		double[] swarm = new double[particles * dims];
+		for (int i = 0; i < swarm.length; i++) {
+			swarm[i] = random.nextDouble();
+		}
+
+		// warm up the JIT compiler
+		double sum = 0;
+		for (int i = 0; i < decodes; i++) {
+			sum += evaluator.evaluate(swarm, i % particles * dims, dims);
+		}
+
+		long bytes = allocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < decodes; i++) {
+			sum += evaluator.evaluate(swarm, i % particles * dims, dims);
+		}
+		long nanos = System.nanoTime() - start;
+		bytes = allocatedBytes() - bytes;
+
+		System.out.printf("Decoding %d patients for %d ambulances, %d decodes (checksum %.3f)\n", dims,
+				map.getAmbulances().size(), decodes, sum);
+		System.out.printf("  Time: %.2f us/decode\n", nanos / 1e3 / decodes);
+		System.out.printf("  Allocated by this thread: %.1f bytes/decode\n", (double) bytes / decodes);
+	}
+
+	private static void benchmarkSwarm(int dims, int swarmSize, int iterations) {
+		double[][] bounds = new double[dims][];
+		for (int i = 0; i < dims; i++) {
+			bounds[i] = new double[] { 0, 1 };
+		}
+		PSO.PSOSettings settings = new PSO.PSOSettings();
+		settings.SWARM_SIZE = swarmSize;
+		settings.MAX_ITER = iterations;
+		settings.GLOBAL_ITER_THRES = Integer.MAX_VALUE;
+
+		// warm up the JIT compiler
+		for (int i = 0; i < 3; i++) {
+			new PSO(new SphereEvaluator(), dims, bounds, settings).run(Long.MAX_VALUE);
+		}
+
+		PSO pso = new PSO(new SphereEvaluator(), dims, bounds, settings);
+		long bytes = allocatedBytes();
+		long start = System.nanoTime();
+		pso.run(Long.MAX_VALUE);
+		long nanos = System.nanoTime() - start;
+		bytes = allocatedBytes() - bytes;
+
+		double updates = (double) dims * swarmSize * pso.getPerformedIterations();
+		System.out.printf("Swarm of %d particles x %d dims, %d iterations (%d threads)\n", swarmSize, dims,
+				pso.getPerformedIterations(), settings.THREADS);
+		System.out.printf("  Time: %.1f ms\n", nanos / 1e6);
+		System.out.printf("  Throughput: %.3e particle dimensions/s\n", updates / (nanos / 1e9));
+		System.out.printf("  Allocated by this thread: %.1f bytes/iteration\n",
+				(double) bytes / pso.getPerformedIterations());
+	}
+}
@@ -1,5 +1,8 @@
 package planner;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -7,8 +10,11 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.CancellationException;
 import java.util.stream.Collectors;
 
+import metrics.PlanningPhaseEvent;
 import model.Action;
 import model.ActionDrop;
 import model.ActionMove;
@@ -18,13 +24,16 @@ import model.CityMap;
 import model.Hospital;
 import model.NodeContent;
 import model.Patient;
-import utils.Pair;
 import utils.Utils;
 
 /**
  * Planner that uses PSO as a tool to find better solution.
+ * <p>
+ * With more than one island in {@link IslandPSO.IslandSettings} the search is
+ * done by an {@link IslandPSO}, the decoding problem is then sent to the
+ * worker processes.
  */
-public class PSOPlanner extends Planner {
+public class PSOPlanner extends Planner implements IslandPSO.Problem {
 
 	/**
 	 * Representation of a plan that is used in algorithm.
@@ -34,13 +43,16 @@ public class PSOPlanner extends Planner {
 		private List<Integer>[] routes;
 		private double planCost;
 
-		public Plan(int ambCnt) {
+		public Plan(Decoder decoder) {
 			routes = new List[ambCnt];
 			for (int i = 0; i < ambCnt; i++) {
 				routes[i] = new ArrayList<>();
+				for (int j = 0; j < decoder.routeLengths[i]; j++) {
+					routes[i].add(decoder.routes[i][j]);
+				}
 			}
 
-			planCost = 0;
+			planCost = decoder.planCost;
 		}
 
 		/**
@@ -134,6 +146,111 @@ public class PSOPlanner extends Planner {
 		}
 	}
 
+	/**
+	 * Buffers to decode particles without allocations. Each thread has its
+	 * own, they are reused by all the particles and solves as long as they are
+	 * large enough.
+	 */
+	class Decoder {
+
+		// patients in insertion order
+		private final int[] order;
+		// route i is routes[i][0; routeLengths[i])
+		private final int[][] routes;
+		private final int[] routeLengths;
+		private double planCost;
+
+		// 2-opt costs, see twoOpt
+		private final double[] prefixSumCost;
+		private final double[] revSumCost;
+
+		// planCost delta of the last tryInsert
+		private double insertionCost;
+
+		// local search: where every patient is, don't-look bits as the queue
+		// of the patients to look at, and a buffer to exchange route tails
+		private final int[] routeOf;
+		private final int[] positionOf;
+		private final int[] queue;
+		private final boolean[] queued;
+		private int queueHead;
+		private int queueSize;
+		private final int[] tail;
+
+		private Decoder(int ambCnt, int patCnt) {
+			order = new int[patCnt];
+			routes = new int[ambCnt][patCnt];
+			routeLengths = new int[ambCnt];
+			prefixSumCost = new double[patCnt];
+			revSumCost = new double[patCnt];
+			routeOf = new int[patCnt];
+			positionOf = new int[patCnt];
+			queue = new int[patCnt];
+			queued = new boolean[patCnt];
+			tail = new int[patCnt];
+		}
+
+		/**
+		 * Updates where the patients of the route are, from the given
+		 * position.
+		 */
+		private void locate(int ambIdx, int from) {
+			int[] route = routes[ambIdx];
+			for (int i = from; i < routeLengths[ambIdx]; i++) {
+				routeOf[route[i]] = ambIdx;
+				positionOf[route[i]] = i;
+			}
+		}
+
+		private int poll() {
+			int patient = queue[queueHead];
+			queueHead = (queueHead + 1) % queue.length;
+			queueSize--;
+			queued[patient] = false;
+			return patient;
+		}
+
+		/**
+		 * Clears the don't-look bit of the patient, nothing for -1.
+		 */
+		private void push(int patient) {
+			if (patient < 0 || queued[patient])
+				return;
+			queue[(queueHead + queueSize) % queue.length] = patient;
+			queueSize++;
+			queued[patient] = true;
+		}
+
+		private boolean fits(int ambCnt, int patCnt) {
+			return routes.length >= ambCnt && order.length >= patCnt;
+		}
+
+		/**
+		 * Empty routes.
+		 */
+		void clear() {
+			Arrays.fill(routeLengths, 0);
+			planCost = 0;
+		}
+
+		/**
+		 * Copies the routes of the other decoder, of the same problem.
+		 */
+		void copyFrom(Decoder other) {
+			for (int i = 0; i < routes.length; i++) {
+				routeLengths[i] = other.routeLengths[i];
+				System.arraycopy(other.routes[i], 0, routes[i], 0, routeLengths[i]);
+			}
+			System.arraycopy(other.routeOf, 0, routeOf, 0, routeOf.length);
+			System.arraycopy(other.positionOf, 0, positionOf, 0, positionOf.length);
+			planCost = other.planCost;
+		}
+
+		double getPlanCost() {
+			return planCost;
+		}
+	}
+
 	/**
 	 * Implementation of PSO Evaluator for VRP problem.
 	 */
@@ -141,8 +258,30 @@ public class PSOPlanner extends Planner {
 
 		@Override
 		public double evaluate(double[] particle) {
-			Plan plan = decodePlan(particle);
-			return evaluatePlan(plan);
+			return evaluate(particle, 0, particle.length);
+		}
+
+		@Override
+		public double evaluate(double[] swarm, int offset, int dims) {
+			Decoder decoder = decoder();
+			Utils.sortIndices(swarm, offset, patCnt, decoder.order);
+			if (decodeCache == null) {
+				decodeOrder(decoder);
+				return evaluatePlan(decoder);
+			}
+			long hash = DecodeCache.hash(decoder.order, patCnt);
+			double cost = decodeCache.get(decoder.order, hash);
+			if (Double.isNaN(cost)) {
+				decodeOrder(decoder);
+				cost = evaluatePlan(decoder);
+				decodeCache.put(decoder.order, hash, cost);
+			}
+			return cost;
+		}
+
+		@Override
+		public double lowerBound() {
+			return PSOPlanner.this.lowerBound();
 		}
 	}
 
@@ -207,25 +346,316 @@ public class PSOPlanner extends Planner {
 
 	private double[] singleOptHospitalsDist;
 
+	// kept across solves, the tables above are its arrays
+	private final TransferHospitals transferHospitals = new TransferHospitals();
+
+	/*
+	 * What the decoding needs to know about patients and ambulances, so that
+	 * it does not depend on the map.
+	 */
+	private int[] severities;
+	private double[][] ambPatDist;
+
+	private final ThreadLocal<Decoder> decoders = new ThreadLocal<>();
+
+	/*
+	 * Costs of the decoded patient orderings, in entries, 0 to disable. Can
+	 * be changed with the pso.decodeCache system property.
+	 */
+	private final int decodeCacheCapacity = Integer.getInteger("pso.decodeCache", 4096);
+	private DecodeCache decodeCache;
+
+	/*
+	 * Inter-route local search of the decoded plans and the number of
+	 * neighbours of every patient it looks at. Can be changed with the
+	 * pso.localSearch and pso.granularity system properties, worker
+	 * processes get them with the problem.
+	 */
+	private boolean localSearch = Boolean.parseBoolean(System.getProperty("pso.localSearch", "true"));
+	private int granularity = Integer.getInteger("pso.granularity", 8);
+	private static final int AMBULANCE_NEIGHBOURS = 3;
+	private int[][] patientNeighbours;
+	private int[][] ambulanceNeighbours;
+
+	// lower bound of the plan cost, NaN until computed
+	private double lowerBound = Double.NaN;
+
+	/*
+	 * Share of the swarm that starts from the previous plan, and by how much
+	 * its copies are perturbed. Can be changed with the pso.warmStart and
+	 * pso.warmStartNoise system properties. Off by default: on the test
+	 * cities a random swarm reaches the same plan costs within a few
+	 * iterations.
+	 */
+	private final double warmStartShare = Double.parseDouble(System.getProperty("pso.warmStart", "0"));
+	private final double warmStartNoise = Double.parseDouble(System.getProperty("pso.warmStartNoise", "0.05"));
+	// keys of the patients of the previous plan by patient id, encoding their
+	// route positions and the insertion order that built the plan
+	private final Map<Integer, Double> previousPositionKeys = new HashMap<>();
+	private final Map<Integer, Double> previousOrderKeys = new HashMap<>();
+
 	/**
 	 * Apply additional heuristics to enhance the existing routes.
 	 *
-	 * @param plan
-	 *            current plan
-	 * @return improved plan
+	 * @param decoder
+	 *            current plan, improved in place
 	 */
-	private Plan applyOptimizations(Plan plan) {
-		for (int i = 0; i < plan.routes.length; i++) {
+	private void applyOptimizations(Decoder decoder) {
+		twoOptAll(decoder);
+		if (localSearch && ambCnt > 1) {
+			if (interRouteSearch(decoder)) {
+				twoOptAll(decoder);
+			}
+		}
+	}
+
+	private void twoOptAll(Decoder decoder) {
+		for (int i = 0; i < ambCnt; i++) {
 			while (true) {
-				Pair<List<Integer>, Double> update = twoOpt(ambulances.get(i), plan.routes[i]);
-				if (update == null) {
+				double update = twoOpt(decoder, i);
+				if (update == 0) {
 					break;
 				}
-				plan.routes[i] = update.x;
-				plan.planCost += update.y;
+				decoder.planCost += update;
 			}
 		}
-		return plan;
+	}
+
+	/**
+	 * Builds the granular neighbour lists: for every patient the closest
+	 * patients, by the cost to go from one to the other through a hospital,
+	 * and the closest ambulances.
+	 */
+	private void buildNeighbourLists() {
+		int k = Math.max(0, Math.min(granularity, patCnt - 1));
+		patientNeighbours = new int[patCnt][k];
+		double[] keys = new double[Math.max(patCnt, ambCnt)];
+		int[] sorted = new int[keys.length];
+		for (int u = 0; u < patCnt; u++) {
+			for (int v = 0; v < patCnt; v++) {
+				keys[v] = v == u ? Double.POSITIVE_INFINITY
+						: Math.min(optHospitalsDist[u][v], optHospitalsDist[v][u]);
+			}
+			Utils.sortIndices(keys, 0, patCnt, sorted);
+			System.arraycopy(sorted, 0, patientNeighbours[u], 0, k);
+		}
+		int ka = Math.min(AMBULANCE_NEIGHBOURS, ambCnt);
+		ambulanceNeighbours = new int[patCnt][ka];
+		for (int u = 0; u < patCnt; u++) {
+			for (int a = 0; a < ambCnt; a++) {
+				keys[a] = ambPatDist[a][u];
+			}
+			Utils.sortIndices(keys, 0, ambCnt, sorted);
+			System.arraycopy(sorted, 0, ambulanceNeighbours[u], 0, ka);
+		}
+	}
+
+	/**
+	 * Cost to go from patient p to patient n in the route of the given
+	 * ambulance. p = -1 is the start of the route, n = -1 its end (the last
+	 * patient goes to a hospital).
+	 */
+	private double link(int ambIdx, int p, int n) {
+		if (p < 0)
+			return n < 0 ? 0 : ambPatDist[ambIdx][n];
+		return n < 0 ? singleOptHospitalsDist[p] : optHospitalsDist[p][n];
+	}
+
+	/**
+	 * If the patient can be between p and n, routes being sorted by
+	 * decreasing severity.
+	 */
+	private boolean fitsBetween(int p, int patient, int n) {
+		return (p < 0 || severities[p] >= severities[patient]) && (n < 0 || severities[patient] >= severities[n]);
+	}
+
+	private static int at(int[] route, int length, int position) {
+		return position >= 0 && position < length ? route[position] : -1;
+	}
+
+	/**
+	 * Moves patients between the routes while it improves the plan. Every
+	 * patient is looked at in turn, trying only the moves that bring it next
+	 * to one of its granular neighbours:
+	 * <ul>
+	 * <li>relocate: the patient is moved before or after a neighbour, or at
+	 * the start of the route of a close ambulance,
+	 * <li>swap: the patient is exchanged with the patient before or after a
+	 * neighbour,
+	 * <li>cross-exchange: the tails of the two routes after the patient and
+	 * from a neighbour are exchanged (2-opt*).
+	 * </ul>
+	 * The best improving move of the patient is applied. A patient that has no
+	 * improving move gets its don't-look bit set, which is cleared when a move
+	 * changes its route around it. Every move is evaluated in constant time,
+	 * so a pass costs O(patients * neighbours).
+	 *
+	 * @return if the plan changed
+	 */
+	private boolean interRouteSearch(Decoder decoder) {
+		for (int a = 0; a < ambCnt; a++) {
+			decoder.locate(a, 0);
+		}
+		decoder.queueHead = 0;
+		decoder.queueSize = 0;
+		for (int u = 0; u < patCnt; u++) {
+			decoder.queued[u] = false;
+			decoder.push(u);
+		}
+
+		boolean changed = false;
+		while (decoder.queueSize > 0) {
+			int u = decoder.poll();
+			if (improvePatient(decoder, u)) {
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	// moves of interRouteSearch
+	private static final int RELOCATE = 0;
+	private static final int SWAP = 1;
+	private static final int CROSS = 2;
+
+	/**
+	 * Applies the best improving move of the patient, if any.
+	 */
+	private boolean improvePatient(Decoder decoder, int u) {
+		int a = decoder.routeOf[u];
+		int i = decoder.positionOf[u];
+		int[] routeA = decoder.routes[a];
+		int lengthA = decoder.routeLengths[a];
+		int pA = at(routeA, lengthA, i - 1);
+		int nA = at(routeA, lengthA, i + 1);
+		double removal = link(a, pA, nA) - link(a, pA, u) - link(a, u, nA);
+
+		double bestDelta = -1e-7;
+		int bestMove = -1;
+		int bestRoute = -1;
+		int bestPosition = -1;
+
+		// relocate to the start of the routes of close ambulances
+		for (int b : ambulanceNeighbours[u]) {
+			if (b == a)
+				continue;
+			int nB = at(decoder.routes[b], decoder.routeLengths[b], 0);
+			if (!fitsBetween(-1, u, nB))
+				continue;
+			double delta = removal + link(b, -1, u) + link(b, u, nB) - link(b, -1, nB);
+			if (delta < bestDelta) {
+				bestDelta = delta;
+				bestMove = RELOCATE;
+				bestRoute = b;
+				bestPosition = 0;
+			}
+		}
+
+		for (int v : patientNeighbours[u]) {
+			int b = decoder.routeOf[v];
+			if (b == a)
+				continue;
+			int k = decoder.positionOf[v];
+			int[] routeB = decoder.routes[b];
+			int lengthB = decoder.routeLengths[b];
+
+			// relocate before (j = k) or after (j = k + 1) the neighbour
+			for (int j = k; j <= k + 1; j++) {
+				int pB = at(routeB, lengthB, j - 1);
+				int nB = at(routeB, lengthB, j);
+				if (!fitsBetween(pB, u, nB))
+					continue;
+				double delta = removal + link(b, pB, u) + link(b, u, nB) - link(b, pB, nB);
+				if (delta < bestDelta) {
+					bestDelta = delta;
+					bestMove = RELOCATE;
+					bestRoute = b;
+					bestPosition = j;
+				}
+			}
+
+			// swap with the patient before or after the neighbour
+			for (int j = k - 1; j <= k + 1; j += 2) {
+				int w = at(routeB, lengthB, j);
+				if (w < 0)
+					continue;
+				int pB = at(routeB, lengthB, j - 1);
+				int nB = at(routeB, lengthB, j + 1);
+				if (!fitsBetween(pA, w, nA) || !fitsBetween(pB, u, nB))
+					continue;
+				double delta = link(a, pA, w) + link(a, w, nA) - link(a, pA, u) - link(a, u, nA) + link(b, pB, u)
+						+ link(b, u, nB) - link(b, pB, w) - link(b, w, nB);
+				if (delta < bestDelta) {
+					bestDelta = delta;
+					bestMove = SWAP;
+					bestRoute = b;
+					bestPosition = j;
+				}
+			}
+
+			// exchange the tails so that the neighbour follows the patient
+			int pB = at(routeB, lengthB, k - 1);
+			if (severities[u] >= severities[v] && (pB < 0 || nA < 0 || severities[pB] >= severities[nA])) {
+				double delta = link(a, u, v) + link(b, pB, nA) - link(a, u, nA) - link(b, pB, v);
+				if (delta < bestDelta) {
+					bestDelta = delta;
+					bestMove = CROSS;
+					bestRoute = b;
+					bestPosition = k;
+				}
+			}
+		}
+
+		if (bestMove < 0)
+			return false;
+
+		int b = bestRoute;
+		int[] routeB = decoder.routes[b];
+		int lengthB = decoder.routeLengths[b];
+		int j = bestPosition;
+		decoder.push(u);
+		decoder.push(pA);
+		decoder.push(nA);
+		switch (bestMove) {
+		case RELOCATE:
+			decoder.push(at(routeB, lengthB, j - 1));
+			decoder.push(at(routeB, lengthB, j));
+			System.arraycopy(routeA, i + 1, routeA, i, lengthA - i - 1);
+			decoder.routeLengths[a]--;
+			System.arraycopy(routeB, j, routeB, j + 1, lengthB - j);
+			routeB[j] = u;
+			decoder.routeLengths[b]++;
+			decoder.locate(a, i);
+			decoder.locate(b, j);
+			break;
+		case SWAP:
+			int w = routeB[j];
+			decoder.push(w);
+			decoder.push(at(routeB, lengthB, j - 1));
+			decoder.push(at(routeB, lengthB, j + 1));
+			routeA[i] = w;
+			routeB[j] = u;
+			decoder.locate(a, i);
+			decoder.locate(b, j);
+			break;
+		default:
+			// routeA = routeA[0; i] + routeB[j; ), routeB = routeB[0; j) +
+			// routeA(i; )
+			decoder.push(routeB[j]);
+			decoder.push(at(routeB, lengthB, j - 1));
+			int tailA = lengthA - i - 1;
+			int tailB = lengthB - j;
+			System.arraycopy(routeA, i + 1, decoder.tail, 0, tailA);
+			System.arraycopy(routeB, j, routeA, i + 1, tailB);
+			System.arraycopy(decoder.tail, 0, routeB, j, tailA);
+			decoder.routeLengths[a] = i + 1 + tailB;
+			decoder.routeLengths[b] = j + tailA;
+			decoder.locate(a, i + 1);
+			decoder.locate(b, j);
+			break;
+		}
+		decoder.planCost += bestDelta;
+		return true;
 	}
 
 	/**
@@ -254,66 +684,299 @@ public class PSOPlanner extends Planner {
 		return hos;
 	}
 
+	/**
+	 * Get the decoder of the current thread, large enough for the current
+	 * problem.
+	 */
+	private Decoder decoder() {
+		Decoder decoder = decoders.get();
+		if (decoder == null || !decoder.fits(ambCnt, patCnt)) {
+			decoder = new Decoder(ambCnt, patCnt);
+			decoders.set(decoder);
+		}
+		return decoder;
+	}
+
 	/**
 	 * Transform PSO particle into a valid routes.
+	 */
+	private Plan decodePlan(double[] particle) {
+		Decoder decoder = new Decoder(ambCnt, patCnt);
+		decodePlan(particle, 0, decoder);
+		return new Plan(decoder);
+	}
+
+	/**
+	 * Transform the PSO particle stored from <code>offset</code> into valid
+	 * routes, in the given decoder.
 	 * <p>
 	 * It's the heart of algorithm. For example, the method can be used to
 	 * generate a good valid routes from a random particle, without actual use
-	 * of PSO.
+	 * of PSO. It is called for every particle at every iteration, so it does
+	 * not allocate.
 	 */
-	private Plan decodePlan(double[] particle) {
+	private void decodePlan(double[] swarm, int offset, Decoder decoder) {
 		/*
 		 * Sort patients according to their priorities (here priorities are
 		 * numbers from patDims, they are not the same as real patient
 		 * priorities).
 		 */
-		int[] patientsSorted = Utils.getSortedIndices(particle);
+		Utils.sortIndices(swarm, offset, patCnt, decoder.order);
+		decodeOrder(decoder);
+	}
+
+	/**
+	 * Build the routes inserting the patients in <code>decoder.order</code>.
+	 * The plan depends only on this ordering.
+	 */
+	private void decodeOrder(Decoder decoder) {
+		int[] patientsSorted = decoder.order;
 
 		/*
 		 * Add patients to the routes.
 		 */
-		Plan plan = new Plan(ambCnt);
-		for (int patient : patientsSorted) {
-			// Insert the patient into the routes.
-			// Test only first few ambulances (currently: at least 2, but not
-			// more than 33% or 10)
-			double bestInsertionCost = Double.POSITIVE_INFINITY;
-			int insertionAmbulance = -1;
-			int insertionIndex = -1;
-			for (int ambIdx = 0; ambIdx < ambCnt; ambIdx++) {
-				Pair<Integer, Double> curInsertion = tryInsert(plan.routes[ambIdx], ambIdx, patient);
-				if (curInsertion.y < bestInsertionCost) {
-					bestInsertionCost = curInsertion.y;
-					insertionAmbulance = ambIdx;
-					insertionIndex = curInsertion.x;
-				}
-			}
+		decoder.clear();
+		for (int k = 0; k < patCnt; k++) {
+			insertCheapest(decoder, patientsSorted[k]);
+		}
 
-			/*
-			 * Insert patient into chosen position in the routes.
-			 */
-			plan.planCost += bestInsertionCost;
-			plan.routes[insertionAmbulance].add(insertionIndex, patient);
+		/*
+		 * Apply optimizations.
+		 */
+		applyOptimizations(decoder);
+	}
 
+	/**
+	 * Insert the patient where it costs the least, in the route of any
+	 * ambulance.
+	 *
+	 * @return the ambulance
+	 */
+	private int insertCheapest(Decoder decoder, int patient) {
+		double bestInsertionCost = Double.POSITIVE_INFINITY;
+		int insertionAmbulance = -1;
+		int insertionIndex = -1;
+		for (int ambIdx = 0; ambIdx < ambCnt; ambIdx++) {
+			int curIndex = tryInsert(decoder, ambIdx, patient);
+			if (decoder.insertionCost < bestInsertionCost) {
+				bestInsertionCost = decoder.insertionCost;
+				insertionAmbulance = ambIdx;
+				insertionIndex = curIndex;
+			}
 		}
 
 		/*
-		 * Apply optimizations.
+		 * Insert patient into chosen position in the routes.
 		 */
-		plan = applyOptimizations(plan);
+		decoder.planCost += bestInsertionCost;
+		int[] route = decoder.routes[insertionAmbulance];
+		int length = decoder.routeLengths[insertionAmbulance]++;
+		System.arraycopy(route, insertionIndex, route, insertionIndex + 1, length - insertionIndex);
+		route[insertionIndex] = patient;
+		return insertionAmbulance;
+	}
+
+	/*
+	 * Operations on the routes for searches other than PSO, see ALNSPlanner.
+	 * They keep decoder.routeOf and decoder.positionOf up to date.
+	 */
+
+	Decoder newDecoder() {
+		return new Decoder(ambCnt, patCnt);
+	}
+
+	int ambulanceCount() {
+		return ambCnt;
+	}
+
+	int patientCount() {
+		return patCnt;
+	}
+
+	/**
+	 * Lower bound of the plan cost, computed once per problem, see
+	 * {@link PlanLowerBound}.
+	 */
+	double lowerBound() {
+		if (Thread.currentThread().isInterrupted())
+			return Double.NEGATIVE_INFINITY; // the search is about to stop
+		if (Double.isNaN(lowerBound)) {
+			PlanningPhaseEvent event = PlanningPhaseEvent.start("lowerBound");
+			lowerBound = PlanLowerBound.of(ambCnt, patCnt, severities, ambPatDist, optHospitalsDist,
+					singleOptHospitalsDist);
+			event.finish(patCnt, ambCnt, map == null ? 0 : map.nodesCount(), 0);
+		}
+		return lowerBound;
+	}
+
+	/**
+	 * Closest patients, see buildNeighbourLists.
+	 */
+	int[] neighbours(int patient) {
+		return patientNeighbours[patient];
+	}
+
+	/**
+	 * Insert the patient where it costs the least, with
+	 * {@link #tryInsert(Decoder, int, int)}.
+	 */
+	void insertPatient(Decoder decoder, int patient) {
+		decoder.locate(insertCheapest(decoder, patient), 0);
+	}
+
+	/**
+	 * How much the plan cost increases if the patient is inserted in the
+	 * route of the ambulance, see {@link #tryInsert(Decoder, int, int)}.
+	 */
+	double insertionCost(Decoder decoder, int ambIdx, int patient) {
+		tryInsert(decoder, ambIdx, patient);
+		return decoder.insertionCost;
+	}
+
+	/**
+	 * Insert the patient where it costs the least in the route of the
+	 * ambulance.
+	 */
+	void insertPatient(Decoder decoder, int ambIdx, int patient) {
+		int index = tryInsert(decoder, ambIdx, patient);
+		decoder.planCost += decoder.insertionCost;
+		int[] route = decoder.routes[ambIdx];
+		int length = decoder.routeLengths[ambIdx]++;
+		System.arraycopy(route, index, route, index + 1, length - index);
+		route[index] = patient;
+		decoder.locate(ambIdx, index);
+	}
+
+	/**
+	 * How much the plan cost decreases if the patient is removed.
+	 */
+	double removalGain(Decoder decoder, int patient) {
+		int ambIdx = decoder.routeOf[patient];
+		int i = decoder.positionOf[patient];
+		int[] route = decoder.routes[ambIdx];
+		int length = decoder.routeLengths[ambIdx];
+		int p = at(route, length, i - 1);
+		int n = at(route, length, i + 1);
+		return link(ambIdx, p, patient) + link(ambIdx, patient, n) - link(ambIdx, p, n);
+	}
+
+	void removePatient(Decoder decoder, int patient) {
+		decoder.planCost -= removalGain(decoder, patient);
+		int ambIdx = decoder.routeOf[patient];
+		int i = decoder.positionOf[patient];
+		int[] route = decoder.routes[ambIdx];
+		System.arraycopy(route, i + 1, route, i, decoder.routeLengths[ambIdx] - i - 1);
+		decoder.routeLengths[ambIdx]--;
+		decoder.locate(ambIdx, i);
+	}
+
+	/**
+	 * Apply the local search of the decoding to complete routes.
+	 */
+	void improve(Decoder decoder) {
+		applyOptimizations(decoder);
+		for (int i = 0; i < ambCnt; i++) {
+			decoder.locate(i, 0);
+		}
+	}
 
+	/**
+	 * Actions of the routes, free ambulances are sent to the centroids.
+	 */
+	Map<Ambulance, List<Action>> toActions(Decoder decoder) {
+		Map<Ambulance, List<Action>> plan = new Plan(decoder).toMainRepresentation();
+		sendFreeAmbsToCentroids(plan);
 		return plan;
 	}
 
+	/**
+	 * Encode the plan back into particle space for the next solve, in two
+	 * ways. Route positions: patients are keyed by their position in the
+	 * route, so that decoding the keys inserts the first patient of every
+	 * route, then the second ones, and so on. Insertion order: patients keep
+	 * the keys of the particle, so that the remaining patients are inserted in
+	 * the same order as in this solve.
+	 */
+	private void rememberPlan(Plan plan, double[] particle) {
+		previousPositionKeys.clear();
+		previousOrderKeys.clear();
+		int maxLength = 0;
+		for (List<Integer> route : plan.routes) {
+			maxLength = Math.max(maxLength, route.size());
+		}
+		for (int ambIdx = 0; ambIdx < plan.routes.length; ambIdx++) {
+			List<Integer> route = plan.routes[ambIdx];
+			for (int j = 0; j < route.size(); j++) {
+				double key = (j * ambCnt + ambIdx + 0.5) / (maxLength * ambCnt);
+				previousPositionKeys.put(patients.get(route.get(j)).getId(), key);
+			}
+		}
+		for (int i = 0; i < patCnt; i++) {
+			previousOrderKeys.put(patients.get(i).getId(), particle[i]);
+		}
+	}
+
+	/**
+	 * Particles that start from the previous plan: its two encodings and
+	 * perturbed copies of them, in turn.
+	 *
+	 * @return null if there is nothing to start from
+	 */
+	private double[][] warmStartParticles(PSO.PSOSettings settings) {
+		int count = Math.min(settings.SWARM_SIZE, (int) Math.round(warmStartShare * settings.SWARM_SIZE));
+		if (count == 0 || patCnt == 0)
+			return null;
+		double[][] encoded = { encode(previousOrderKeys), encode(previousPositionKeys) };
+		if (encoded[0] == null)
+			return null;
+
+		SplittableRandom random = new SplittableRandom(settings.SEED);
+		double[][] particles = new double[count][];
+		for (int k = 0; k < count; k++) {
+			double[] base = encoded[k % 2];
+			if (k < 2) {
+				particles[k] = base;
+				continue;
+			}
+			particles[k] = new double[patCnt];
+			for (int i = 0; i < patCnt; i++) {
+				particles[k][i] = base[i] + (2 * random.nextDouble() - 1) * warmStartNoise;
+			}
+		}
+		return particles;
+	}
+
+	/**
+	 * Keys of the current patients. Patients that were not in the previous
+	 * plan get a key above all the others, they are inserted last into the
+	 * rebuilt routes.
+	 *
+	 * @return null if no patient was in the previous plan
+	 */
+	private double[] encode(Map<Integer, Double> keys) {
+		double max = 0;
+		for (double key : keys.values()) {
+			max = Math.max(max, key);
+		}
+		double[] particle = new double[patCnt];
+		boolean known = false;
+		for (int i = 0; i < patCnt; i++) {
+			Double key = keys.get(patients.get(i).getId());
+			particle[i] = key == null ? max + 1 : key;
+			known |= key != null;
+		}
+		return known ? particle : null;
+	}
+
 	/**
 	 * Evaluate the routes.
 	 *
-	 * @param plan
-	 *            list of actions
+	 * @param decoder
+	 *            decoded plan
 	 * @return value to minimize
 	 */
-	private double evaluatePlan(Plan plan) {
-		return plan.planCost;
+	private double evaluatePlan(Decoder decoder) {
+		return decoder.planCost;
 	}
 
 	/**
@@ -366,43 +1029,19 @@ public class PSOPlanner extends Planner {
 	}
 
 	/**
-	 * Builds <code>optimalHospitals</code> array. Asymptotic: O(patCnt^2 *
-	 * hosCnt).
+	 * Updates the <code>optHospitals</code> tables for the waiting patients and
+	 * sorts <code>patients</code> in the order of their rows. Asymptotic:
+	 * O(patCnt * hosCnt) per new patient, O(patCnt^2 * hosCnt) the first time.
 	 * <p>
 	 * <code>optHospitals[i][j] - the best hospital to go to with ith patient before going to jth</code>
 	 * <code>singleOptHospitals[i] - the best hospital to go to with ith patient</code>
 	 */
 	private void precalcOptimalHospitals() {
-		optHospitals = new int[patCnt][patCnt];
-		optHospitalsDist = new double[patCnt][patCnt];
-		singleOptHospitals = new int[patCnt];
-		singleOptHospitalsDist = new double[patCnt];
-
-		for (int i = 0; i < patCnt; i++) {
-			for (int j = 0; j < patCnt; j++) {
-				optHospitals[i][j] = -1;
-				for (int k = 0; k < hosCnt; k++) {
-					if (isValidHospital(patients.get(i), hospitals.get(k))) {
-						double curDist = shortestDistance(patients.get(i), hospitals.get(k))
-								+ shortestDistance(hospitals.get(k), patients.get(j));
-						if (optHospitals[i][j] == -1 || optHospitalsDist[i][j] > curDist) {
-							optHospitals[i][j] = k;
-							optHospitalsDist[i][j] = curDist;
-						}
-					}
-				}
-			}
-			singleOptHospitals[i] = -1;
-			for (int k = 0; k < hosCnt; k++) {
-				if (isValidHospital(patients.get(i), hospitals.get(k))) {
-					double curDist = shortestDistance(patients.get(i), hospitals.get(k));
-					if (singleOptHospitals[i] == -1 || singleOptHospitalsDist[i] > curDist) {
-						singleOptHospitals[i] = k;
-						singleOptHospitalsDist[i] = curDist;
-					}
-				}
-			}
-		}
+		patients = transferHospitals.update(map, patients, hospitals, this::isValidHospital);
+		optHospitals = transferHospitals.opt();
+		optHospitalsDist = transferHospitals.optDist();
+		singleOptHospitals = transferHospitals.single();
+		singleOptHospitalsDist = transferHospitals.singleDist();
 	}
 
 	@Override
@@ -431,6 +1070,7 @@ public class PSOPlanner extends Planner {
 					shortestDistances[ambIdx][cen] = (int) Math.round(map.shortestDistance(ambNode, centroids[cen]));
 				}
 			}
+			metrics.histogram("assignment_size").record(freeAmbs.size());
 			int[] destinations = AssignmentProblemSolver.solve(shortestDistances);
 			for (int ambIdx = 0; ambIdx < freeAmbs.size(); ambIdx++) {
 				Ambulance amb = freeAmbs.get(ambIdx);
@@ -450,7 +1090,61 @@ public class PSOPlanner extends Planner {
 	}
 
 	@Override
-	public Map<Ambulance, List<Action>> solve(CityMap map) {
+	public Map<Ambulance, List<Action>> solve(CityMap map, long millis) {
+		long solveStartTime = System.currentTimeMillis();
+		prepare(map);
+
+		// Initialize PSO
+		PlanningPhaseEvent psoEvent = PlanningPhaseEvent.start("pso");
+		evaluator = evaluator();
+		PSO.PSOSettings settings = new PSO.PSOSettings();
+		double[][] initialParticles = warmStartParticles(settings);
+		IslandPSO.IslandSettings islandSettings = new IslandPSO.IslandSettings();
+		double[] particle;
+		int iterations;
+		if (islandSettings.ISLANDS > 1) {
+			try (IslandPSO islands = new IslandPSO(this, particleDims, particleBounds, settings, islandSettings,
+					initialParticles)) {
+				long elapsed = System.currentTimeMillis() - solveStartTime;
+				particle = islands.run(Math.max(0, millis - elapsed));
+				iterations = islands.getPerformedIterations();
+			}
+		} else {
+			pso = new PSO(evaluator, particleDims, particleBounds, settings, initialParticles);
+
+			// Find solution in the time that is left after the precalculations
+			long elapsed = System.currentTimeMillis() - solveStartTime;
+			particle = pso.run(Math.max(0, millis - elapsed));
+			iterations = pso.getPerformedIterations();
+		}
+		psoEvent.finish(patCnt, ambCnt, map.nodesCount(), iterations);
+		metrics.histogram("pso_iterations").record(iterations);
+		if (decodeCache != null) {
+			metrics.counter("pso_decode_cache_hits").add(decodeCache.getHits());
+			metrics.counter("pso_decode_cache_misses").add(decodeCache.getMisses());
+			metrics.counter("pso_decode_cache_evictions").add(decodeCache.getEvictions());
+		}
+		Plan solution = decodePlan(particle);
+		if (settings.GAP_EPSILON >= 0 && PSO.isGapClosed(solution.planCost, lowerBound(), settings.GAP_EPSILON)) {
+			metrics.counter("pso_gap_stops").increment();
+		}
+		rememberPlan(solution, particle);
+		Map<Ambulance, List<Action>> plan = solution.toMainRepresentation();
+
+		// Send free ambulances to centroids
+		sendFreeAmbsToCentroids(plan);
+
+		return plan;
+	}
+
+	/**
+	 * Builds everything the decoding of particles depends on.
+	 *
+	 * @return number of dimensions of the particles
+	 * @throws CancellationException
+	 *             if the thread is interrupted
+	 */
+	int prepare(CityMap map) {
 		this.map = map;
 
 		ambulances = map.getAmbulances();
@@ -464,55 +1158,151 @@ public class PSOPlanner extends Planner {
 		particleDims = patCnt;
 		buildBounds();
 
+		PlanningPhaseEvent precalcEvent = PlanningPhaseEvent.start("precalcOptimalHospitals");
 		precalcOptimalHospitals();
+		precalcEvent.finish(patCnt, ambCnt, map.nodesCount(), 0);
+		checkInterrupted();
 
 		initAmbLocations();
 
-		// Initialize PSO
-		evaluator = new VRPEvaluator();
-		pso = new PSO(evaluator, particleDims, particleBounds);
+		severities = new int[patCnt];
+		for (int i = 0; i < patCnt; i++) {
+			severities[i] = patients.get(i).getSeverity();
+		}
+		ambPatDist = new double[ambCnt][patCnt];
+		for (int ambIdx = 0; ambIdx < ambCnt; ambIdx++) {
+			for (int i = 0; i < patCnt; i++) {
+				ambPatDist[ambIdx][i] = shortestDistance(ambulances.get(ambIdx), patients.get(i));
+			}
+		}
+		checkInterrupted();
 
-		// Find solution
-		double[] particle = pso.run(Long.MAX_VALUE);
-		Plan solution = decodePlan(particle);
-		Map<Ambulance, List<Action>> plan = solution.toMainRepresentation();
+		buildNeighbourLists();
+		resetDecodeCache();
+		lowerBound = Double.NaN;
+		checkInterrupted();
+		return particleDims;
+	}
 
-		// Send free ambulances to centroids
-		sendFreeAmbsToCentroids(plan);
+	/**
+	 * Ends a solve whose thread was interrupted during the precalculations,
+	 * e.g. by {@link DeadlinePlanner} once the deadline is missed.
+	 */
+	private static void checkInterrupted() {
+		if (Thread.currentThread().isInterrupted())
+			throw new CancellationException("Solve interrupted");
+	}
 
-		return plan;
+	@Override
+	public PSO.PSOEvaluator evaluator() {
+		return new VRPEvaluator();
+	}
+
+	/**
+	 * Reads the decoding problem written by {@link #writeProblem(DataOutput)},
+	 * in a worker process. Only the decoding can be used then.
+	 */
+	@Override
+	public void readProblem(DataInput in) throws IOException {
+		localSearch = in.readBoolean();
+		granularity = in.readInt();
+		ambCnt = in.readInt();
+		patCnt = in.readInt();
+		particleDims = patCnt;
+		severities = new int[patCnt];
+		for (int i = 0; i < patCnt; i++) {
+			severities[i] = in.readInt();
+		}
+		ambPatDist = readMatrix(in, ambCnt, patCnt);
+		optHospitalsDist = readMatrix(in, patCnt, patCnt);
+		singleOptHospitalsDist = readMatrix(in, 1, patCnt)[0];
+		buildNeighbourLists();
+		resetDecodeCache();
+		lowerBound = Double.NaN;
+	}
+
+	private static double[][] readMatrix(DataInput in, int rows, int columns) throws IOException {
+		double[][] matrix = new double[rows][columns];
+		for (int i = 0; i < rows; i++) {
+			for (int j = 0; j < columns; j++) {
+				matrix[i][j] = in.readDouble();
+			}
+		}
+		return matrix;
+	}
+
+	private void resetDecodeCache() {
+		if (decodeCacheCapacity > 0) {
+			if (decodeCache == null) {
+				decodeCache = new DecodeCache(decodeCacheCapacity);
+			}
+			decodeCache.reset(patCnt);
+		}
+	}
+
+	/**
+	 * Writes what the decoding of particles depends on, settings included.
+	 */
+	@Override
+	public void writeProblem(DataOutput out) throws IOException {
+		out.writeBoolean(localSearch);
+		out.writeInt(granularity);
+		out.writeInt(ambCnt);
+		out.writeInt(patCnt);
+		for (int severity : severities) {
+			out.writeInt(severity);
+		}
+		writeMatrix(out, ambPatDist, ambCnt, patCnt);
+		writeMatrix(out, optHospitalsDist, patCnt, patCnt);
+		writeMatrix(out, new double[][] { singleOptHospitalsDist }, 1, patCnt);
+	}
+
+	/**
+	 * Writes the top left corner of the matrix, the tables of the hospitals
+	 * are larger than the problem.
+	 */
+	private static void writeMatrix(DataOutput out, double[][] matrix, int rows, int columns) throws IOException {
+		for (int i = 0; i < rows; i++) {
+			for (int j = 0; j < columns; j++) {
+				out.writeDouble(matrix[i][j]);
+			}
+		}
 	}
 
 	/**
 	 * Find the best spot in the route to insert new patient.
 	 * <p>
-	 * Method does not change the given list.
+	 * Method does not change the route, the planCost delta is stored in
+	 * <code>decoder.insertionCost</code>.
 	 *
-	 * @param ambPlan
-	 *            list of patients to visit
+	 * @param decoder
+	 *            current plan
 	 * @param ambIdx
 	 *            index of an ambulance
 	 * @param patIdx
 	 *            new patient
-	 * @return pair of insertion index and planCost delta
+	 * @return insertion index
 	 */
-	private Pair<Integer, Double> tryInsert(List<Integer> ambPlan, int ambIdx, int patIdx) {
-		Ambulance amb = ambulances.get(ambIdx);
-		Patient pat = patients.get(patIdx);
+	private int tryInsert(Decoder decoder, int ambIdx, int patIdx) {
+		double[] ambDist = ambPatDist[ambIdx];
+		int[] ambPlan = decoder.routes[ambIdx];
+		int size = decoder.routeLengths[ambIdx];
 		/*
 		 * Special case of empty routes.
 		 */
-		if (ambPlan.size() == 0)
-			return new Pair<>(0, shortestDistance(amb, pat) + singleOptHospitalsDist[patIdx]);
+		if (size == 0) {
+			decoder.insertionCost = ambDist[patIdx] + singleOptHospitalsDist[patIdx];
+			return 0;
+		}
 		/*
 		 * Find bounds where patient can be placed considering his priority. Can
 		 * use two binary searches, but that is unnecessary.
 		 */
-		int patSeverity = patients.get(patIdx).getSeverity();
+		int patSeverity = severities[patIdx];
 		int l = 0;
 		int r = 0;
-		for (; r < ambPlan.size(); r++) {
-			int p = patients.get(ambPlan.get(r)).getSeverity();
+		for (; r < size; r++) {
+			int p = severities[ambPlan[r]];
 			if (patSeverity > p) {
 				break;
 			} else if (patSeverity < p) {
@@ -523,44 +1313,51 @@ public class PSOPlanner extends Planner {
 		/*
 		 * Find best spot to insert patient.
 		 */
-		Pair<Integer, Double> pair = null;
+		int bestIndex = -1;
+		double bestDiff = 0;
 		for (int i = l; i <= r; i++) {
 			double diff;
 			if (i == 0) {
-				int next = ambPlan.get(i);
-				Patient nextNode = patients.get(next);
-				diff = -shortestDistance(amb, nextNode) + shortestDistance(amb, pat) + optHospitalsDist[patIdx][next];
-			} else if (i == ambPlan.size()) {
-				int prev = ambPlan.get(i - 1);
+				int next = ambPlan[i];
+				diff = -ambDist[next] + ambDist[patIdx] + optHospitalsDist[patIdx][next];
+			} else if (i == size) {
+				int prev = ambPlan[i - 1];
 				diff = -singleOptHospitalsDist[prev] + optHospitalsDist[prev][patIdx] + singleOptHospitalsDist[patIdx];
 			} else {
-				int prev = ambPlan.get(i - 1);
-				int next = ambPlan.get(i);
+				int prev = ambPlan[i - 1];
+				int next = ambPlan[i];
 				diff = -optHospitalsDist[prev][next] + optHospitalsDist[prev][patIdx] + optHospitalsDist[patIdx][next];
 			}
-			if (pair == null || pair.y > diff) {
-				pair = new Pair<>(i, diff);
+			if (bestIndex == -1 || bestDiff > diff) {
+				bestIndex = i;
+				bestDiff = diff;
 			}
 		}
 
-		assert pair != null;
+		assert bestIndex != -1;
 
-		return pair;
+		decoder.insertionCost = bestDiff;
+		return bestIndex;
 	}
 
 	/**
-	 * Apply 2-opt optimization to a given plan.
+	 * Apply 2-opt optimization to a route of the plan.
 	 * <p>
-	 * Tries to reverse some parts of paths.
+	 * Tries to reverse some parts of paths. The best reversal is applied in
+	 * place.
 	 *
-	 * @param route
-	 *            current route
-	 * @return pair of improved route and how much the score is improved, or
-	 *         null if no improvement found
+	 * @param decoder
+	 *            current plan
+	 * @param ambIdx
+	 *            route to improve
+	 * @return how much the score is improved, or 0 if no improvement found
 	 */
-	private Pair<List<Integer>, Double> twoOpt(Ambulance amb, List<Integer> route) {
-		if (route.size() < 2)
-			return null;
+	private double twoOpt(Decoder decoder, int ambIdx) {
+		double[] ambDist = ambPatDist[ambIdx];
+		int[] route = decoder.routes[ambIdx];
+		int size = decoder.routeLengths[ambIdx];
+		if (size < 2)
+			return 0;
 		/*
 		 * Precalculate some costs.
 		 *
@@ -568,37 +1365,39 @@ public class PSOPlanner extends Planner {
 		 * Route from r to l (reversed order) costs revSumCost[l] -
 		 * revSumCost[r].
 		 */
-		double[] prefixSumCost = new double[route.size()];
-		for (int i = 1; i < route.size(); i++) {
-			prefixSumCost[i] = prefixSumCost[i - 1] + optHospitalsDist[route.get(i - 1)][route.get(i)];
+		double[] prefixSumCost = decoder.prefixSumCost;
+		prefixSumCost[0] = 0;
+		for (int i = 1; i < size; i++) {
+			prefixSumCost[i] = prefixSumCost[i - 1] + optHospitalsDist[route[i - 1]][route[i]];
 		}
-		double[] revSumCost = new double[route.size()];
-		for (int i = route.size() - 2; i >= 0; i--) {
-			revSumCost[i] = revSumCost[i + 1] + optHospitalsDist[route.get(i + 1)][route.get(i)];
+		double[] revSumCost = decoder.revSumCost;
+		revSumCost[size - 1] = 0;
+		for (int i = size - 2; i >= 0; i--) {
+			revSumCost[i] = revSumCost[i + 1] + optHospitalsDist[route[i + 1]][route[i]];
 		}
 
 		double bestCostUpd = 0;
 		int bestL = -1, bestR = -1;
-		for (int l = 0; l < route.size(); l++) {
-			int severity = patients.get(route.get(l)).getSeverity();
-			for (int r = l + 1; r < route.size() && patients.get(route.get(r)).getSeverity() == severity; r++) {
+		for (int l = 0; l < size; l++) {
+			int severity = severities[route[l]];
+			for (int r = l + 1; r < size && severities[route[r]] == severity; r++) {
 				// try revert [l; r] patients
 				double curCostUpd = 0;
 				if (l == 0) {
-					curCostUpd -= shortestDistance(amb, patients.get(route.get(l)));
-					curCostUpd += shortestDistance(amb, patients.get(route.get(r)));
+					curCostUpd -= ambDist[route[l]];
+					curCostUpd += ambDist[route[r]];
 				} else {
-					curCostUpd -= optHospitalsDist[route.get(l - 1)][route.get(l)];
-					curCostUpd += optHospitalsDist[route.get(l - 1)][route.get(r)];
+					curCostUpd -= optHospitalsDist[route[l - 1]][route[l]];
+					curCostUpd += optHospitalsDist[route[l - 1]][route[r]];
 				}
 				curCostUpd -= prefixSumCost[r] - prefixSumCost[l];
 				curCostUpd += revSumCost[l] - revSumCost[r];
-				if (r == route.size() - 1) {
-					curCostUpd -= singleOptHospitalsDist[route.get(r)];
-					curCostUpd += singleOptHospitalsDist[route.get(l)];
+				if (r == size - 1) {
+					curCostUpd -= singleOptHospitalsDist[route[r]];
+					curCostUpd += singleOptHospitalsDist[route[l]];
 				} else {
-					curCostUpd -= optHospitalsDist[route.get(r)][route.get(r + 1)];
-					curCostUpd += optHospitalsDist[route.get(l)][route.get(r + 1)];
+					curCostUpd -= optHospitalsDist[route[r]][route[r + 1]];
+					curCostUpd += optHospitalsDist[route[l]][route[r + 1]];
 				}
 				if (curCostUpd < -1e-7 && curCostUpd < bestCostUpd) {
 					bestCostUpd = curCostUpd;
@@ -609,22 +1408,17 @@ public class PSOPlanner extends Planner {
 		}
 
 		if (bestL == -1)
-			return null;
+			return 0;
 
 		/*
-		 * Return best found result.
+		 * Apply best found result.
 		 */
-		List<Integer> result = new ArrayList<>();
-		for (int i = 0; i < bestL; i++) {
-			result.add(route.get(i));
-		}
-		for (int i = bestR; i >= bestL; i--) {
-			result.add(route.get(i));
-		}
-		for (int i = bestR + 1; i < route.size(); i++) {
-			result.add(route.get(i));
+		for (int i = bestL, j = bestR; i < j; i++, j--) {
+			int t = route[i];
+			route[i] = route[j];
+			route[j] = t;
 		}
-		return new Pair<>(result, bestCostUpd);
+		return bestCostUpd;
 	}
 
 }
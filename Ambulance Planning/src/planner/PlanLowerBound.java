@@ -0,0 +1,149 @@
+package planner;
+
+/**
+ * Lower bounds of the plan cost of {@link PSOPlanner}.
+ * <p>
+ * A plan is a set of routes, one by ambulance, of patients sorted by
+ * decreasing severity. Every patient is reached from the ambulance or from
+ * the previous patient through a hospital, and the last patient of every route
+ * is brought to a hospital. Two bounds relax this:
+ * <ul>
+ * <li>in/out: every patient has its cheapest predecessor, plus the cheapest
+ * last leg; or every patient has its cheapest successor (or its hospital),
+ * plus the cheapest first leg. O(patients^2).
+ * <li>assignment: every patient and every ambulance is matched with a
+ * successor, a patient or an end of route, so that every patient has one
+ * predecessor and there are as many ends as ambulances (an unused ambulance
+ * goes to an end for free). Only the routes are relaxed, into cycles of
+ * patients of the same severity. Solved with
+ * {@link AssignmentProblemSolver} in O((patients + ambulances)^3), only up to
+ * {@link #MAX_ASSIGNMENT_SIZE}.
+ * </ul>
+ */
+class PlanLowerBound {
+
+	/**
+	 * Patients and ambulances above which only the in/out bound is used.
+	 */
+	static final int MAX_ASSIGNMENT_SIZE = 250;
+
+	/**
+	 * Max of the assignment costs scaled to integers, so that no sum
+	 * overflows in the solver. Rounding then moves the bound by less than
+	 * (patients + ambulances) / scale, below 1e-12 of the costs up to
+	 * {@link #MAX_ASSIGNMENT_SIZE}.
+	 */
+	private static final long MAX_SCALED_SUM = Long.MAX_VALUE / 40;
+
+	/**
+	 * Best of the bounds.
+	 *
+	 * @param ambPatDist
+	 *            cost of the first leg, from ambulance a to patient i
+	 * @param optHospitalsDist
+	 *            cost from patient i to patient j through a hospital
+	 * @param singleOptHospitalsDist
+	 *            cost from patient i to a hospital
+	 */
+	static double of(int ambCnt, int patCnt, int[] severities, double[][] ambPatDist, double[][] optHospitalsDist,
+			double[] singleOptHospitalsDist) {
+		if (patCnt == 0)
+			return 0;
+		if (ambCnt == 0)
+			return Double.NEGATIVE_INFINITY; // no plan
+		double bound = inOut(ambCnt, patCnt, severities, ambPatDist, optHospitalsDist, singleOptHospitalsDist);
+		if (patCnt + ambCnt <= MAX_ASSIGNMENT_SIZE) {
+			bound = Math.max(bound,
+					assignment(ambCnt, patCnt, severities, ambPatDist, optHospitalsDist, singleOptHospitalsDist));
+		}
+		return bound;
+	}
+
+	/**
+	 * If patient j can follow patient i in a route.
+	 */
+	private static boolean canFollow(int[] severities, int i, int j) {
+		return i != j && severities[i] >= severities[j];
+	}
+
+	static double inOut(int ambCnt, int patCnt, int[] severities, double[][] ambPatDist,
+			double[][] optHospitalsDist, double[] singleOptHospitalsDist) {
+		double in = Double.POSITIVE_INFINITY;
+		double out = Double.POSITIVE_INFINITY;
+		for (int i = 0; i < patCnt; i++) {
+			in = Math.min(in, singleOptHospitalsDist[i]);
+			for (int a = 0; a < ambCnt; a++) {
+				out = Math.min(out, ambPatDist[a][i]);
+			}
+		}
+		for (int j = 0; j < patCnt; j++) {
+			double cheapestIn = Double.POSITIVE_INFINITY;
+			for (int a = 0; a < ambCnt; a++) {
+				cheapestIn = Math.min(cheapestIn, ambPatDist[a][j]);
+			}
+			double cheapestOut = singleOptHospitalsDist[j];
+			for (int i = 0; i < patCnt; i++) {
+				if (canFollow(severities, i, j)) {
+					cheapestIn = Math.min(cheapestIn, optHospitalsDist[i][j]);
+				}
+				if (canFollow(severities, j, i)) {
+					cheapestOut = Math.min(cheapestOut, optHospitalsDist[j][i]);
+				}
+			}
+			in += cheapestIn;
+			out += cheapestOut;
+		}
+		return Math.max(in, out);
+	}
+
+	/**
+	 * Costs are scaled and rounded down to integers for the solver, so the
+	 * bound stays a bound.
+	 */
+	static double assignment(int ambCnt, int patCnt, int[] severities, double[][] ambPatDist,
+			double[][] optHospitalsDist, double[] singleOptHospitalsDist) {
+		int n = patCnt + ambCnt;
+		// rows: patients then ambulances, columns: patients then ends
+		double max = 0;
+		for (int i = 0; i < patCnt; i++) {
+			max = Math.max(max, singleOptHospitalsDist[i]);
+			for (int j = 0; j < patCnt; j++) {
+				if (canFollow(severities, i, j)) {
+					max = Math.max(max, optHospitalsDist[i][j]);
+				}
+			}
+			for (int a = 0; a < ambCnt; a++) {
+				max = Math.max(max, ambPatDist[a][i]);
+			}
+		}
+		if (Double.isInfinite(max) || Double.isNaN(max))
+			return Double.NEGATIVE_INFINITY;
+		double scale = max == 0 ? 1 : MAX_SCALED_SUM / (max * (n + 1));
+		// forbidden arcs cost more than any assignment without them
+		long forbidden = (long) Math.floor(max * scale) * (n + 1) + 1;
+
+		long[][] costs = new long[n][n];
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < n; j++) {
+				double cost;
+				if (i < patCnt && j < patCnt) {
+					cost = canFollow(severities, i, j) ? optHospitalsDist[i][j] : Double.NaN;
+				} else if (i < patCnt) {
+					cost = singleOptHospitalsDist[i];
+				} else if (j < patCnt) {
+					cost = ambPatDist[i - patCnt][j];
+				} else {
+					cost = 0;
+				}
+				costs[i][j] = Double.isNaN(cost) ? forbidden : (long) Math.floor(cost * scale);
+			}
+		}
+
+		int[] match = AssignmentProblemSolver.solve(costs);
+		long sum = 0;
+		for (int i = 0; i < n; i++) {
+			sum += costs[i][match[i]];
+		}
+		return sum / scale;
+	}
+}
@@ -5,9 +5,13 @@ import java.util.Map;
 
 import model.Action;
 import model.Ambulance;
+import metrics.Metrics;
 import model.CityMap;
 
 public abstract class Planner {
+
+	protected Metrics metrics = Metrics.global();
+
 	public static List<Action> pickConcurrentActions(List<Action> plan) {
 		// TODO find the first action for every ambulance, remove them and
 		// return them
@@ -19,5 +23,31 @@ public abstract class Planner {
 	 */
 	public abstract boolean replanAfterDropAction();
 
-	public abstract Map<Ambulance, List<Action>> solve(CityMap map);
+	/**
+	 * Sets the registry where the planner reports its internal metrics.
+	 */
+	public void setMetrics(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Finds a plan without any time limit.
+	 */
+	public Map<Ambulance, List<Action>> solve(CityMap map) {
+		return solve(map, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Finds a plan for the current state of the map.
+	 * <p>
+	 * Anytime planners should stop improving their solution once the budget
+	 * is spent and return the best plan found so far.
+	 *
+	 * @param map
+	 *            current state of the city
+	 * @param millis
+	 *            time budget in milliseconds
+	 * @return actions for every ambulance
+	 */
+	public abstract Map<Ambulance, List<Action>> solve(CityMap map, long millis);
 }
@@ -18,7 +18,7 @@ public class RandomPlanner extends Planner {
 	}
 
 	@Override
-	public Map<Ambulance, List<Action>> solve(CityMap map) {
+	public Map<Ambulance, List<Action>> solve(CityMap map, long millis) {
 		int from = map.getAmbulances().get(0).getNode();
 		int to = (int) map.adjacentNodes(from).toArray()[0];
 		Ambulance amb = map.getAmbulances().get(0);
@@ -0,0 +1,263 @@
+package planner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiPredicate;
+import java.util.stream.IntStream;
+
+import model.CityMap;
+import model.Hospital;
+import model.Patient;
+
+/**
+ * Best hospitals to bring the waiting patients to, kept across solves.
+ * <p>
+ * <code>opt[i][j]</code> is the best hospital to go to with the patient of
+ * row i before going to the patient of row j, <code>single[i]</code> the
+ * best hospital to go to with the patient of row i. Between two solves
+ * usually a few patients are added and a few are picked up, so the tables are
+ * updated instead of rebuilt: the rows and columns of the patients that are
+ * no longer waiting are removed, keeping the order of the others, and the new
+ * patients are appended, in O(patients * hospitals) each. Distances from and
+ * to the hospitals are kept for every row, so the update does not go through
+ * the map. Rows are filled in parallel when there are many. Arrays grow by
+ * doubling and are reused.
+ */
+class TransferHospitals {
+
+	/**
+	 * Cells to fill under which the rows are filled by the calling thread.
+	 */
+	private static final int PARALLEL_THRESHOLD = 1 << 16;
+
+	// what the tables were built for, they are rebuilt if it changes
+	private double[][] shortestDistances;
+	private int[] hospitalNodes = new int[0];
+
+	private int size;
+	private int capacity;
+	private int[] ids = new int[0];
+	private int[] nodes = new int[0];
+	private Patient[] patients = new Patient[0];
+	// distance from the patient of the row to hospital k, NaN if it can not
+	// take the patient
+	private double[][] toHospital = new double[0][];
+	// distance from hospital k to the patient of the column
+	private double[][] fromHospital = new double[0][];
+
+	private int[][] opt = new int[0][];
+	private double[][] optDist = new double[0][];
+	private int[] single = new int[0];
+	private double[] singleDist = new double[0];
+
+	/**
+	 * Best hospital by row, the first <code>size()</code> columns are
+	 * meaningful, -1 if no hospital can take the patient.
+	 */
+	int[][] opt() {
+		return opt;
+	}
+
+	double[][] optDist() {
+		return optDist;
+	}
+
+	int[] single() {
+		return single;
+	}
+
+	double[] singleDist() {
+		return singleDist;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Updates the tables for the given waiting patients.
+	 *
+	 * @param validHospital
+	 *            if a hospital can take a patient
+	 * @return the patients in the order of the rows
+	 */
+	List<Patient> update(CityMap map, List<Patient> waiting, List<Hospital> hospitals,
+			BiPredicate<Patient, Hospital> validHospital) {
+		int hosCnt = hospitals.size();
+		int[] newHospitalNodes = new int[hosCnt];
+		for (int k = 0; k < hosCnt; k++) {
+			newHospitalNodes[k] = hospitals.get(k).getNode();
+		}
+		if (map.getShortestDistances() != shortestDistances || !Arrays.equals(newHospitalNodes, hospitalNodes)) {
+			shortestDistances = map.getShortestDistances();
+			hospitalNodes = newHospitalNodes;
+			size = 0;
+			fromHospital = new double[hosCnt][capacity];
+			for (int i = 0; i < capacity; i++) {
+				toHospital[i] = new double[hosCnt];
+			}
+		}
+
+		Map<Integer, Patient> added = new HashMap<>();
+		for (Patient patient : waiting) {
+			added.put(patient.getId(), patient);
+		}
+		removeRows(added);
+
+		int from = size;
+		ensureCapacity(size + added.size());
+		for (Patient patient : waiting) {
+			if (!added.containsKey(patient.getId()))
+				continue;
+			int row = size++;
+			ids[row] = patient.getId();
+			nodes[row] = patient.getNode();
+			patients[row] = patient;
+			double[] to = toHospital[row];
+			for (int k = 0; k < hosCnt; k++) {
+				to[k] = validHospital.test(patient, hospitals.get(k))
+						? shortestDistances[nodes[row]][hospitalNodes[k]]
+						: Double.NaN;
+				fromHospital[k][row] = shortestDistances[hospitalNodes[k]][nodes[row]];
+			}
+		}
+
+		// new rows in full, then the new columns of the old rows
+		rows(from, size, (long) (size - from) * size * hosCnt).forEach(i -> fillRow(i, 0, size));
+		rows(0, from, (long) from * (size - from) * hosCnt).forEach(i -> fillRow(i, from, size));
+
+		List<Patient> result = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			result.add(patients[i]);
+		}
+		return result;
+	}
+
+	/**
+	 * Removes the rows and the columns of the patients that are not in the
+	 * map, the others keep their order. Patients found are removed from the
+	 * map, what remains is to be added.
+	 */
+	private void removeRows(Map<Integer, Patient> waiting) {
+		int[] kept = new int[size];
+		int count = 0;
+		for (int r = 0; r < size; r++) {
+			Patient patient = waiting.get(ids[r]);
+			if (patient != null && patient.getNode() == nodes[r]) {
+				waiting.remove(ids[r]);
+				patients[r] = patient;
+				kept[count++] = r;
+			}
+		}
+		if (count == size)
+			return;
+
+		// kept[i] >= i, so moving forward overwrites only removed cells
+		for (int i = 0; i < count; i++) {
+			int r = kept[i];
+			if (r != i) {
+				ids[i] = ids[r];
+				nodes[i] = nodes[r];
+				patients[i] = patients[r];
+				single[i] = single[r];
+				singleDist[i] = singleDist[r];
+				swap(toHospital, i, r);
+				swap(opt, i, r);
+				swap(optDist, i, r);
+			}
+			int[] optRow = opt[i];
+			double[] optDistRow = optDist[i];
+			for (int j = 0; j < count; j++) {
+				optRow[j] = optRow[kept[j]];
+				optDistRow[j] = optDistRow[kept[j]];
+			}
+		}
+		for (double[] column : fromHospital) {
+			for (int j = 0; j < count; j++) {
+				column[j] = column[kept[j]];
+			}
+		}
+		Arrays.fill(patients, count, size, null);
+		size = count;
+	}
+
+	private void ensureCapacity(int needed) {
+		if (needed <= capacity)
+			return;
+		int newCapacity = Math.max(needed, 2 * capacity);
+		int hosCnt = hospitalNodes.length;
+		ids = Arrays.copyOf(ids, newCapacity);
+		nodes = Arrays.copyOf(nodes, newCapacity);
+		patients = Arrays.copyOf(patients, newCapacity);
+		single = Arrays.copyOf(single, newCapacity);
+		singleDist = Arrays.copyOf(singleDist, newCapacity);
+		toHospital = Arrays.copyOf(toHospital, newCapacity);
+		opt = Arrays.copyOf(opt, newCapacity);
+		optDist = Arrays.copyOf(optDist, newCapacity);
+		for (int i = 0; i < newCapacity; i++) {
+			if (i >= capacity) {
+				toHospital[i] = new double[hosCnt];
+			}
+			opt[i] = i < capacity ? Arrays.copyOf(opt[i], newCapacity) : new int[newCapacity];
+			optDist[i] = i < capacity ? Arrays.copyOf(optDist[i], newCapacity) : new double[newCapacity];
+		}
+		for (int k = 0; k < hosCnt; k++) {
+			fromHospital[k] = Arrays.copyOf(fromHospital[k], newCapacity);
+		}
+		capacity = newCapacity;
+	}
+
+	/**
+	 * Best hospitals of the row for the columns in [from; to), and of the row
+	 * alone.
+	 */
+	private void fillRow(int i, int from, int to) {
+		double[] toHos = toHospital[i];
+		int[] optRow = opt[i];
+		double[] optDistRow = optDist[i];
+		for (int j = from; j < to; j++) {
+			int best = -1;
+			double bestDist = 0;
+			for (int k = 0; k < toHos.length; k++) {
+				if (Double.isNaN(toHos[k]))
+					continue;
+				double curDist = toHos[k] + fromHospital[k][j];
+				if (best == -1 || bestDist > curDist) {
+					best = k;
+					bestDist = curDist;
+				}
+			}
+			optRow[j] = best;
+			optDistRow[j] = bestDist;
+		}
+		if (from == 0) {
+			int best = -1;
+			double bestDist = 0;
+			for (int k = 0; k < toHos.length; k++) {
+				if (!Double.isNaN(toHos[k]) && (best == -1 || bestDist > toHos[k])) {
+					best = k;
+					bestDist = toHos[k];
+				}
+			}
+			single[i] = best;
+			singleDist[i] = bestDist;
+		}
+	}
+
+	/**
+	 * Rows in [from; to), in parallel if there are enough cells to fill.
+	 */
+	private static IntStream rows(int from, int to, long cells) {
+		IntStream rows = IntStream.range(from, to);
+		return cells >= PARALLEL_THRESHOLD ? rows.parallel() : rows;
+	}
+
+	private static <T> void swap(T[] array, int i, int j) {
+		T t = array[i];
+		array[i] = array[j];
+		array[j] = t;
+	}
+}
@@ -0,0 +1,79 @@
+package utils;
+
+/**
+ * Walker's alias table: samples an index with probability proportional to
+ * its weight in constant time, after a linear time construction (Vose's
+ * method).
+ */
+public class AliasTable {
+
+	private final double[] prob;
+	private final int[] alias;
+
+	/**
+	 * @param weights
+	 *            non negative weights, uniform sampling if they are all zero
+	 */
+	public AliasTable(double[] weights) {
+		int n = weights.length;
+		prob = new double[n];
+		alias = new int[n];
+
+		double sum = 0;
+		for (double w : weights) {
+			sum += w;
+		}
+
+		// scaled weights, 1 is the average
+		double[] scaled = new double[n];
+		int[] small = new int[n];
+		int[] large = new int[n];
+		int smallCount = 0;
+		int largeCount = 0;
+		for (int i = 0; i < n; i++) {
+			scaled[i] = sum > 0 ? weights[i] * n / sum : 1;
+			if (scaled[i] < 1) {
+				small[smallCount++] = i;
+			} else {
+				large[largeCount++] = i;
+			}
+		}
+
+		while (smallCount > 0 && largeCount > 0) {
+			int s = small[--smallCount];
+			int l = large[--largeCount];
+			prob[s] = scaled[s];
+			alias[s] = l;
+			scaled[l] += scaled[s] - 1;
+			if (scaled[l] < 1) {
+				small[smallCount++] = l;
+			} else {
+				large[largeCount++] = l;
+			}
+		}
+		// what is left is 1 up to rounding errors
+		while (largeCount > 0) {
+			int l = large[--largeCount];
+			prob[l] = 1;
+			alias[l] = l;
+		}
+		while (smallCount > 0) {
+			int s = small[--smallCount];
+			prob[s] = 1;
+			alias[s] = s;
+		}
+	}
+
+	/**
+	 * Draws an index, using a single random number.
+	 */
+	public int sample(SplitMix64 random) {
+		double u = random.nextDouble() * prob.length;
+		int i = (int) u;
+		return u - i < prob[i] ? i : alias[i];
+	}
+
+	public int size() {
+		return prob.length;
+	}
+}
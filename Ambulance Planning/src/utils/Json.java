@@ -0,0 +1,144 @@
+package utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Minimal JSON support for line based protocols.
+ * <p>
+ * Only flat objects are supported: values can be strings, numbers, booleans
+ * or null, but not nested objects or arrays.
+ */
+public class Json {
+
+	/**
+	 * Parse a flat JSON object.
+	 * <p>
+	 * Example: {"cmd": "patient", "node": 3} -> {cmd=patient, node=3}.
+	 *
+	 * @param line
+	 *            text of the object
+	 * @return values by key, strings are unquoted, null values are skipped
+	 */
+	public static Map<String, String> parseObject(String line) {
+		Map<String, String> result = new LinkedHashMap<>();
+		int[] pos = { skipSpaces(line, 0) };
+		expect(line, pos, '{');
+		if (peek(line, pos) == '}') {
+			pos[0]++;
+			return result;
+		}
+		while (true) {
+			String key = parseString(line, pos);
+			expect(line, pos, ':');
+			String value;
+			if (peek(line, pos) == '"') {
+				value = parseString(line, pos);
+			} else {
+				int start = pos[0];
+				while (pos[0] < line.length() && ",} \t".indexOf(line.charAt(pos[0])) < 0) {
+					pos[0]++;
+				}
+				value = line.substring(start, pos[0]);
+				if (value.isEmpty())
+					throw new IllegalArgumentException("Missing value for " + key);
+				if (value.equals("null"))
+					value = null;
+			}
+			if (value != null)
+				result.put(key, value);
+			char c = peek(line, pos);
+			pos[0]++;
+			if (c == '}')
+				return result;
+			if (c != ',')
+				throw new IllegalArgumentException("Expected , or } at " + (pos[0] - 1));
+		}
+	}
+
+	/**
+	 * Quote a string as a JSON value.
+	 */
+	public static String quote(String s) {
+		StringBuilder sb = new StringBuilder("\"");
+		for (char c : s.toCharArray()) {
+			switch (c) {
+			case '"':
+				sb.append("\\\"");
+				break;
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			default:
+				if (c < 0x20) {
+					sb.append(String.format("\\u%04x", (int) c));
+				} else {
+					sb.append(c);
+				}
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+	private static void expect(String line, int[] pos, char c) {
+		if (peek(line, pos) != c)
+			throw new IllegalArgumentException("Expected " + c + " at " + pos[0]);
+		pos[0]++;
+	}
+
+	private static String parseString(String line, int[] pos) {
+		expect(line, pos, '"');
+		StringBuilder sb = new StringBuilder();
+		while (pos[0] < line.length()) {
+			char c = line.charAt(pos[0]++);
+			if (c == '"')
+				return sb.toString();
+			if (c == '\\' && pos[0] < line.length()) {
+				char e = line.charAt(pos[0]++);
+				switch (e) {
+				case 'n':
+					sb.append('\n');
+					break;
+				case 't':
+					sb.append('\t');
+					break;
+				case 'u':
+					sb.append((char) Integer.parseInt(line.substring(pos[0], pos[0] + 4), 16));
+					pos[0] += 4;
+					break;
+				default:
+					sb.append(e);
+				}
+			} else {
+				sb.append(c);
+			}
+		}
+		throw new IllegalArgumentException("Unterminated string");
+	}
+
+	/**
+	 * Skip spaces and return the next character.
+	 */
+	private static char peek(String line, int[] pos) {
+		pos[0] = skipSpaces(line, pos[0]);
+		if (pos[0] >= line.length())
+			throw new IllegalArgumentException("Unexpected end of line");
+		return line.charAt(pos[0]);
+	}
+
+	private static int skipSpaces(String line, int pos) {
+		while (pos < line.length() && Character.isWhitespace(line.charAt(pos))) {
+			pos++;
+		}
+		return pos;
+	}
+
+	private Json() {
+	}
+}
@@ -0,0 +1,93 @@
+package utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongConsumer;
+
+/**
+ * Bounded lock-free queue of longs for many producers and a single consumer.
+ * <p>
+ * Array based queue with a sequence number per slot (Vyukov's design):
+ * producers claim a slot with a CAS on the tail and publish the value by
+ * advancing the sequence of the slot, the consumer frees the slot the same
+ * way. Nothing is allocated after construction and a full queue rejects new
+ * values instead of blocking.
+ */
+public class MpscLongQueue {
+
+	private final long[] values;
+	private final AtomicLongArray sequences;
+	private final int mask;
+	private final AtomicLong tail = new AtomicLong();
+	// only touched by the consumer
+	private long head;
+
+	/**
+	 * @param capacity
+	 *            rounded up to a power of two
+	 */
+	public MpscLongQueue(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		values = new long[size];
+		sequences = new AtomicLongArray(size);
+		mask = size - 1;
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+	}
+
+	public int capacity() {
+		return values.length;
+	}
+
+	/**
+	 * Hands the available values to the consumer. Must be called by a single
+	 * thread.
+	 *
+	 * @return number of values drained
+	 */
+	public int drain(LongConsumer consumer, int max) {
+		int count = 0;
+		while (count < max) {
+			int index = (int) (head & mask);
+			if (sequences.get(index) != head + 1)
+				break;
+			long value = values[index];
+			sequences.lazySet(index, head + values.length);
+			head++;
+			consumer.accept(value);
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Must be called by the consumer.
+	 */
+	public boolean isEmpty() {
+		return sequences.get((int) (head & mask)) != head + 1;
+	}
+
+	/**
+	 * Adds a value, can be called by any thread.
+	 *
+	 * @return false if the queue is full
+	 */
+	public boolean offer(long value) {
+		while (true) {
+			long t = tail.get();
+			int index = (int) (t & mask);
+			long diff = sequences.get(index) - t;
+			if (diff == 0) {
+				if (tail.compareAndSet(t, t + 1)) {
+					values[index] = value;
+					sequences.lazySet(index, t + 1);
+					return true;
+				}
+			} else if (diff < 0) {
+				return false;
+			}
+			// another producer took the slot, try again
+		}
+	}
+}
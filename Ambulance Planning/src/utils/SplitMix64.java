@@ -0,0 +1,144 @@
+package utils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Splittable pseudo-random generator.
+ * <p>
+ * Same algorithm as {@link java.util.SplittableRandom}, but its state can be
+ * saved and restored, which is needed by checkpoints. {@link #split()}
+ * derives an independent generator, so that every parallel run can get its
+ * own stream and stays reproducible whatever the order in which the runs are
+ * scheduled.
+ */
+public class SplitMix64 {
+
+	private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+	/**
+	 * log(k!) for small k, Stirling series above.
+	 */
+	private static final double[] LOG_FACTORIAL = new double[10];
+
+	static {
+		for (int k = 1; k < LOG_FACTORIAL.length; k++) {
+			LOG_FACTORIAL[k] = LOG_FACTORIAL[k - 1] + Math.log(k);
+		}
+	}
+
+	private static double logFactorial(long k) {
+		if (k < LOG_FACTORIAL.length)
+			return LOG_FACTORIAL[(int) k];
+		double x = k + 1;
+		return (x - 0.5) * Math.log(x) - x + 0.5 * Math.log(2 * Math.PI) + 1 / (12 * x) - 1 / (360 * x * x * x);
+	}
+
+	private static long mix64(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	private static long mixGamma(long z) {
+		z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+		z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+		z = (z ^ (z >>> 33)) | 1L;
+		int n = Long.bitCount(z ^ (z >>> 1));
+		return (n < 24) ? z ^ 0xaaaaaaaaaaaaaaaaL : z;
+	}
+
+	private long seed;
+	private long gamma;
+
+	public SplitMix64(long seed) {
+		this(seed, GOLDEN_GAMMA);
+	}
+
+	private SplitMix64(long seed, long gamma) {
+		this.seed = seed;
+		this.gamma = gamma;
+	}
+
+	/**
+	 * Uniform double in [0; 1).
+	 */
+	public double nextDouble() {
+		return (nextLong() >>> 11) * 0x1.0p-53;
+	}
+
+	/**
+	 * Uniform int in [0; bound).
+	 */
+	public int nextInt(int bound) {
+		if (bound <= 0)
+			throw new IllegalArgumentException("bound must be positive");
+		return (int) (((nextLong() >>> 32) * bound) >>> 32);
+	}
+
+	public long nextLong() {
+		seed += gamma;
+		return mix64(seed);
+	}
+
+	/**
+	 * Poisson distributed value: multiplication of uniforms for small means,
+	 * transformed rejection (Hormann's PTRS) for large ones, so that the cost
+	 * does not grow with the mean.
+	 */
+	public long nextPoisson(double mean) {
+		if (mean <= 0)
+			return 0;
+		if (mean < 10) {
+			double limit = Math.exp(-mean);
+			long k = 0;
+			double p = nextDouble();
+			while (p > limit) {
+				k++;
+				p *= nextDouble();
+			}
+			return k;
+		}
+
+		double sqrtMean = Math.sqrt(mean);
+		double logMean = Math.log(mean);
+		double b = 0.931 + 2.53 * sqrtMean;
+		double a = -0.059 + 0.02483 * b;
+		double invAlpha = 1.1239 + 1.1328 / (b - 3.4);
+		double vr = 0.9277 - 3.6224 / (b - 2);
+		while (true) {
+			double u = nextDouble() - 0.5;
+			double v = nextDouble();
+			double us = 0.5 - Math.abs(u);
+			long k = (long) Math.floor((2 * a / us + b) * u + mean + 0.43);
+			if (us >= 0.07 && v <= vr)
+				return k;
+			if (k < 0 || us < 0.013 && v > us)
+				continue;
+			if (Math.log(v) + Math.log(invAlpha) - Math.log(a / (us * us) + b) <= -mean + k * logMean
+					- logFactorial(k))
+				return k;
+		}
+	}
+
+	/**
+	 * Restores the state written by {@link #writeState(DataOutput)}.
+	 */
+	public void readState(DataInput in) throws IOException {
+		seed = in.readLong();
+		gamma = in.readLong();
+	}
+
+	/**
+	 * New generator with a stream independent from this one.
+	 */
+	public SplitMix64 split() {
+		return new SplitMix64(nextLong(), mixGamma(seed += gamma));
+	}
+
+	public void writeState(DataOutput out) throws IOException {
+		out.writeLong(seed);
+		out.writeLong(gamma);
+	}
+}
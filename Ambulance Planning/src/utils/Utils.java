@@ -1,7 +1,5 @@
 package utils;
 
-import java.util.Arrays;
-
 public class Utils {
 
 	/**
@@ -21,18 +19,99 @@ public class Utils {
 	 * @return array of indices
 	 */
 	public static int[] getSortedIndices(double[] x) {
-		Pair<Double, Integer>[] pairs = new Pair[x.length];
-		for (int i = 0; i < pairs.length; i++) {
-			pairs[i] = new Pair<>(x[i], i);
-		}
-		Arrays.sort(pairs, (p1, p2) -> Double.compare(p1.x, p2.x));
 		int[] indices = new int[x.length];
-		for (int i = 0; i < pairs.length; i++) {
-			indices[i] = pairs[i].y;
-		}
+		sortIndices(x, 0, x.length, indices);
 		return indices;
 	}
 
+	/**
+	 * Allocation-free version of {@link #getSortedIndices(double[])}: the
+	 * indices of <code>x[offset; offset + n)</code>, relative to offset, are
+	 * written sorted into <code>indices[0; n)</code>.
+	 * <p>
+	 * Equal values keep the order of their indices, as a stable sort would.
+	 */
+	public static void sortIndices(double[] x, int offset, int n, int[] indices) {
+		for (int i = 0; i < n; i++) {
+			indices[i] = i;
+		}
+		sortIndices(x, offset, indices, 0, n);
+	}
+
+	private static final int INSERTION_SORT_THRESHOLD = 16;
+
+	/**
+	 * Quicksort that recurses on the smaller part and loops on the larger
+	 * one, so the stack stays logarithmic.
+	 */
+	private static void sortIndices(double[] x, int offset, int[] indices, int from, int to) {
+		while (to - from > INSERTION_SORT_THRESHOLD) {
+			int p = partition(x, offset, indices, from, to);
+			if (p - from < to - p - 1) {
+				sortIndices(x, offset, indices, from, p);
+				from = p + 1;
+			} else {
+				sortIndices(x, offset, indices, p + 1, to);
+				to = p;
+			}
+		}
+		insertionSort(x, offset, indices, from, to);
+	}
+
+	/**
+	 * Order of two indices: by value, then by index.
+	 */
+	private static boolean less(double[] x, int offset, int a, int b) {
+		int c = Double.compare(x[offset + a], x[offset + b]);
+		return c < 0 || c == 0 && a < b;
+	}
+
+	private static void insertionSort(double[] x, int offset, int[] indices, int from, int to) {
+		for (int i = from + 1; i < to; i++) {
+			int cur = indices[i];
+			int j = i - 1;
+			while (j >= from && less(x, offset, cur, indices[j])) {
+				indices[j + 1] = indices[j];
+				j--;
+			}
+			indices[j + 1] = cur;
+		}
+	}
+
+	/**
+	 * Partitions <code>indices[from; to)</code> around the median of the
+	 * first, middle and last elements.
+	 *
+	 * @return final position of the pivot
+	 */
+	private static int partition(double[] x, int offset, int[] indices, int from, int to) {
+		int last = to - 1;
+		int mid = (from + last) >>> 1;
+		if (less(x, offset, indices[mid], indices[from]))
+			swap(indices, mid, from);
+		if (less(x, offset, indices[last], indices[from]))
+			swap(indices, last, from);
+		if (less(x, offset, indices[last], indices[mid]))
+			swap(indices, last, mid);
+		// the pivot is kept at the end while partitioning
+		swap(indices, mid, last);
+		int pivot = indices[last];
+		int store = from;
+		for (int i = from; i < last; i++) {
+			if (less(x, offset, indices[i], pivot)) {
+				swap(indices, i, store++);
+			}
+		}
+		swap(indices, store, last);
+		return store;
+	}
+
+	private static void swap(int[] a, int i, int j) {
+		int t = a[i];
+		a[i] = a[j];
+		a[j] = t;
+	}
+
 	private Utils() {
 	}
 }